@@ -6,9 +6,12 @@ import java.math.RoundingMode;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.Id;
 import javax.persistence.Table;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Persistent account entity with JPA markup. Accounts are stored in an H2
  * relational database.
@@ -16,12 +19,14 @@ import javax.persistence.Table;
  * @author Paul Chapman
  */
 @Entity
+@EntityListeners(OwnerSearchIndexListener.class)
 @Table(name = "T_ACCOUNT")
 public class Account implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
-	public static Long nextId = 0L;
+	private static volatile AccountIdGenerator idGenerator = HiLoAccountIdGenerator
+			.local();
 
 	@Id
 	protected Long id;
@@ -34,16 +39,32 @@ public class Account implements Serializable {
 	protected BigDecimal balance;
 
 	/**
-	 * This is a very simple, and non-scalable solution to generating unique
-	 * ids. Not recommended for a real application. Consider using the
-	 * <tt>@GeneratedValue</tt> annotation and a sequence to generate ids.
+	 * Incremented whenever the balance is written, see
+	 * {@link BalanceWriter}.
+	 */
+	protected long version;
+
+	/**
+	 * Ids are allocated by the current {@link AccountIdGenerator}. Unless
+	 * {@link #setIdGenerator(AccountIdGenerator)} has been called they are
+	 * only unique within this JVM.
 	 * 
 	 * @return The next available id.
 	 */
 	protected static Long getNextId() {
-		synchronized (nextId) {
-			return nextId++;
-		}
+		return idGenerator.nextId();
+	}
+
+	/**
+	 * Set the generator used to allocate ids for new accounts. Entities are not
+	 * Spring beans, so this is set once at startup by
+	 * {@link AccountsConfiguration}.
+	 * 
+	 * @param generator
+	 *            The id generator to use.
+	 */
+	public static void setIdGenerator(AccountIdGenerator generator) {
+		idGenerator = generator;
 	}
 
 	/**
@@ -60,6 +81,24 @@ public class Account implements Serializable {
 		balance = BigDecimal.ZERO;
 	}
 
+	/**
+	 * Recreate an existing account, for repositories that do not use JPA.
+	 */
+	protected Account(long id, String number, String owner, BigDecimal balance) {
+		this(id, number, owner, balance, 0);
+	}
+
+	/**
+	 * Recreate an existing account, at a known version.
+	 */
+	protected Account(long id, String number, String owner, BigDecimal balance, long version) {
+		this.id = id;
+		this.number = number;
+		this.owner = owner;
+		this.balance = balance;
+		this.version = version;
+	}
+
 	public long getId() {
 		return id;
 	}
@@ -94,12 +133,23 @@ public class Account implements Serializable {
 		return balance.setScale(2, RoundingMode.HALF_EVEN);
 	}
 
+	/**
+	 * Not sent to clients, who see it in the account's entity tag instead -
+	 * see {@link AccountsController#entityTag(Account)}.
+	 * 
+	 * @return The number of times the balance has been written.
+	 */
+	@JsonIgnore
+	public long getVersion() {
+		return version;
+	}
+
 	public void withdraw(BigDecimal amount) {
-		balance.subtract(amount);
+		balance = balance.subtract(amount);
 	}
 
 	public void deposit(BigDecimal amount) {
-		balance.add(amount);
+		balance = balance.add(amount);
 	}
 
 	@Override
@@ -0,0 +1,28 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of a multi-account lookup - the accounts that were found, in the
+ * order requested, and the numbers of any that were not.
+ */
+public class AccountBatch {
+
+	protected List<Account> accounts = new ArrayList<Account>();
+
+	protected List<String> missing = new ArrayList<String>();
+
+	public List<Account> getAccounts() {
+		return accounts;
+	}
+
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	@Override
+	public String toString() {
+		return accounts.size() + " found, missing: " + missing;
+	}
+}
@@ -0,0 +1,123 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates realistic-looking accounts in bulk, for testing with production
+ * volumes of data. Set <code>accounts.generator.count</code> to have the
+ * accounts service generate that many accounts at startup.
+ * <p>
+ * Account numbers are unique 9 digit numbers starting with 2, so they never
+ * clash with the demo accounts in <code>data.sql</code>. Owner names combine
+ * common first and last names (and sometimes a middle initial), and balances
+ * follow a log-normal distribution. The same seed always generates the same
+ * accounts.
+ * <p>
+ * There are only a few hundred thousand distinct names, so each is created
+ * once and shared by every account with that name.
+ */
+public class AccountGenerator {
+
+	/** Generated account numbers are this plus a number below MAX_COUNT. */
+	public static final int FIRST_NUMBER = 200000000;
+
+	public static final int MAX_COUNT = 100000000;
+
+	/** Coprime with MAX_COUNT, so numbers are scattered but never repeat. */
+	private static final long NUMBER_MULTIPLIER = 48271;
+
+	/** Median balance of $2,500. */
+	private static final double BALANCE_MU = Math.log(250000);
+
+	private static final double BALANCE_SIGMA = 1.5;
+
+	private static final String[] FIRST_NAMES = { "James", "Mary", "Robert",
+			"Patricia", "John", "Jennifer", "Michael", "Linda", "David",
+			"Elizabeth", "William", "Barbara", "Richard", "Susan", "Joseph",
+			"Jessica", "Thomas", "Sarah", "Charles", "Karen", "Christopher",
+			"Lisa", "Daniel", "Nancy", "Matthew", "Betty", "Anthony",
+			"Margaret", "Mark", "Sandra", "Donald", "Ashley", "Steven",
+			"Kimberly", "Paul", "Emily", "Andrew", "Donna", "Joshua",
+			"Michelle", "Kenneth", "Carol", "Kevin", "Amanda", "Brian",
+			"Dorothy", "George", "Melissa", "Timothy", "Deborah", "Wei",
+			"Priya", "Mohammed", "Fatima", "Hiroshi", "Yuki", "Carlos",
+			"Lucia", "Olusegun", "Amara" };
+
+	private static final String[] LAST_NAMES = { "Smith", "Johnson",
+			"Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+			"Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez",
+			"Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson",
+			"Martin", "Lee", "Perez", "Thompson", "White", "Harris",
+			"Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "Walker",
+			"Young", "Allen", "King", "Wright", "Scott", "Torres", "Nguyen",
+			"Hill", "Flores", "Green", "Adams", "Nelson", "Baker", "Hall",
+			"Rivera", "Campbell", "Mitchell", "Carter", "Roberts", "Chen",
+			"Patel", "Kim", "Tanaka", "O'Brien", "MacDonald", "LeClerc",
+			"DeLong", "Okafor", "Schmidt" };
+
+	/** No initial, or A to Z. */
+	private static final int INITIALS = 27;
+
+	private final long seed;
+
+	private final String[] owners = new String[FIRST_NAMES.length
+			* INITIALS * LAST_NAMES.length];
+
+	private final String[] foldedOwners = new String[owners.length];
+
+	public AccountGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Generate accounts, passing each to the sink in turn.
+	 *
+	 * @param firstId
+	 *            Id of the first account, the rest follow consecutively.
+	 * @param count
+	 *            Number of accounts, at most {@link #MAX_COUNT}.
+	 * @param sink
+	 *            Receives the accounts.
+	 */
+	public void generate(long firstId, int count, AccountSink sink) {
+		if (count < 0 || count > MAX_COUNT)
+			throw new IllegalArgumentException("Can generate up to "
+					+ MAX_COUNT + " accounts, not " + count);
+
+		Random random = new Random(seed);
+		long offset = Math.floorMod(seed, MAX_COUNT);
+
+		for (int i = 0; i < count; i++) {
+			int number = FIRST_NUMBER
+					+ (int) ((i * NUMBER_MULTIPLIER + offset) % MAX_COUNT);
+			int name = random.nextInt(owners.length);
+			long balance = Math.min(BalanceEngine.MAX_BALANCE, (long) Math
+					.exp(BALANCE_MU + BALANCE_SIGMA * random.nextGaussian()));
+
+			sink.add(firstId + i, number, owner(name), foldedOwners[name],
+					balance);
+		}
+	}
+
+	/**
+	 * The owner name with the specified index, created on first use.
+	 */
+	private String owner(int name) {
+		String owner = owners[name];
+
+		if (owner == null) {
+			int first = name / (INITIALS * LAST_NAMES.length);
+			int initial = name / LAST_NAMES.length % INITIALS;
+			int last = name % LAST_NAMES.length;
+
+			owner = initial == 0 ? FIRST_NAMES[first] + " " + LAST_NAMES[last]
+					: FIRST_NAMES[first] + " " + (char) ('A' + initial - 1)
+							+ ". " + LAST_NAMES[last];
+			owners[name] = owner;
+			foldedOwners[name] = owner.toUpperCase(Locale.ROOT);
+		}
+
+		return owner;
+	}
+}
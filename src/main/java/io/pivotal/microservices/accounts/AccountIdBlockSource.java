@@ -0,0 +1,18 @@
+package io.pivotal.microservices.accounts;
+
+/**
+ * Reserves ranges of account ids for a {@link HiLoAccountIdGenerator}.
+ */
+public interface AccountIdBlockSource {
+
+	/**
+	 * Reserve a block of consecutive ids. No other call, in this or any other
+	 * process using the same source, will return an overlapping block.
+	 *
+	 * @param size
+	 *            Number of ids required.
+	 * @return The first id in the block, which ends at
+	 *         <code>first + size - 1</code>.
+	 */
+	long allocate(int size);
+}
@@ -0,0 +1,15 @@
+package io.pivotal.microservices.accounts;
+
+/**
+ * Source of unique ids for new accounts.
+ */
+public interface AccountIdGenerator {
+
+	/**
+	 * Allocate an id. Safe to call from any number of threads.
+	 *
+	 * @return An id never returned before by this generator, nor by any other
+	 *         generator sharing the same {@link AccountIdBlockSource}.
+	 */
+	long nextId();
+}
@@ -1,7 +1,9 @@
 package io.pivotal.microservices.accounts;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.Repository;
 
@@ -19,6 +21,17 @@ public interface AccountRepository extends Repository<Account, Long> {
 	 */
 	public Account findByNumber(String accountNumber);
 
+	/**
+	 * Find the accounts with any of the specified account numbers, in a single
+	 * query.
+	 * 
+	 * @param accountNumbers
+	 *            Numeric, 9 digit account numbers.
+	 * @return The accounts found, in no particular order - always non-null,
+	 *         but may be empty.
+	 */
+	public List<Account> findByNumberIn(Collection<String> accountNumbers);
+
 	/**
 	 * Find accounts whose owner name contains the specified string
 	 * 
@@ -29,6 +42,40 @@ public interface AccountRepository extends Repository<Account, Long> {
 	 */
 	public List<Account> findByOwnerContainingIgnoreCase(String partialName);
 
+	/**
+	 * Find one page of the accounts whose owner name contains the specified
+	 * string, using keyset pagination: pass the id of the last account on the
+	 * previous page to get the next one.
+	 * 
+	 * @param partialName
+	 *            Any alphabetic string.
+	 * @param afterId
+	 *            Only return accounts with ids greater than this.
+	 * @param pageable
+	 *            Page size, which should always sort by id.
+	 * @return The list of matching accounts - always non-null, but may be
+	 *         empty.
+	 */
+	public List<Account> findByOwnerContainingIgnoreCaseAndIdGreaterThan(String partialName, long afterId,
+			Pageable pageable);
+
+	/**
+	 * Find the accounts with the specified ids, in a single query.
+	 * 
+	 * @param ids
+	 *            Account ids, typically from the {@link OwnerSearchIndex}.
+	 * @return The matching accounts - always non-null, but may be empty.
+	 */
+	public List<Account> findByIdIn(Collection<Long> ids);
+
+	/**
+	 * Fetch every account, for example to build the
+	 * {@link OwnerSearchIndex}.
+	 * 
+	 * @return All accounts - always non-null, but may be empty.
+	 */
+	public List<Account> findAll();
+
 	/**
 	 * Fetch the number of accounts known to the system.
 	 * 
@@ -0,0 +1,23 @@
+package io.pivotal.microservices.accounts;
+
+/**
+ * Receives accounts one at a time, when they are generated, loaded or
+ * exported in bulk. Avoids creating an {@link Account} for each one.
+ */
+public interface AccountSink {
+
+	/**
+	 * @param id
+	 *            Account id.
+	 * @param number
+	 *            Account number, to be formatted as 9 digits.
+	 * @param owner
+	 *            Owner name.
+	 * @param foldedOwner
+	 *            Owner name in upper case, as used for searching.
+	 * @param balance
+	 *            Balance in cents.
+	 */
+	void add(long id, int number, String owner, String foldedOwner,
+			long balance);
+}
@@ -0,0 +1,239 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary copy of every account, so the accounts service can start by
+ * mapping one file into memory instead of loading SQL scripts.
+ * <p>
+ * The file holds a fixed-size header, then one 24 byte record per account (id,
+ * number, owner and balance in cents) and finally a table of distinct owner
+ * names, referred to by index from each record. Numbers are stored as ints and
+ * names just once, so ten million accounts take about 250MB.
+ * <p>
+ * Files are written to a temporary file which then replaces the snapshot, so
+ * a snapshot is never partially written.
+ */
+public class AccountSnapshot {
+
+	private static final int MAGIC = 0x41435331; // "ACS1"
+
+	private static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 4;
+
+	/** Id, number, owner name index and balance. */
+	private static final int RECORD_SIZE = 8 + 4 + 4 + 8;
+
+	/** Largest region mapped at once, a whole number of records. */
+	private static final int MAX_MAPPING = RECORD_SIZE * (Integer.MAX_VALUE / RECORD_SIZE / 2);
+
+	/**
+	 * The counts in a snapshot's header.
+	 */
+	public static class Header {
+		private final long count;
+		private final long maxId;
+		private final long namesOffset;
+		private final int nameCount;
+
+		protected Header(long count, long maxId, long namesOffset, int nameCount) {
+			this.count = count;
+			this.maxId = maxId;
+			this.namesOffset = namesOffset;
+			this.nameCount = nameCount;
+		}
+
+		/** Number of accounts in the snapshot. */
+		public long getCount() {
+			return count;
+		}
+
+		/** Highest account id in the snapshot, -1 if there are none. */
+		public long getMaxId() {
+			return maxId;
+		}
+	}
+
+	private AccountSnapshot() {
+	}
+
+	/**
+	 * Write a snapshot.
+	 *
+	 * @param file
+	 *            The snapshot file, replaced if it exists.
+	 * @param accounts
+	 *            Passes every account to the sink it is given.
+	 * @return The snapshot's header.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public static Header write(Path file, Consumer<AccountSink> accounts) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+		long[] counts = { 0, -1 }; // Accounts and highest id
+		boolean moved = false;
+
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			channel.position(HEADER_SIZE);
+
+			accounts.accept((id, number, owner, foldedOwner, balance) -> {
+				Integer name = names.get(owner);
+
+				if (name == null) {
+					name = names.size();
+					names.put(owner, name);
+				}
+
+				if (buffer.remaining() < RECORD_SIZE)
+					drain(buffer, channel);
+
+				buffer.putLong(id).putInt(number).putInt(name).putLong(balance);
+				counts[0]++;
+				counts[1] = Math.max(counts[1], id);
+			});
+
+			drain(buffer, channel);
+			long namesOffset = channel.position();
+			String[] byIndex = new String[names.size()];
+
+			for (Map.Entry<String, Integer> name : names.entrySet())
+				byIndex[name.getValue()] = name.getKey();
+
+			for (String name : byIndex) {
+				byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+				if (buffer.remaining() < 4 + bytes.length)
+					drain(buffer, channel);
+
+				buffer.putInt(bytes.length).put(bytes);
+			}
+
+			drain(buffer, channel);
+
+			buffer.putInt(MAGIC).putLong(counts[0]).putLong(counts[1]).putLong(namesOffset).putInt(byIndex.length);
+			((Buffer) buffer).flip(); // Cast for Java 8 compatibility
+			channel.write(buffer, 0);
+			channel.force(true);
+
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+			return new Header(counts[0], counts[1], namesOffset, byIndex.length);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			if (!moved)
+				Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Read a snapshot's header.
+	 *
+	 * @param file
+	 *            The snapshot file.
+	 * @return The header.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a snapshot.
+	 */
+	public static Header readHeader(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return readHeader(channel, file);
+		}
+	}
+
+	/**
+	 * Read every account in a snapshot.
+	 *
+	 * @param file
+	 *            The snapshot file.
+	 * @param sink
+	 *            Receives each account, in the order they were written.
+	 * @return The snapshot's header.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a snapshot.
+	 */
+	public static Header read(Path file, AccountSink sink) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Header header = readHeader(channel, file);
+			String[] owners = new String[header.nameCount];
+			String[] foldedOwners = new String[header.nameCount];
+
+			MappedByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, header.namesOffset,
+					channel.size() - header.namesOffset);
+
+			for (int i = 0; i < owners.length; i++) {
+				byte[] bytes = new byte[names.getInt()];
+				names.get(bytes);
+				owners[i] = new String(bytes, StandardCharsets.UTF_8);
+				foldedOwners[i] = owners[i].toUpperCase(Locale.ROOT);
+			}
+
+			long position = HEADER_SIZE;
+			long end = HEADER_SIZE + header.count * RECORD_SIZE;
+
+			while (position < end) {
+				MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(MAX_MAPPING, end - position));
+
+				while (records.hasRemaining()) {
+					long id = records.getLong();
+					int number = records.getInt();
+					int name = records.getInt();
+					sink.add(id, number, owners[name], foldedOwners[name], records.getLong());
+				}
+
+				position += records.capacity();
+			}
+
+			return header;
+		}
+	}
+
+	private static Header readHeader(FileChannel channel, Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+
+		while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0)
+			;
+
+		((Buffer) buffer).flip();
+
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+			throw new IOException("Not an account snapshot: " + file);
+
+		Header header = new Header(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getInt());
+
+		if (header.namesOffset != HEADER_SIZE + header.count * RECORD_SIZE || header.namesOffset > channel.size())
+			throw new IOException("Account snapshot is truncated: " + file);
+
+		return header;
+	}
+
+	private static void drain(ByteBuffer buffer, FileChannel channel) {
+		((Buffer) buffer).flip();
+
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		((Buffer) buffer).clear();
+	}
+}
@@ -0,0 +1,86 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+
+/**
+ * Actuator endpoint for the {@link AccountSnapshot} loaded at startup. POST to
+ * <code>/actuator/accountsnapshot</code> to write a new snapshot and GET it to
+ * see the current one. A snapshot is also written when the service shuts
+ * down.
+ */
+@Endpoint(id = "accountsnapshot")
+public class AccountSnapshotEndpoint implements DisposableBean {
+
+	protected Logger logger = Logger.getLogger(AccountSnapshotEndpoint.class
+			.getName());
+
+	private final Path file;
+
+	private final Consumer<AccountSink> accounts;
+
+	private final boolean writeOnShutdown;
+
+	/**
+	 * @param file
+	 *            The snapshot file.
+	 * @param accounts
+	 *            Passes every account to the sink it is given.
+	 * @param writeOnShutdown
+	 *            Write a snapshot when the application context closes?
+	 */
+	public AccountSnapshotEndpoint(Path file, Consumer<AccountSink> accounts,
+			boolean writeOnShutdown) {
+		this.file = file;
+		this.accounts = accounts;
+		this.writeOnShutdown = writeOnShutdown;
+	}
+
+	@ReadOperation
+	public Map<String, Object> snapshot() throws IOException {
+		Map<String, Object> details = new LinkedHashMap<String, Object>();
+		details.put("file", file.toString());
+		details.put("exists", Files.exists(file));
+
+		if (Files.exists(file)) {
+			details.put("accounts", AccountSnapshot.readHeader(file).getCount());
+			details.put("bytes", Files.size(file));
+			details.put("lastModified", Files.getLastModifiedTime(file)
+					.toString());
+		}
+
+		return details;
+	}
+
+	@WriteOperation
+	public synchronized Map<String, Object> write() throws IOException {
+		long start = System.currentTimeMillis();
+		AccountSnapshot.Header header = AccountSnapshot.write(file, accounts);
+		long millis = System.currentTimeMillis() - start;
+
+		logger.info("Wrote snapshot of " + header.getCount() + " accounts to "
+				+ file + " in " + millis + "ms");
+
+		Map<String, Object> details = new LinkedHashMap<String, Object>();
+		details.put("file", file.toString());
+		details.put("accounts", header.getCount());
+		details.put("millis", millis);
+		return details;
+	}
+
+	@Override
+	public void destroy() throws IOException {
+		if (writeOnShutdown)
+			write();
+	}
+}
@@ -1,70 +1,367 @@
 package io.pivotal.microservices.accounts;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.util.StringUtils;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.pivotal.microservices.codec.CompactAccountsHttpMessageConverter;
+import io.pivotal.microservices.logging.RequestLog;
+import io.pivotal.microservices.metrics.TimedBeanPostProcessor;
 
 /**
  * The accounts Spring configuration.
+ * <p>
+ * Accounts are fetched using a Spring Data JPA repository unless the
+ * {@value #IN_MEMORY_PROFILE} profile is active, in which case they are loaded
+ * into an {@link InMemoryAccountRepository} at startup.
  * 
  * @author Paul Chapman
  */
 @Configuration
 @ComponentScan
 @EntityScan("io.pivotal.microservices.accounts")
-@EnableJpaRepositories("io.pivotal.microservices.accounts")
 @PropertySource("classpath:db-config.properties")
 public class AccountsConfiguration {
 
+	public static final String IN_MEMORY_PROFILE = "in-memory";
+
+	/**
+	 * Use JPA repositories unless running in-memory.
+	 */
+	@Configuration
+	@Profile("!" + IN_MEMORY_PROFILE)
+	@EnableJpaRepositories("io.pivotal.microservices.accounts")
+	protected static class JpaRepositoryConfiguration {
+	}
+
 	protected Logger logger;
 
+	@Autowired
+	protected Environment environment;
+
 	public AccountsConfiguration() {
 		logger = Logger.getLogger(getClass().getName());
 	}
 
 	/**
 	 * Creates an in-memory "rewards" database populated with test data for fast
-	 * testing
+	 * testing. Set <code>accounts.generator.count</code> to add that many
+	 * generated accounts as well - unless the {@value #IN_MEMORY_PROFILE}
+	 * profile is active, when they are loaded straight into the in-memory
+	 * repository instead.
+	 * <p>
+	 * If <code>accounts.snapshot.file</code> names an existing
+	 * {@link AccountSnapshot}, the database is loaded from that instead.
 	 */
 	@Bean
-	public DataSource dataSource() {
+	public DataSource dataSource(@Value("${accounts.generator.count:0}") int generatedAccounts,
+			@Value("${accounts.generator.seed:1}") long seed) throws SQLException, IOException {
 		logger.info("dataSource() invoked");
 
 		// Create an in-memory H2 relational database containing some demo
-		// accounts.
-		DataSource dataSource = (new EmbeddedDatabaseBuilder()).addScript("classpath:testdb/schema.sql")
-				.addScript("classpath:testdb/data.sql").build();
+		// accounts. Uniquely named, so several accounts servers can run in
+		// the same JVM (see the LoadTest).
+		DataSource dataSource = (new EmbeddedDatabaseBuilder()).generateUniqueName(true)
+				.addScript("classpath:testdb/schema.sql").addScript("classpath:testdb/data.sql").build();
 
 		logger.info("dataSource = " + dataSource);
 
-		// Sanity check
 		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
-		List<Map<String, Object>> accounts = jdbcTemplate.queryForList("SELECT number FROM T_ACCOUNT");
-		logger.info("System has " + accounts.size() + " accounts");
+		boolean inMemory = environment.acceptsProfiles(Profiles.of(IN_MEMORY_PROFILE));
+		Path snapshot = existingSnapshot();
+
+		if (snapshot != null && !inMemory) {
+			long start = System.currentTimeMillis();
+			AccountSnapshot.Header header;
+			jdbcTemplate.update("DELETE FROM T_ACCOUNT");
+
+			try (JdbcAccountLoader loader = new JdbcAccountLoader(dataSource)) {
+				header = AccountSnapshot.read(snapshot, loader);
+			}
+
+			new JdbcAccountIdBlockSource(dataSource).reserveThrough(header.getMaxId());
+			logger.info("Loaded " + header.getCount() + " accounts from " + snapshot + " in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} else {
+			// Populate with random balances, in a single statement
+			jdbcTemplate.update("UPDATE T_ACCOUNT SET balance = FLOOR(RAND() * 10000000) / 100");
+
+			if (generatedAccounts > 0 && !inMemory) {
+				long start = System.currentTimeMillis();
 
-		// Populate with random balances
-		Random rand = new Random();
+				try (JdbcAccountLoader loader = new JdbcAccountLoader(dataSource)) {
+					new AccountGenerator(seed).generate(
+							new JdbcAccountIdBlockSource(dataSource).allocate(generatedAccounts), generatedAccounts,
+							loader);
+				}
 
-		for (Map<String, Object> item : accounts) {
-			String number = (String) item.get("number");
-			BigDecimal balance = new BigDecimal(rand.nextInt(10000000) / 100.0).setScale(2, RoundingMode.HALF_UP);
-			jdbcTemplate.update("UPDATE T_ACCOUNT SET balance = ? WHERE number = ?", balance, number);
+				logger.info("Generated " + generatedAccounts + " accounts in "
+						+ (System.currentTimeMillis() - start) + "ms");
+			}
 		}
 
+		// Sanity check
+		logger.info("System has " + jdbcTemplate.queryForObject("SELECT count(*) FROM T_ACCOUNT", Integer.class)
+				+ " accounts");
 		return dataSource;
 	}
+
+	/**
+	 * Allocates ids for new accounts in blocks reserved from the database, so
+	 * they are unique across every instance sharing it. Set
+	 * <code>accounts.id-block-size</code> to change how many ids are reserved
+	 * at a time.
+	 */
+	@Bean
+	public AccountIdGenerator accountIdGenerator(DataSource dataSource,
+			@Value("${accounts.id-block-size:" + HiLoAccountIdGenerator.DEFAULT_BLOCK_SIZE + "}") int blockSize) {
+		logger.info("accountIdGenerator() invoked");
+
+		AccountIdGenerator idGenerator = new HiLoAccountIdGenerator(new JdbcAccountIdBlockSource(dataSource),
+				blockSize);
+		Account.setIdGenerator(idGenerator);
+		return idGenerator;
+	}
+
+	/**
+	 * Stores balance changes in the database. When the repository holds its
+	 * own copy of each account, that is updated too.
+	 * <p>
+	 * An in-memory repository loaded from a snapshot, or holding generated
+	 * accounts, has accounts the database does not, so its changes are stored
+	 * in the repository alone.
+	 * <p>
+	 * The database is in-memory, so changes are lost on restart unless
+	 * <code>accounts.journal.dir</code> is set. Changes are then also written
+	 * to a journal in that directory, and recovered from it on startup.
+	 */
+	@Bean
+	public BalanceWriter balanceWriter(AccountRepository accountRepository, DataSource dataSource,
+			@Value("${accounts.journal.dir:}") String journalDir,
+			@Value("${accounts.journal.size:" + JournalingBalanceWriter.DEFAULT_JOURNAL_SIZE + "}") int journalSize,
+			@Value("${accounts.journal.compact-interval-seconds:300}") long compactInterval,
+			@Value("${accounts.generator.count:0}") int generatedAccounts) throws IOException {
+		logger.info("balanceWriter() invoked");
+
+		BalanceWriter balanceWriter;
+
+		if (accountRepository instanceof InMemoryAccountRepository
+				&& (generatedAccounts > 0 || existingSnapshot() != null)) {
+			logger.info("Balance changes are written to the in-memory repository only");
+			balanceWriter = (InMemoryAccountRepository) accountRepository;
+		} else {
+			balanceWriter = new JdbcBalanceWriter(dataSource);
+
+			if (accountRepository instanceof BalanceWriter)
+				balanceWriter = balanceWriter.andThen((BalanceWriter) accountRepository);
+		}
+
+		if (StringUtils.hasText(journalDir)) {
+			JournalingBalanceWriter journal = new JournalingBalanceWriter(Paths.get(journalDir), journalSize,
+					accountRepository, balanceWriter);
+			journal.startCompacting(compactInterval, TimeUnit.SECONDS);
+			balanceWriter = journal;
+		}
+
+		return balanceWriter;
+	}
+
+	/**
+	 * Applies balance changes, writing them in batches.
+	 */
+	@Bean(destroyMethod = "close")
+	public BalanceEngine balanceEngine(AccountRepository accountRepository,
+			@Qualifier("balanceWriter") BalanceWriter balanceWriter) {
+		logger.info("balanceEngine() invoked");
+		return new BalanceEngine(accountRepository, balanceWriter);
+	}
+
+	/**
+	 * Creates an in-memory repository holding a copy of every account in the
+	 * database, to avoid a database round-trip on every lookup.
+	 */
+	@Bean
+	@Profile(IN_MEMORY_PROFILE)
+	public AccountRepository inMemoryAccountRepository(DataSource dataSource,
+			@Value("${accounts.generator.count:0}") int generatedAccounts,
+			@Value("${accounts.generator.seed:1}") long seed) throws IOException {
+		logger.info("inMemoryAccountRepository() invoked");
+
+		Path snapshot = existingSnapshot();
+
+		if (snapshot != null) {
+			// Map the snapshot, no SQL needed
+			long start = System.currentTimeMillis();
+			InMemoryAccountRepository accountRepository = new InMemoryAccountRepository(
+					(int) AccountSnapshot.readHeader(snapshot).getCount());
+			AccountSnapshot.Header header = accountRepository.load(snapshot);
+
+			new JdbcAccountIdBlockSource(dataSource).reserveThrough(header.getMaxId());
+			logger.info("In-memory repository loaded " + accountRepository.countAccounts() + " accounts from "
+					+ snapshot + " in " + (System.currentTimeMillis() - start) + "ms");
+			return accountRepository;
+		}
+
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		InMemoryAccountRepository accountRepository = new InMemoryAccountRepository(
+				jdbcTemplate.queryForObject("SELECT count(*) FROM T_ACCOUNT", Integer.class) + generatedAccounts);
+
+		jdbcTemplate.query("SELECT id, number, name, balance FROM T_ACCOUNT",
+				(RowCallbackHandler) rs -> accountRepository.add(rs.getLong("id"), rs.getString("number"), rs.getString("name"),
+						rs.getBigDecimal("balance")));
+
+		if (generatedAccounts > 0) {
+			// Ids are still reserved in the database, so are never reused
+			long start = System.currentTimeMillis();
+			new AccountGenerator(seed).generate(new JdbcAccountIdBlockSource(dataSource).allocate(generatedAccounts),
+					generatedAccounts, accountRepository);
+			logger.info("Generated " + generatedAccounts + " accounts in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+
+		logger.info("In-memory repository loaded " + accountRepository.countAccounts() + " accounts");
+		return accountRepository;
+	}
+
+	/**
+	 * Writes an {@link AccountSnapshot} of every account to the file named by
+	 * <code>accounts.snapshot.file</code> on shutdown (unless
+	 * <code>accounts.snapshot.write-on-shutdown</code> is false) and on demand
+	 * using the <code>accountsnapshot</code> actuator endpoint. The snapshot is
+	 * loaded on the next startup.
+	 */
+	@Bean
+	@ConditionalOnProperty("accounts.snapshot.file")
+	public AccountSnapshotEndpoint accountSnapshotEndpoint(AccountRepository accountRepository,
+			DataSource dataSource, @Value("${accounts.snapshot.file}") String snapshotFile,
+			@Value("${accounts.snapshot.write-on-shutdown:true}") boolean writeOnShutdown) {
+		logger.info("accountSnapshotEndpoint() invoked");
+
+		Consumer<AccountSink> accounts;
+
+		if (accountRepository instanceof InMemoryAccountRepository)
+			accounts = ((InMemoryAccountRepository) accountRepository)::forEach;
+		else
+			accounts = sink -> JdbcAccountLoader.forEach(dataSource, sink);
+
+		return new AccountSnapshotEndpoint(Paths.get(snapshotFile), accounts, writeOnShutdown);
+	}
+
+	/**
+	 * The snapshot to load at startup, if there is one.
+	 */
+	protected Path existingSnapshot() {
+		String snapshotFile = environment.getProperty("accounts.snapshot.file");
+
+		if (!StringUtils.hasText(snapshotFile) || !Files.exists(Paths.get(snapshotFile)))
+			return null;
+
+		return Paths.get(snapshotFile);
+	}
+
+	/**
+	 * Creates a trigram index of account owners, built from the repository at
+	 * startup, to speed up searching by owner. Set
+	 * <code>accounts.owner-index.enabled=false</code> to always search the
+	 * database instead.
+	 * <p>
+	 * The accounts are read one at a time, from the in-memory repository's
+	 * arrays or by a JDBC query of just their ids and owners, rather than
+	 * loading every account as an entity.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "accounts.owner-index.enabled", matchIfMissing = true)
+	public OwnerSearchIndex ownerSearchIndex(AccountRepository accountRepository, DataSource dataSource,
+			@Value("${accounts.owner-index.max-results:1000}") int maxResults) {
+		logger.info("ownerSearchIndex() invoked");
+
+		Consumer<AccountSink> accounts;
+
+		if (accountRepository instanceof InMemoryAccountRepository)
+			accounts = ((InMemoryAccountRepository) accountRepository)::forEach;
+		else
+			accounts = sink -> JdbcAccountLoader.forEachOwner(dataSource, sink);
+
+		OwnerSearchIndex ownerIndex = new OwnerSearchIndex(maxResults);
+		ownerIndex.rebuild(accounts);
+		return ownerIndex;
+	}
+
+	/**
+	 * Times every repository query, tagged by query method and outcome, as
+	 * the <code>accounts.repository</code> metric. Static, so it can be
+	 * created before the beans it post-processes.
+	 */
+	@Bean
+	public static TimedBeanPostProcessor accountRepositoryTimer(ObjectProvider<MeterRegistry> meterRegistry) {
+		return new TimedBeanPostProcessor(AccountRepository.class, "accounts.repository",
+				"Time taken by account repository queries", "query", meterRegistry);
+	}
+
+	/**
+	 * Times every request handled by the {@link AccountsController}, tagged
+	 * by endpoint and outcome, as the <code>accounts.controller</code>
+	 * metric. Writing the response is timed separately, see
+	 * {@link io.pivotal.microservices.metrics.MetricsConfiguration}.
+	 */
+	@Bean
+	public static TimedBeanPostProcessor accountsControllerTimer(ObjectProvider<MeterRegistry> meterRegistry) {
+		return new TimedBeanPostProcessor(AccountsController.class, "accounts.controller",
+				"Time taken by accounts service endpoints", "endpoint", meterRegistry);
+	}
+
+	/**
+	 * Samples the lookups logged by the {@link AccountsController}, as set by
+	 * the <code>request-log.sample-rate.*</code> properties.
+	 */
+	@Bean
+	public RequestLog requestLog(Environment environment) {
+		return new RequestLog(environment);
+	}
+
+	/**
+	 * Adds a {@link CompactAccountsHttpMessageConverter} after the JSON one, so
+	 * accounts are only sent in binary when a client asks for it - a request
+	 * accepting anything still gets JSON.
+	 */
+	@Bean
+	public WebMvcConfigurer binaryAccountsConfigurer(ObjectProvider<MeterRegistry> meterRegistry) {
+		return new WebMvcConfigurer() {
+			@Override
+			public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+				converters.add(new CompactAccountsHttpMessageConverter<Account, AccountBatch>(
+						new AccountsServiceMapping(), meterRegistry.getIfAvailable()));
+			}
+		};
+	}
 }
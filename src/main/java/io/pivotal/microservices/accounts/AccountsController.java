@@ -1,14 +1,39 @@
 package io.pivotal.microservices.accounts;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.lang.Nullable;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.pivotal.microservices.exceptions.AccountNotFoundException;
+import io.pivotal.microservices.exceptions.BalanceChangesUnavailableException;
+import io.pivotal.microservices.exceptions.BatchTooLargeException;
+import io.pivotal.microservices.exceptions.InsufficientFundsException;
+import io.pivotal.microservices.exceptions.InvalidAmountException;
+import io.pivotal.microservices.logging.RequestLog;
 
 /**
  * A RESTFul controller for accessing account information.
@@ -18,9 +43,42 @@ import io.pivotal.microservices.exceptions.AccountNotFoundException;
 @RestController
 public class AccountsController {
 
+	/**
+	 * Maximum number of accounts that can be fetched by {@link #byNumbers}.
+	 */
+	public static final int MAX_BATCH_SIZE = 100;
+
+	/**
+	 * Page size used by {@link #byOwner(String, Integer, Long)} when only
+	 * <code>after</code> is specified, and the largest page allowed.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 100;
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * Page size used internally when streaming accounts.
+	 */
+	public static final int STREAM_PAGE_SIZE = 500;
+
+	/**
+	 * Account ids start at zero, so this precedes all of them.
+	 */
+	protected static final long NO_ID = -1;
+
 	protected Logger logger = Logger.getLogger(AccountsController.class
 			.getName());
 	protected AccountRepository accountRepository;
+	protected OwnerSearchIndex ownerIndex;
+	protected BalanceEngine balanceEngine;
+
+	@Autowired(required = false)
+	protected ObjectMapper objectMapper = new ObjectMapper();
+
+	/**
+	 * Which lookups are logged, by default all of them.
+	 */
+	@Autowired(required = false)
+	protected RequestLog requestLog = new RequestLog(null);
 
 	/**
 	 * Create an instance plugging in the respository of Accounts.
@@ -28,9 +86,43 @@ public class AccountsController {
 	 * @param accountRepository
 	 *            An account repository implementation.
 	 */
-	@Autowired
 	public AccountsController(AccountRepository accountRepository) {
+		this(accountRepository, null);
+	}
+
+	/**
+	 * Create an instance plugging in the respository of Accounts and an index
+	 * of their owners.
+	 * 
+	 * @param accountRepository
+	 *            An account repository implementation.
+	 * @param ownerIndex
+	 *            Index used to speed up searches by owner, may be null.
+	 */
+	public AccountsController(AccountRepository accountRepository,
+			@Nullable OwnerSearchIndex ownerIndex) {
+		this(accountRepository, ownerIndex, null);
+	}
+
+	/**
+	 * Create an instance plugging in the respository of Accounts, an index of
+	 * their owners and the engine that changes their balances.
+	 * 
+	 * @param accountRepository
+	 *            An account repository implementation.
+	 * @param ownerIndex
+	 *            Index used to speed up searches by owner, may be null.
+	 * @param balanceEngine
+	 *            Applies deposits, withdrawals and transfers. If null, balances
+	 *            cannot be changed.
+	 */
+	@Autowired
+	public AccountsController(AccountRepository accountRepository,
+			@Nullable OwnerSearchIndex ownerIndex,
+			@Nullable BalanceEngine balanceEngine) {
 		this.accountRepository = accountRepository;
+		this.ownerIndex = ownerIndex;
+		this.balanceEngine = balanceEngine;
 
 		logger.info("AccountRepository says system has "
 				+ accountRepository.countAccounts() + " accounts");
@@ -45,20 +137,97 @@ public class AccountsController {
 	 * @throws AccountNotFoundException
 	 *             If the number is not recognised.
 	 */
+	public Account byNumber(String accountNumber) {
+		return byNumber(accountNumber, null);
+	}
+
+	/**
+	 * Fetch an account with the specified account number. The response has the
+	 * account's {@link #entityTag(Account) entity tag}, and if the request's
+	 * <code>If-None-Match</code> header has the same tag the response is 304
+	 * Not Modified, without a body.
+	 * 
+	 * @param accountNumber
+	 *            A numeric, 9 digit account number.
+	 * @param request
+	 *            The request, to check if it is conditional. May be null.
+	 * @return The account if found, null if not modified.
+	 * @throws AccountNotFoundException
+	 *             If the number is not recognised.
+	 */
 	@RequestMapping("/accounts/{accountNumber}")
-	public Account byNumber(@PathVariable("accountNumber") String accountNumber) {
+	public Account byNumber(@PathVariable("accountNumber") String accountNumber,
+			@Nullable WebRequest request) {
+
+		boolean log = requestLog.sample(logger, "byNumber");
+
+		if (log)
+			logger.info("accounts-service byNumber() invoked: " + accountNumber);
 
-		logger.info("accounts-service byNumber() invoked: " + accountNumber);
 		Account account = accountRepository.findByNumber(accountNumber);
-		logger.info("accounts-service byNumber() found: " + account);
+
+		if (log)
+			logger.info("accounts-service byNumber() found: " + account);
 
 		if (account == null)
 			throw new AccountNotFoundException(accountNumber);
+		else if (request != null
+				&& request.checkNotModified(entityTag(account)))
+			return null;
 		else {
 			return account;
 		}
 	}
 
+	/**
+	 * Fetch several accounts at once, using a single repository query. So
+	 * <code>http://.../accounts/batch?numbers=123456789,123456001</code>
+	 * returns both accounts, if they exist.
+	 * 
+	 * @param accountNumbers
+	 *            Numeric, 9 digit account numbers. Duplicates are ignored.
+	 * @return The accounts found, in the order requested, and the numbers of
+	 *         any that were not found.
+	 * @throws BatchTooLargeException
+	 *             If more than {@link #MAX_BATCH_SIZE} accounts are requested.
+	 */
+	@RequestMapping("/accounts/batch")
+	public AccountBatch byNumbers(@RequestParam("numbers") List<String> accountNumbers) {
+		boolean log = requestLog.sample(logger, "byNumbers");
+
+		if (log)
+			logger.info("accounts-service byNumbers() invoked: " + accountNumbers);
+
+		Set<String> requested = new LinkedHashSet<String>(accountNumbers);
+
+		if (requested.size() > MAX_BATCH_SIZE)
+			throw new BatchTooLargeException(requested.size(), MAX_BATCH_SIZE);
+
+		Map<String, Account> found = new HashMap<String, Account>();
+
+		if (!requested.isEmpty()) {
+			for (Account account : accountRepository.findByNumberIn(requested))
+				found.put(account.getNumber(), account);
+		}
+
+		AccountBatch batch = new AccountBatch();
+
+		for (String accountNumber : requested) {
+			Account account = found.get(accountNumber);
+
+			if (account == null)
+				batch.missing.add(accountNumber);
+			else
+				batch.accounts.add(account);
+		}
+
+		if (log)
+			logger.info("accounts-service byNumbers() found: "
+					+ batch.accounts.size() + " accounts, missing "
+					+ batch.missing.size());
+		return batch;
+	}
+
 	/**
 	 * Fetch accounts with the specified name. A partial case-insensitive match
 	 * is supported. So <code>http://.../accounts/owner/a</code> will find any
@@ -69,20 +238,300 @@ public class AccountsController {
 	 * @throws AccountNotFoundException
 	 *             If there are no matches at all.
 	 */
+	public List<Account> byOwner(String partialName) {
+		return byOwner(partialName, null, null, null);
+	}
+
+	/**
+	 * Fetch accounts with the specified name, optionally one page at a time.
+	 * 
+	 * @see #byOwner(String, Integer, Long, WebRequest)
+	 */
+	public List<Account> byOwner(String partialName, Integer limit,
+			Long afterId) {
+		return byOwner(partialName, limit, afterId, null);
+	}
+
+	/**
+	 * Fetch accounts with the specified name, optionally one page at a time.
+	 * Pages are ordered by account id, so
+	 * <code>http://.../accounts/owner/a?limit=50</code> returns the first 50
+	 * matches and <code>http://.../accounts/owner/a?limit=50&after=123</code>
+	 * the 50 after the account with id 123 (the last one on the previous page).
+	 * <p>
+	 * Like {@link #byNumber(String, WebRequest)}, the response has an entity
+	 * tag, of all the accounts found, and is 304 Not Modified if the request
+	 * has the same tag in its <code>If-None-Match</code> header.
+	 * 
+	 * @param partialName
+	 * @param limit
+	 *            Page size, at most {@link #MAX_PAGE_SIZE}. If neither this nor
+	 *            <code>after</code> is specified all matches are returned.
+	 * @param afterId
+	 *            Id of the last account on the previous page.
+	 * @param request
+	 *            The request, to check if it is conditional. May be null.
+	 * @return A non-null set of accounts, only empty if this is not the first
+	 *         page. Null if not modified.
+	 * @throws AccountNotFoundException
+	 *             If there are no matches at all.
+	 */
 	@RequestMapping("/accounts/owner/{name}")
-	public List<Account> byOwner(@PathVariable("name") String partialName) {
-		logger.info("accounts-service byOwner() invoked: "
-				+ accountRepository.getClass().getName() + " for "
-				+ partialName);
+	public List<Account> byOwner(@PathVariable("name") String partialName,
+			@RequestParam(value = "limit", required = false) Integer limit,
+			@RequestParam(value = "after", required = false) Long afterId,
+			@Nullable WebRequest request) {
+		boolean log = requestLog.sample(logger, "byOwner");
+
+		if (log)
+			logger.info("accounts-service byOwner() invoked: "
+					+ accountRepository.getClass().getName() + " for "
+					+ partialName);
 
-		List<Account> accounts = accountRepository
-				.findByOwnerContainingIgnoreCase(partialName);
-		logger.info("accounts-service byOwner() found: " + accounts);
+		List<Account> accounts;
 
-		if (accounts == null || accounts.size() == 0)
+		if (limit == null && afterId == null) {
+			accounts = findByOwner(partialName);
+		} else {
+			int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.max(1,
+					Math.min(limit, MAX_PAGE_SIZE));
+			accounts = findPageByOwner(partialName,
+					afterId == null ? NO_ID : afterId, pageSize);
+		}
+
+		// The count only, a list of thousands of accounts is too big to log
+		if (log)
+			logger.info("accounts-service byOwner() found: "
+					+ (accounts == null ? 0 : accounts.size()) + " accounts");
+
+		if ((accounts == null || accounts.size() == 0) && afterId == null)
 			throw new AccountNotFoundException(partialName);
+		else if (request != null
+				&& request.checkNotModified(entityTag(accounts)))
+			return null;
 		else {
 			return accounts;
 		}
 	}
+
+	/**
+	 * Stream every account with the specified name as newline-delimited JSON,
+	 * requested by sending <code>Accept: application/x-ndjson</code>. Accounts
+	 * are fetched and written a page at a time, so memory use does not depend
+	 * on the number of matches.
+	 * 
+	 * @param partialName
+	 * @return The matching accounts, one JSON object per line. An empty
+	 *         response if there are no matches.
+	 */
+	@RequestMapping(value = "/accounts/owner/{name}", produces = "application/x-ndjson")
+	public ResponseEntity<StreamingResponseBody> streamByOwner(
+			@PathVariable("name") String partialName) {
+		if (requestLog.sample(logger, "streamByOwner"))
+			logger.info("accounts-service streamByOwner() invoked: "
+					+ partialName);
+
+		// The generator is closed, to release its buffers, but the response
+		// stream is left for Spring MVC to complete
+		StreamingResponseBody body = out -> {
+			try (JsonGenerator generator = objectMapper.getFactory()
+					.createGenerator(out).setRootValueSeparator(null)
+					.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+				long afterId = NO_ID;
+				List<Account> page;
+
+				do {
+					page = findPageByOwner(partialName, afterId,
+							STREAM_PAGE_SIZE);
+
+					for (Account account : page) {
+						generator.writeObject(account);
+						generator.writeRaw('\n');
+						afterId = account.getId();
+					}
+
+					generator.flush();
+				} while (page.size() == STREAM_PAGE_SIZE);
+			}
+		};
+
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON)
+				.body(body);
+	}
+
+	/**
+	 * Add money to an account, by POSTing to
+	 * <code>http://.../accounts/123456789/deposit?amount=10.50</code>.
+	 * 
+	 * @param accountNumber
+	 *            A numeric, 9 digit account number.
+	 * @param amount
+	 *            A positive amount, with at most two decimal places.
+	 * @return The account, with its new balance.
+	 * @throws AccountNotFoundException
+	 *             If the number is not recognised.
+	 * @throws InvalidAmountException
+	 *             If the amount is not allowed.
+	 */
+	@RequestMapping(value = "/accounts/{accountNumber}/deposit", method = RequestMethod.POST)
+	public Account deposit(@PathVariable("accountNumber") String accountNumber,
+			@RequestParam("amount") BigDecimal amount) {
+		if (requestLog.sample(logger, "deposit"))
+			logger.info("accounts-service deposit() invoked: " + accountNumber
+					+ " " + amount);
+
+		return balanceEngine().deposit(accountNumber, amount);
+	}
+
+	/**
+	 * Take money from an account, by POSTing to
+	 * <code>http://.../accounts/123456789/withdraw?amount=10.50</code>.
+	 * 
+	 * @param accountNumber
+	 *            A numeric, 9 digit account number.
+	 * @param amount
+	 *            A positive amount, with at most two decimal places.
+	 * @return The account, with its new balance.
+	 * @throws AccountNotFoundException
+	 *             If the number is not recognised.
+	 * @throws InsufficientFundsException
+	 *             If the balance is less than the amount.
+	 * @throws InvalidAmountException
+	 *             If the amount is not allowed.
+	 */
+	@RequestMapping(value = "/accounts/{accountNumber}/withdraw", method = RequestMethod.POST)
+	public Account withdraw(@PathVariable("accountNumber") String accountNumber,
+			@RequestParam("amount") BigDecimal amount) {
+		if (requestLog.sample(logger, "withdraw"))
+			logger.info("accounts-service withdraw() invoked: " + accountNumber
+					+ " " + amount);
+
+		return balanceEngine().withdraw(accountNumber, amount);
+	}
+
+	/**
+	 * Move money between accounts, by POSTing to
+	 * <code>http://.../accounts/transfer?from=123456789&to=123456001&amount=10.50</code>.
+	 * 
+	 * @param fromAccountNumber
+	 *            Account to take the money from.
+	 * @param toAccountNumber
+	 *            Account to add it to.
+	 * @param amount
+	 *            A positive amount, with at most two decimal places.
+	 * @return Both accounts, with their new balances, source account first.
+	 * @throws AccountNotFoundException
+	 *             If either number is not recognised.
+	 * @throws InsufficientFundsException
+	 *             If the source account's balance is less than the amount.
+	 * @throws InvalidAmountException
+	 *             If the amount is not allowed or the accounts are the same.
+	 */
+	@RequestMapping(value = "/accounts/transfer", method = RequestMethod.POST)
+	public List<Account> transfer(@RequestParam("from") String fromAccountNumber,
+			@RequestParam("to") String toAccountNumber,
+			@RequestParam("amount") BigDecimal amount) {
+		if (requestLog.sample(logger, "transfer"))
+			logger.info("accounts-service transfer() invoked: "
+					+ fromAccountNumber + " to " + toAccountNumber + " "
+					+ amount);
+
+		return balanceEngine().transfer(fromAccountNumber, toAccountNumber,
+				amount);
+	}
+
+	/**
+	 * A strong entity tag for an account: its version, which changes whenever
+	 * its balance is written, and its balance. Versions start again at zero
+	 * when accounts are reloaded, the balance stops an old tag matching a
+	 * different account.
+	 * 
+	 * @param account
+	 *            The account.
+	 * @return The tag, quoted.
+	 */
+	protected static String entityTag(Account account) {
+		return "\"" + account.getVersion() + '-'
+				+ account.getBalance().toPlainString() + '"';
+	}
+
+	/**
+	 * A strong entity tag for a list of accounts, a hash of each account's
+	 * id, version and balance.
+	 * 
+	 * @param accounts
+	 *            The accounts, in the order they are sent.
+	 * @return The tag, quoted.
+	 */
+	protected static String entityTag(List<Account> accounts) {
+		// 64-bit FNV-1a, a value at a time
+		long hash = 0xcbf29ce484222325L ^ accounts.size();
+
+		for (Account account : accounts) {
+			hash = (hash ^ account.getId()) * 0x100000001b3L;
+			hash = (hash ^ account.getVersion()) * 0x100000001b3L;
+			hash = (hash ^ account.getBalance().hashCode()) * 0x100000001b3L;
+		}
+
+		return "\"" + Long.toHexString(hash) + '"';
+	}
+
+	/**
+	 * @throws BalanceChangesUnavailableException
+	 *             If there is no balance engine, a 503 for the client.
+	 */
+	protected BalanceEngine balanceEngine() {
+		if (balanceEngine == null)
+			throw new BalanceChangesUnavailableException();
+
+		return balanceEngine;
+	}
+
+	/**
+	 * Find all accounts with the specified name, in id order - so the same
+	 * accounts always give the same list, and the same entity tag. Use the
+	 * index to find candidates, unless it cannot help with this search, in
+	 * which case fall back on a full repository query.
+	 */
+	protected List<Account> findByOwner(String partialName) {
+		List<Long> ids = ownerIndex == null ? null : ownerIndex
+				.search(partialName);
+
+		if (ids == null)
+			return sortById(accountRepository
+					.findByOwnerContainingIgnoreCase(partialName));
+		else if (ids.isEmpty())
+			return Collections.emptyList();
+		else
+			return sortById(accountRepository.findByIdIn(ids));
+	}
+
+	/**
+	 * Find one page of accounts with the specified name, in id order.
+	 */
+	protected List<Account> findPageByOwner(String partialName, long afterId,
+			int limit) {
+		List<Long> ids = ownerIndex == null ? null : ownerIndex.search(
+				partialName, afterId, limit);
+
+		if (ids == null)
+			return accountRepository
+					.findByOwnerContainingIgnoreCaseAndIdGreaterThan(
+							partialName, afterId,
+							PageRequest.of(0, limit, Sort.by("id")));
+		else if (ids.isEmpty())
+			return Collections.emptyList();
+
+		return sortById(accountRepository.findByIdIn(ids));
+	}
+
+	/**
+	 * @return The accounts in id order. Neither an IN query nor an unsorted
+	 *         search returns them in any particular order.
+	 */
+	protected static List<Account> sortById(List<Account> found) {
+		List<Account> accounts = new ArrayList<Account>(found);
+		accounts.sort(Comparator.comparingLong(Account::getId));
+		return accounts;
+	}
 }
@@ -0,0 +1,67 @@
+package io.pivotal.microservices.accounts;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import io.pivotal.microservices.codec.AccountsMapping;
+
+/**
+ * The accounts service's {@link Account} and {@link AccountBatch}, as written
+ * and read by a
+ * {@link io.pivotal.microservices.codec.CompactAccountsHttpMessageConverter}.
+ */
+public class AccountsServiceMapping implements AccountsMapping<Account, AccountBatch> {
+
+	@Override
+	public Class<Account> accountType() {
+		return Account.class;
+	}
+
+	@Override
+	public Class<AccountBatch> batchType() {
+		return AccountBatch.class;
+	}
+
+	@Override
+	public long getId(Account account) {
+		return account.getId();
+	}
+
+	@Override
+	public String getNumber(Account account) {
+		return account.getNumber();
+	}
+
+	@Override
+	public String getOwner(Account account) {
+		return account.getOwner();
+	}
+
+	@Override
+	public BigDecimal getBalance(Account account) {
+		return account.getBalance();
+	}
+
+	@Override
+	public Account newAccount(long id, String number, String owner, BigDecimal balance) {
+		return new Account(id, number, owner, balance);
+	}
+
+	@Override
+	public List<Account> getAccounts(AccountBatch batch) {
+		return batch.getAccounts();
+	}
+
+	@Override
+	public List<String> getMissing(AccountBatch batch) {
+		return batch.getMissing();
+	}
+
+	@Override
+	public AccountBatch newBatch(List<Account> accounts, List<String> missing) {
+		AccountBatch batch = new AccountBatch();
+		batch.accounts = accounts;
+		batch.missing = missing;
+		return batch;
+	}
+}
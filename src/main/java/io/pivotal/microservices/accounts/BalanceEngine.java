@@ -0,0 +1,657 @@
+package io.pivotal.microservices.accounts;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.pivotal.microservices.exceptions.AccountNotFoundException;
+import io.pivotal.microservices.exceptions.BalanceChangeOutcomeUnknownException;
+import io.pivotal.microservices.exceptions.BalanceChangesUnavailableException;
+import io.pivotal.microservices.exceptions.InsufficientFundsException;
+import io.pivotal.microservices.exceptions.InvalidAmountException;
+
+/**
+ * Applies deposits, withdrawals and transfers to account balances.
+ * <p>
+ * The current balance of each account changed so far is held in memory (in
+ * cents) and every change is checked and applied while holding a lock for the
+ * account. Locks are striped: an account number always maps to the same one
+ * of a fixed number of locks, so unrelated accounts are rarely contended. A
+ * transfer takes the locks for both accounts, always in stripe order, so two
+ * transfers in opposite directions cannot deadlock.
+ * <p>
+ * Changes are then queued and a single committer thread passes everything
+ * queued so far to the {@link BalanceWriter} as one batch (one database
+ * transaction), summing changes to the same account. Each caller waits until
+ * its batch has been written, so no change is acknowledged before it is
+ * durable - but many callers share the cost of each commit.
+ * <p>
+ * If a batch cannot be written its callers get an exception. The balances of
+ * the affected accounts are then reloaded from the repository, and any of their
+ * changes still queued applied again, so what is held matches what will be
+ * stored.
+ * <p>
+ * Several accounts-service instances may share the database, each with its own
+ * engine, so the balances held may be out of date. The {@link BalanceWriter}
+ * makes the final check that no account is overdrawn (see
+ * {@link JdbcBalanceWriter}). If it refuses a batch for that reason, only the
+ * changes taking money from that account fail, with an
+ * {@link InsufficientFundsException}, its balance is reloaded and the rest of
+ * the batch is written.
+ * <p>
+ * A caller that times out waiting for its change is told whether the change
+ * was dropped before it could be written, or may yet be written - see
+ * {@link #WRITE_TIMEOUT_SECONDS}.
+ * <p>
+ * Balances with nothing queued are dropped, to be reloaded on next use, when
+ * more than <code>maxBalances</code> are held.
+ * <p>
+ * Each account returned has the version its row was written at - the version
+ * loaded, plus one for every batch since that changed it - so its entity tag
+ * matches the one a later read returns, unless another instance has changed
+ * the account meanwhile.
+ */
+public class BalanceEngine implements AutoCloseable {
+
+	public static final int DEFAULT_STRIPES = 256;
+
+	public static final int MAX_BATCH_SIZE = 1000;
+
+	public static final int DEFAULT_MAX_BALANCES = 100000;
+
+	/**
+	 * Largest balance that fits in the <code>decimal(8,2)</code> balance
+	 * column, in cents.
+	 */
+	public static final long MAX_BALANCE = 99999999;
+
+	/**
+	 * How long a caller waits for its change to be written. After that, a
+	 * change still queued is dropped and the caller gets a
+	 * {@link BalanceChangesUnavailableException}. One already being written
+	 * may or may not be stored, so the caller gets a
+	 * {@link BalanceChangeOutcomeUnknownException}.
+	 */
+	public static final long WRITE_TIMEOUT_SECONDS = 30;
+
+	protected Logger logger = Logger.getLogger(BalanceEngine.class.getName());
+
+	private final AccountRepository accountRepository;
+
+	private final BalanceWriter balanceWriter;
+
+	private final ReentrantLock[] locks;
+
+	private final int maxBalances;
+
+	/** Current balances, each only read or changed under its account's lock. */
+	private final Map<String, Balance> balances = new ConcurrentHashMap<String, Balance>();
+
+	private final BlockingQueue<Change> queue = new LinkedBlockingQueue<Change>();
+
+	private final Thread committer;
+
+	/** Whether changes are accepted, checked under the account's lock. */
+	private volatile boolean running = true;
+
+	/** Set once no more changes can be queued, so the committer can finish. */
+	private volatile boolean stopped;
+
+	public BalanceEngine(AccountRepository accountRepository, BalanceWriter balanceWriter) {
+		this(accountRepository, balanceWriter, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Create an engine and start its committer thread.
+	 *
+	 * @param accountRepository
+	 *            Source of each account's balance when it is first changed.
+	 * @param balanceWriter
+	 *            Stores each batch of changes.
+	 * @param stripes
+	 *            Number of locks shared between all accounts.
+	 */
+	public BalanceEngine(AccountRepository accountRepository, BalanceWriter balanceWriter, int stripes) {
+		this(accountRepository, balanceWriter, stripes, DEFAULT_MAX_BALANCES);
+	}
+
+	/**
+	 * Create an engine and start its committer thread.
+	 *
+	 * @param accountRepository
+	 *            Source of each account's balance when it is first changed.
+	 * @param balanceWriter
+	 *            Stores each batch of changes.
+	 * @param stripes
+	 *            Number of locks shared between all accounts.
+	 * @param maxBalances
+	 *            Number of balances held before those with no changes queued
+	 *            are dropped.
+	 */
+	public BalanceEngine(AccountRepository accountRepository, BalanceWriter balanceWriter, int stripes,
+			int maxBalances) {
+		this.accountRepository = accountRepository;
+		this.balanceWriter = balanceWriter;
+		this.maxBalances = maxBalances;
+		this.locks = new ReentrantLock[stripes];
+
+		for (int i = 0; i < stripes; i++)
+			locks[i] = new ReentrantLock();
+
+		committer = new Thread(this::commitLoop, "balance-committer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Add money to an account.
+	 *
+	 * @param accountNumber
+	 *            The account.
+	 * @param amount
+	 *            A positive amount, with at most two decimal places.
+	 * @return The account, with its new balance.
+	 * @throws AccountNotFoundException
+	 *             If there is no such account.
+	 * @throws InvalidAmountException
+	 *             If the amount is not allowed, or the balance would become
+	 *             too large.
+	 */
+	public Account deposit(String accountNumber, BigDecimal amount) {
+		return change(accountNumber, toCents(amount));
+	}
+
+	/**
+	 * Take money from an account.
+	 *
+	 * @param accountNumber
+	 *            The account.
+	 * @param amount
+	 *            A positive amount, with at most two decimal places.
+	 * @return The account, with its new balance.
+	 * @throws AccountNotFoundException
+	 *             If there is no such account.
+	 * @throws InsufficientFundsException
+	 *             If the balance is less than the amount.
+	 * @throws InvalidAmountException
+	 *             If the amount is not allowed.
+	 */
+	public Account withdraw(String accountNumber, BigDecimal amount) {
+		return change(accountNumber, -toCents(amount));
+	}
+
+	/**
+	 * Move money from one account to another. Both balances change in the
+	 * same batch, so either both or neither are written.
+	 *
+	 * @param fromAccountNumber
+	 *            Account to take the money from.
+	 * @param toAccountNumber
+	 *            Account to add it to.
+	 * @param amount
+	 *            A positive amount, with at most two decimal places.
+	 * @return Both accounts with their new balances, source account first.
+	 * @throws AccountNotFoundException
+	 *             If either account does not exist.
+	 * @throws InsufficientFundsException
+	 *             If the source account's balance is less than the amount.
+	 * @throws InvalidAmountException
+	 *             If the amount is not allowed, the accounts are the same, or
+	 *             the destination balance would become too large.
+	 */
+	public List<Account> transfer(String fromAccountNumber, String toAccountNumber, BigDecimal amount) {
+		long cents = toCents(amount);
+
+		if (fromAccountNumber.equals(toAccountNumber))
+			throw new InvalidAmountException("Cannot transfer from an account to itself: " + fromAccountNumber);
+
+		int fromStripe = stripe(fromAccountNumber);
+		int toStripe = stripe(toAccountNumber);
+		ReentrantLock first = locks[Math.min(fromStripe, toStripe)];
+		ReentrantLock second = locks[Math.max(fromStripe, toStripe)];
+		Change change;
+		List<Account> accounts = new ArrayList<Account>(2);
+
+		first.lock();
+		second.lock(); // Reentrant, so fine if it is the same lock
+
+		try {
+			Balance from = balance(fromAccountNumber);
+			Balance to = balance(toAccountNumber);
+
+			if (from.cents < cents)
+				throw new InsufficientFundsException(fromAccountNumber);
+			else if (to.cents + cents > MAX_BALANCE)
+				throw new InvalidAmountException("Balance limit exceeded for account: " + toAccountNumber);
+
+			from.apply(-cents);
+			to.apply(cents);
+			accounts.add(from.toAccount());
+			accounts.add(to.toAccount());
+
+			change = new Change();
+			change.deltas.put(fromAccountNumber, -cents);
+			change.deltas.put(toAccountNumber, cents);
+			queue.add(change);
+		} finally {
+			second.unlock();
+			first.unlock();
+		}
+
+		awaitWrite(change);
+		accounts.replaceAll(account -> committed(account, change));
+		return accounts;
+	}
+
+	/**
+	 * Stop accepting changes, write any already queued and stop the committer
+	 * thread. Changes still queued once the committer has stopped - if it was
+	 * interrupted - fail at once, rather than when their callers time out.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		running = false;
+
+		// Changes are queued under their locks, so once each has been held
+		// every change that got past the running check is queued
+		for (ReentrantLock lock : locks) {
+			lock.lock();
+			lock.unlock();
+		}
+
+		stopped = true;
+		committer.join(TimeUnit.SECONDS.toMillis(WRITE_TIMEOUT_SECONDS));
+
+		if (committer.isAlive()) {
+			logger.warning("Balance committer still writing after " + WRITE_TIMEOUT_SECONDS + " seconds");
+			return;
+		}
+
+		List<Change> unwritten = new ArrayList<Change>();
+		queue.drainTo(unwritten);
+
+		if (!unwritten.isEmpty())
+			commit(unwritten, new IllegalStateException("Balance engine has been closed"));
+	}
+
+	protected Account change(String accountNumber, long cents) {
+		ReentrantLock lock = locks[stripe(accountNumber)];
+		Change change;
+		Account account;
+
+		lock.lock();
+
+		try {
+			Balance balance = balance(accountNumber);
+
+			if (balance.cents + cents < 0)
+				throw new InsufficientFundsException(accountNumber);
+			else if (balance.cents + cents > MAX_BALANCE)
+				throw new InvalidAmountException("Balance limit exceeded for account: " + accountNumber);
+
+			balance.apply(cents);
+			account = balance.toAccount();
+
+			change = new Change();
+			change.deltas.put(accountNumber, cents);
+			queue.add(change);
+		} finally {
+			lock.unlock();
+		}
+
+		awaitWrite(change);
+		return committed(account, change);
+	}
+
+	/**
+	 * The current balance of an account, loading it if necessary. Only called
+	 * with the account's lock held.
+	 */
+	private Balance balance(String accountNumber) {
+		if (!running)
+			throw new IllegalStateException("Balance engine has been closed");
+
+		Balance balance = balances.get(accountNumber);
+
+		if (balance == null) {
+			Account account = accountRepository.findByNumber(accountNumber);
+
+			if (account == null)
+				throw new AccountNotFoundException(accountNumber);
+
+			balance = new Balance(account);
+			balances.put(accountNumber, balance);
+		}
+
+		return balance;
+	}
+
+	/**
+	 * @return The account, at the version the change was written at.
+	 */
+	private static Account committed(Account account, Change change) {
+		return new Account(account.getId(), account.getNumber(), account.getOwner(), account.getBalance(),
+				change.versions.get(account.getNumber()));
+	}
+
+	private void awaitWrite(Change change) {
+		try {
+			change.written.get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			// Refused by the writer, a stored balance being lower than the one held
+			if (e.getCause() instanceof InsufficientFundsException)
+				throw new InsufficientFundsException(((InsufficientFundsException) e.getCause()).getAccountNumber());
+
+			throw new IllegalStateException("Balance change could not be written", e.getCause());
+		} catch (TimeoutException e) {
+			if (queue.remove(change)) {
+				undo(change);
+				throw new BalanceChangesUnavailableException(
+						"Timed out waiting for balance change to be written, so it was not made");
+			}
+
+			throw new BalanceChangeOutcomeUnknownException(
+					"Timed out waiting for balance change to be written, it may or may not have been made", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for balance change to be written", e);
+		}
+	}
+
+	/**
+	 * Take back a change removed from the queue before it was written.
+	 */
+	private void undo(Change change) {
+		for (Map.Entry<String, Long> delta : change.deltas.entrySet()) {
+			ReentrantLock lock = locks[stripe(delta.getKey())];
+			lock.lock();
+
+			try {
+				Balance balance = balances.get(delta.getKey()); // Kept while queued
+				balance.cents -= delta.getValue();
+				balance.queued--;
+				balance.pending -= delta.getValue();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Write everything queued, a batch at a time, until closed and the queue
+	 * is empty.
+	 */
+	private void commitLoop() {
+		List<Change> batch = new ArrayList<Change>();
+
+		while (!stopped || !queue.isEmpty()) {
+			try {
+				Change first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+				if (first == null)
+					continue;
+
+				batch.add(first);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.warning("Balance committer interrupted, " + queue.size() + " changes not written");
+				return;
+			}
+
+			queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+
+			if (!batch.isEmpty())
+				commit(batch);
+
+			batch.clear();
+		}
+	}
+
+	private void commit(List<Change> batch) {
+		commit(batch, null);
+	}
+
+	/**
+	 * Write a batch, unless it has already failed, then settle its changes and
+	 * tell their callers. If the writer finds an account would be overdrawn,
+	 * the withdrawals from it are refused and the rest written without them.
+	 */
+	private void commit(List<Change> batch, RuntimeException failed) {
+		List<Change> writing = batch;
+		RuntimeException failure = failed;
+
+		while (failure == null && !writing.isEmpty()) {
+			try {
+				balanceWriter.write(sum(writing, null));
+				break;
+			} catch (InsufficientFundsException e) {
+				List<Change> refused = new ArrayList<Change>();
+				List<Change> rest = new ArrayList<Change>();
+
+				for (Change change : writing) {
+					Long delta = change.deltas.get(e.getAccountNumber());
+					(delta != null && delta < 0 ? refused : rest).add(change);
+				}
+
+				logger.fine(() -> "Stored balance of " + e.getAccountNumber() + " too low for "
+						+ refused.size() + " changes");
+
+				if (refused.isEmpty()) {
+					failure = e;
+				} else {
+					settle(refused, e);
+					writing = rest;
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "Failed to write " + writing.size() + " balance changes", e);
+				failure = e;
+			}
+		}
+
+		settle(writing, failure);
+
+		if (balances.size() > maxBalances)
+			evictIdle();
+	}
+
+	/**
+	 * @return The total change to each account, keyed by account number.
+	 * @param counts
+	 *            If not null, set to the number of changes to each account.
+	 */
+	private static Map<String, Long> sum(List<Change> changes, Map<String, Integer> counts) {
+		Map<String, Long> deltas = new LinkedHashMap<String, Long>();
+
+		for (Change change : changes) {
+			for (Map.Entry<String, Long> delta : change.deltas.entrySet()) {
+				deltas.merge(delta.getKey(), delta.getValue(), Long::sum);
+
+				if (counts != null)
+					counts.merge(delta.getKey(), 1, Integer::sum);
+			}
+		}
+
+		return deltas;
+	}
+
+	/**
+	 * Settle changes that have been written, or have failed, and tell their
+	 * callers.
+	 *
+	 * @param failure
+	 *            Why they were not written, null if they were.
+	 */
+	private void settle(List<Change> changes, RuntimeException failure) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Map<String, Long> deltas = sum(changes, counts);
+		Map<String, Long> versions = new HashMap<String, Long>();
+
+		for (Map.Entry<String, Long> delta : deltas.entrySet())
+			versions.put(delta.getKey(),
+					settle(delta.getKey(), delta.getValue(), counts.get(delta.getKey()), failure != null));
+
+		for (Change change : changes) {
+			if (failure == null) {
+				for (String accountNumber : change.deltas.keySet())
+					change.versions.put(accountNumber, versions.get(accountNumber));
+
+				change.written.complete(null);
+			} else {
+				change.written.completeExceptionally(failure);
+			}
+		}
+	}
+
+	/**
+	 * Remove a batch's changes to an account from those queued. If the batch
+	 * failed, the balance held still includes them, so reload the stored
+	 * balance and apply the changes still queued. No batch is being written
+	 * meanwhile - or, if some changes were refused, the rest of their batch is
+	 * not yet written - so the stored balance includes none of those.
+	 * <p>
+	 * Each batch writes an account's row once, so one that succeeded adds one
+	 * to its version.
+	 *
+	 * @return The account's version once the batch has been settled.
+	 */
+	private long settle(String accountNumber, long cents, int changes, boolean failed) {
+		ReentrantLock lock = locks[stripe(accountNumber)];
+		lock.lock();
+
+		try {
+			Balance balance = balances.get(accountNumber); // Kept while queued
+			balance.queued -= changes;
+			balance.pending -= cents;
+
+			if (failed) {
+				try {
+					Account stored = accountRepository.findByNumber(accountNumber);
+					balance.cents = Balance.toCents(stored) + balance.pending;
+					balance.version = stored.getVersion();
+				} catch (RuntimeException e) {
+					// Writes are all or nothing, so none of the batch is stored
+					logger.log(Level.WARNING, "Unable to reload balance of " + accountNumber, e);
+					balance.cents -= cents;
+				}
+			} else {
+				balance.version++;
+			}
+
+			return balance.version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop balances with no changes queued, which match those stored, until
+	 * no more than <code>maxBalances</code> are held.
+	 */
+	private void evictIdle() {
+		for (String accountNumber : balances.keySet()) {
+			if (balances.size() <= maxBalances)
+				return;
+
+			ReentrantLock lock = locks[stripe(accountNumber)];
+			lock.lock();
+
+			try {
+				Balance balance = balances.get(accountNumber);
+
+				if (balance != null && balance.queued == 0)
+					balances.remove(accountNumber);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of balances held.
+	 */
+	protected int balancesHeld() {
+		return balances.size();
+	}
+
+	private int stripe(String accountNumber) {
+		int h = accountNumber.hashCode() * 0x9E3779B9;
+		return ((h ^ (h >>> 16)) & 0x7fffffff) % locks.length;
+	}
+
+	/**
+	 * Convert an amount to cents.
+	 *
+	 * @throws InvalidAmountException
+	 *             If the amount is not positive, has more than two decimal
+	 *             places or exceeds the largest balance allowed.
+	 */
+	protected static long toCents(BigDecimal amount) {
+		if (amount == null || amount.signum() <= 0)
+			throw new InvalidAmountException("Amount must be positive: " + amount);
+		else if (amount.stripTrailingZeros().scale() > 2)
+			throw new InvalidAmountException("Amount cannot include fractions of a cent: " + amount);
+		else if (amount.compareTo(BigDecimal.valueOf(MAX_BALANCE, 2)) > 0)
+			throw new InvalidAmountException("Amount too large: " + amount);
+
+		return amount.movePointRight(2).longValueExact();
+	}
+
+	/**
+	 * An account, its current balance and the changes to it not yet written.
+	 */
+	private static class Balance {
+		final Account account;
+		long cents;
+
+		/** Version of the row as last written. */
+		long version;
+
+		/** Number of changes queued, and their total. */
+		int queued;
+		long pending;
+
+		Balance(Account account) {
+			this.account = account;
+			this.cents = toCents(account);
+			this.version = account.getVersion();
+		}
+
+		static long toCents(Account account) {
+			return account.getBalance().movePointRight(2).longValueExact();
+		}
+
+		void apply(long delta) {
+			cents += delta;
+			queued++;
+			pending += delta;
+		}
+
+		Account toAccount() {
+			return new Account(account.getId(), account.getNumber(), account.getOwner(), BigDecimal.valueOf(cents, 2));
+		}
+	}
+
+	/**
+	 * Balance changes made by one operation, written in the same batch.
+	 */
+	private static class Change {
+		final Map<String, Long> deltas = new LinkedHashMap<String, Long>(4);
+
+		/** Version each account was written at, set before written completes. */
+		final Map<String, Long> versions = new HashMap<String, Long>(4);
+		final CompletableFuture<Void> written = new CompletableFuture<Void>();
+	}
+}
@@ -0,0 +1,33 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.Map;
+
+/**
+ * Stores the balance changes made by a {@link BalanceEngine}.
+ */
+public interface BalanceWriter {
+
+	/**
+	 * Apply a batch of balance changes, all or none of them.
+	 *
+	 * @param deltas
+	 *            The amount, in cents, to add to the balance of each account
+	 *            (negative for a net withdrawal), keyed by account number.
+	 */
+	void write(Map<String, Long> deltas);
+
+	/**
+	 * Combine two writers, so that each batch is written by this writer and
+	 * then, if that succeeds, by the next one.
+	 *
+	 * @param next
+	 *            The writer to use second.
+	 * @return The combined writer.
+	 */
+	default BalanceWriter andThen(BalanceWriter next) {
+		return deltas -> {
+			write(deltas);
+			next.write(deltas);
+		};
+	}
+}
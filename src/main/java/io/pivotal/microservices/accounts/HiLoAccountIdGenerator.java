@@ -0,0 +1,97 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Allocates account ids from blocks reserved in advance (the "hi/lo"
+ * algorithm). Ids within the current block are handed out using an atomic
+ * increment, so callers never block each other. Only when a block runs out
+ * does one thread reserve the next from the {@link AccountIdBlockSource} -
+ * a database round-trip every <code>blockSize</code> ids instead of on every
+ * id.
+ * <p>
+ * When the block source is shared (such as {@link JdbcAccountIdBlockSource}
+ * with a common database) ids are unique across every process using it. Ids
+ * not used before a process stops are simply lost, leaving gaps.
+ */
+public class HiLoAccountIdGenerator implements AccountIdGenerator {
+
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
+	protected Logger logger = Logger.getLogger(HiLoAccountIdGenerator.class
+			.getName());
+
+	private final AccountIdBlockSource blockSource;
+
+	private final int blockSize;
+
+	private volatile Block block = new Block(0, 0);
+
+	/**
+	 * Create a generator. No block is reserved until the first id is needed.
+	 *
+	 * @param blockSource
+	 *            Reserves each block of ids.
+	 * @param blockSize
+	 *            Number of ids to reserve at a time.
+	 */
+	public HiLoAccountIdGenerator(AccountIdBlockSource blockSource,
+			int blockSize) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("Block size must be positive: "
+					+ blockSize);
+
+		this.blockSource = blockSource;
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public long nextId() {
+		while (true) {
+			Block current = block;
+			long id = current.next.getAndIncrement();
+
+			if (id < current.end)
+				return id;
+
+			nextBlock(current);
+		}
+	}
+
+	/**
+	 * Replace an exhausted block. Threads arriving while another is already
+	 * doing so wait for it, then use its block.
+	 */
+	private synchronized void nextBlock(Block exhausted) {
+		if (block != exhausted)
+			return;
+
+		long first = blockSource.allocate(blockSize);
+		block = new Block(first, first + blockSize);
+		logger.fine("Reserved account ids " + first + " to "
+				+ (first + blockSize - 1));
+	}
+
+	/**
+	 * A generator whose ids are only unique within this JVM, starting from
+	 * zero. For tests and accounts not held in the database.
+	 *
+	 * @return A new generator.
+	 */
+	public static HiLoAccountIdGenerator local() {
+		AtomicLong nextId = new AtomicLong();
+		return new HiLoAccountIdGenerator(size -> nextId.getAndAdd(size),
+				DEFAULT_BLOCK_SIZE);
+	}
+
+	private static class Block {
+		final AtomicLong next;
+		final long end;
+
+		Block(long first, long end) {
+			this.next = new AtomicLong(first);
+			this.end = end;
+		}
+	}
+}
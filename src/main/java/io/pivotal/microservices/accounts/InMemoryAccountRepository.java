@@ -0,0 +1,564 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+import org.springframework.data.domain.Pageable;
+
+/**
+ * Repository for Account data held entirely in memory. Enabled by running with
+ * the {@link AccountsConfiguration#IN_MEMORY_PROFILE} profile, when it replaces
+ * the Spring Data JPA repository so that lookups need no database round-trip.
+ * <p>
+ * Account numbers are 9 digit strings, so are held as <code>int</code> keys in
+ * an open-addressing hash table. The accounts themselves are stored in
+ * parallel arrays (balances in cents) and an {@link Account} is only created
+ * when one is returned. Reads use optimistic {@link StampedLock} stamps, so do
+ * not contend with each other.
+ * <p>
+ * Balance changes made by a {@link BalanceEngine} are applied here as well as
+ * to the database, since this repository is also a {@link BalanceWriter}.
+ * Each change, or replacement of an account, increments the account's version.
+ * Versions are not loaded or saved, so start at zero.
+ */
+public class InMemoryAccountRepository implements AccountRepository, BalanceWriter, AccountSink {
+
+	public static final int NUMBER_LENGTH = 9;
+
+	private static final int EMPTY = -1;
+
+	private final StampedLock lock = new StampedLock();
+
+	// Account records, indexed by record number
+	private long[] ids;
+	private int[] numbers;
+	private String[] owners;
+	private String[] foldedOwners;
+	private long[] balances;
+	private long[] versions;
+	private int size;
+
+	// Record numbers in ascending order of id. Ids are normally assigned, and
+	// so added, in order - otherwise this is sorted again before it is next
+	// used.
+	private int[] byId;
+	private boolean byIdUnsorted;
+
+	// Open-addressing tables mapping account number and id to record number.
+	// Each key is stored next to its record number plus one, so a zero entry
+	// is an empty slot, new tables need no filling and a lookup usually
+	// touches a single cache line.
+	private long[] numberTable;
+	private long[] idTable;
+
+	public InMemoryAccountRepository() {
+		this(1024);
+	}
+
+	/**
+	 * Create an empty repository.
+	 *
+	 * @param expectedSize
+	 *            Expected number of accounts, to avoid resizing while loading.
+	 */
+	public InMemoryAccountRepository(int expectedSize) {
+		int capacity = Math.max(16, expectedSize);
+		ids = new long[capacity];
+		numbers = new int[capacity];
+		owners = new String[capacity];
+		foldedOwners = new String[capacity];
+		balances = new long[capacity];
+		versions = new long[capacity];
+		byId = new int[capacity];
+		createTables(tableSizeFor(capacity));
+	}
+
+	/**
+	 * Add an account, or replace the account with the same number.
+	 *
+	 * @param id
+	 *            Unique account id.
+	 * @param number
+	 *            A numeric, 9 digit account number.
+	 * @param owner
+	 *            Name of the account owner.
+	 * @param balance
+	 *            Current balance, may be null.
+	 * @throws IllegalArgumentException
+	 *             If the account number is not 9 digits.
+	 */
+	public void add(long id, String number, String owner, BigDecimal balance) {
+		int key = parseNumber(number);
+
+		if (key == EMPTY)
+			throw new IllegalArgumentException("Account number should be 9 digits: " + number);
+
+		long cents = balance == null ? 0
+				: balance.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+		add(id, key, owner, fold(owner), cents);
+	}
+
+	/**
+	 * Add an account, or replace the account with the same number, without
+	 * any conversions. Used to load generated accounts directly.
+	 */
+	@Override
+	public void add(long id, int number, String owner, String foldedOwner, long balance) {
+		long stamp = lock.writeLock();
+
+		try {
+			put(id, number, owner, foldedOwner, balance);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Add every account in a snapshot, holding the write lock throughout
+	 * rather than taking it for each account.
+	 *
+	 * @param snapshot
+	 *            An {@link AccountSnapshot} file.
+	 * @return The snapshot's header.
+	 * @throws IOException
+	 *             If the snapshot cannot be read.
+	 */
+	public AccountSnapshot.Header load(Path snapshot) throws IOException {
+		long stamp = lock.writeLock();
+
+		try {
+			return AccountSnapshot.read(snapshot, this::put);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Pass every account to the sink, without creating an {@link Account} for
+	 * each one. Blocks changes until finished.
+	 *
+	 * @param sink
+	 *            Receives each account.
+	 */
+	public void forEach(AccountSink sink) {
+		long stamp = lock.readLock();
+
+		try {
+			for (int record = 0; record < size; record++)
+				sink.add(ids[record], numbers[record], owners[record], foldedOwners[record], balances[record]);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Apply a batch of balance changes. Accounts that do not exist are
+	 * ignored, as an SQL <code>UPDATE</code> would.
+	 */
+	@Override
+	public void write(Map<String, Long> deltas) {
+		long stamp = lock.writeLock();
+
+		try {
+			for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+				int key = parseNumber(delta.getKey());
+				int record = key == EMPTY ? EMPTY : recordForNumber(numberTable, key);
+
+				if (record != EMPTY) {
+					balances[record] += delta.getValue();
+					versions[record]++;
+				}
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public Account findByNumber(String accountNumber) {
+		int key = parseNumber(accountNumber);
+
+		if (key == EMPTY)
+			return null;
+
+		long stamp = lock.tryOptimisticRead();
+		Account account = readByNumber(key);
+
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+
+			try {
+				account = readByNumber(key);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		return account;
+	}
+
+	@Override
+	public List<Account> findByNumberIn(Collection<String> accountNumbers) {
+		List<Account> accounts = new ArrayList<Account>(accountNumbers.size());
+
+		for (String accountNumber : accountNumbers) {
+			Account account = findByNumber(accountNumber);
+
+			if (account != null)
+				accounts.add(account);
+		}
+
+		return accounts;
+	}
+
+	@Override
+	public List<Account> findByOwnerContainingIgnoreCase(String partialName) {
+		String text = fold(partialName);
+		long stamp = lock.readLock();
+
+		try {
+			List<Account> accounts = new ArrayList<Account>();
+
+			for (int record = 0; record < size; record++) {
+				if (foldedOwners[record].contains(text))
+					accounts.add(toAccount(record));
+			}
+
+			return accounts;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the page's worth of accounts is held at a time, so this is safe
+	 * however many accounts match, and records are read in id order starting
+	 * after <code>afterId</code>, so each page only reads as far as its last
+	 * match. Always sorts by id.
+	 */
+	@Override
+	public List<Account> findByOwnerContainingIgnoreCaseAndIdGreaterThan(String partialName, long afterId,
+			Pageable pageable) {
+		String text = fold(partialName);
+		int limit = pageable.getPageSize();
+		long stamp = lock.readLock();
+
+		try {
+			if (byIdUnsorted) {
+				lock.unlockRead(stamp);
+				stamp = lock.writeLock();
+				sortById();
+				stamp = lock.tryConvertToReadLock(stamp);
+			}
+
+			List<Account> accounts = new ArrayList<Account>(limit);
+
+			for (int i = firstAfter(afterId); i < size && accounts.size() < limit; i++) {
+				int record = byId[i];
+
+				if (foldedOwners[record].contains(text))
+					accounts.add(toAccount(record));
+			}
+
+			return accounts;
+		} finally {
+			lock.unlock(stamp);
+		}
+	}
+
+	@Override
+	public List<Account> findByIdIn(Collection<Long> ids) {
+		long stamp = lock.readLock();
+
+		try {
+			List<Account> accounts = new ArrayList<Account>(ids.size());
+
+			for (Long id : ids) {
+				int record = recordForId(idTable, id);
+
+				if (record != EMPTY)
+					accounts.add(toAccount(record));
+			}
+
+			return accounts;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public List<Account> findAll() {
+		long stamp = lock.readLock();
+
+		try {
+			List<Account> accounts = new ArrayList<Account>(size);
+
+			for (int record = 0; record < size; record++)
+				accounts.add(toAccount(record));
+
+			return accounts;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public int countAccounts() {
+		long stamp = lock.tryOptimisticRead();
+		int count = size;
+
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			count = size;
+			lock.unlockRead(stamp);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Look up an account without locking. Under an optimistic read the arrays
+	 * may be replaced or modified concurrently, so any failure here is treated
+	 * as a miss - the caller validates the stamp and retries if necessary.
+	 */
+	private Account readByNumber(int key) {
+		try {
+			int record = recordForNumber(numberTable, key);
+			return record == EMPTY ? null : toAccount(record);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Binary search for the first position in {@link #byId} whose record has an
+	 * id greater than the one specified.
+	 */
+	private int firstAfter(long id) {
+		int low = 0, high = size;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (ids[byId[middle]] <= id)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Put {@link #byId} back in id order. Only called with the write lock held.
+	 */
+	private void sortById() {
+		if (!byIdUnsorted)
+			return;
+
+		Integer[] records = new Integer[size];
+
+		for (int record = 0; record < size; record++)
+			records[record] = record;
+
+		Arrays.sort(records, Comparator.comparingLong(record -> ids[record]));
+
+		for (int i = 0; i < size; i++)
+			byId[i] = records[i];
+
+		byIdUnsorted = false;
+	}
+
+	/**
+	 * Add or replace an account. Only called with the write lock held.
+	 */
+	private void put(long id, int number, String owner, String foldedOwner, long balance) {
+		int slot = probeNumber(numberTable, number);
+		int record = (int) numberTable[slot] - 1;
+
+		if (record == EMPTY) {
+			if (size == ids.length) {
+				grow();
+				slot = probeNumber(numberTable, number);
+			}
+
+			record = size++;
+			numbers[record] = number;
+			ids[record] = id;
+			numberTable[slot] = (long) number << 32 | (record + 1);
+			insertId(record);
+
+			if (record > 0 && ids[byId[record - 1]] > id)
+				byIdUnsorted = true;
+
+			byId[record] = record;
+		} else {
+			versions[record]++;
+
+			if (ids[record] != id) {
+				ids[record] = id;
+				rehashIds();
+				byIdUnsorted = true;
+			}
+		}
+
+		owners[record] = owner;
+		foldedOwners[record] = foldedOwner;
+		balances[record] = balance;
+	}
+
+	private Account toAccount(int record) {
+		return new Account(ids[record], formatNumber(numbers[record]), owners[record],
+				BigDecimal.valueOf(balances[record], 2), versions[record]);
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		numbers = Arrays.copyOf(numbers, capacity);
+		owners = Arrays.copyOf(owners, capacity);
+		foldedOwners = Arrays.copyOf(foldedOwners, capacity);
+		balances = Arrays.copyOf(balances, capacity);
+		versions = Arrays.copyOf(versions, capacity);
+		byId = Arrays.copyOf(byId, capacity);
+
+		createTables(tableSizeFor(capacity));
+
+		for (int record = 0; record < size; record++)
+			insert(record);
+	}
+
+	private void insert(int record) {
+		int slot = probeNumber(numberTable, numbers[record]);
+		numberTable[slot] = (long) numbers[record] << 32 | (record + 1);
+		insertId(record);
+	}
+
+	private void insertId(int record) {
+		int slot = probeId(idTable, ids[record]);
+		idTable[slot] = ids[record];
+		idTable[slot + 1] = record + 1;
+	}
+
+	/**
+	 * Rebuild the id table after an account's id changes, since linear probing
+	 * does not allow entries to simply be cleared.
+	 */
+	private void rehashIds() {
+		Arrays.fill(idTable, 0);
+
+		for (int record = 0; record < size; record++)
+			insertId(record);
+	}
+
+	private void createTables(int tableSize) {
+		numberTable = new long[tableSize];
+		idTable = new long[tableSize * 2];
+	}
+
+	/**
+	 * The record holding an account number, or EMPTY if there is none.
+	 */
+	private static int recordForNumber(long[] numberTable, int key) {
+		return (int) numberTable[probeNumber(numberTable, key)] - 1;
+	}
+
+	/**
+	 * The record holding an account id, or EMPTY if there is none.
+	 */
+	private static int recordForId(long[] idTable, long id) {
+		return (int) idTable[probeId(idTable, id) + 1] - 1;
+	}
+
+	/**
+	 * Find the slot holding the account number, or the empty slot where it
+	 * would go. Account numbers are the high half of each entry.
+	 */
+	private static int probeNumber(long[] numberTable, int key) {
+		int mask = numberTable.length - 1;
+		int slot = mix(key) & mask;
+
+		while (numberTable[slot] != 0 && (int) (numberTable[slot] >>> 32) != key)
+			slot = (slot + 1) & mask;
+
+		return slot;
+	}
+
+	/**
+	 * Find the slot holding the id, or the empty slot where it would go. Each
+	 * slot is two entries, the id and then its record. Ids are allocated in
+	 * consecutive blocks, so are not mixed - consecutive ids take consecutive
+	 * slots, which makes loading accounts in id order cache friendly.
+	 */
+	private static int probeId(long[] idTable, long id) {
+		int mask = idTable.length - 2;
+		int slot = ((int) (id ^ (id >>> 32)) << 1) & mask;
+
+		while (idTable[slot + 1] != 0 && idTable[slot] != id)
+			slot = (slot + 2) & mask;
+
+		return slot;
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Power of two table size giving a load factor of at most three quarters.
+	 */
+	private static int tableSizeFor(int capacity) {
+		return Integer.highestOneBit((int) (capacity * 4L / 3) - 1) << 1;
+	}
+
+	/**
+	 * Convert a 9 digit account number to an int, without boxing.
+	 *
+	 * @return The number, or -1 if the string is not 9 digits.
+	 */
+	protected static int parseNumber(String accountNumber) {
+		if (accountNumber == null || accountNumber.length() != NUMBER_LENGTH)
+			return EMPTY;
+
+		int value = 0;
+
+		for (int i = 0; i < NUMBER_LENGTH; i++) {
+			char c = accountNumber.charAt(i);
+
+			if (c < '0' || c > '9')
+				return EMPTY;
+
+			value = value * 10 + (c - '0');
+		}
+
+		return value;
+	}
+
+	protected static String formatNumber(int number) {
+		char[] digits = new char[NUMBER_LENGTH];
+
+		for (int i = NUMBER_LENGTH - 1; i >= 0; i--) {
+			digits[i] = (char) ('0' + number % 10);
+			number /= 10;
+		}
+
+		return new String(digits);
+	}
+
+	private static String fold(String name) {
+		return name == null ? "" : name.toUpperCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,64 @@
+package io.pivotal.microservices.accounts;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Reserves blocks of account ids using the single row of the
+ * <code>T_ACCOUNT_ID_BLOCK</code> table, which holds the next unreserved id.
+ * The row is updated before it is read, so the row lock serializes
+ * concurrent reservations from any number of accounts-service instances
+ * sharing the database.
+ * <p>
+ * Each reservation runs in its own transaction, so it is never rolled back
+ * with (or held locked by) the caller's transaction.
+ */
+public class JdbcAccountIdBlockSource implements AccountIdBlockSource {
+
+	public static final String TABLE_NAME = "T_ACCOUNT_ID_BLOCK";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TransactionTemplate transactionTemplate;
+
+	public JdbcAccountIdBlockSource(DataSource dataSource) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionTemplate = new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource));
+		this.transactionTemplate.setPropagationBehavior(
+				TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+	}
+
+	@Override
+	public long allocate(int size) {
+		Long first = transactionTemplate.execute(status -> {
+			int updated = jdbcTemplate.update("UPDATE " + TABLE_NAME
+					+ " SET next_id = next_id + ?", size);
+
+			if (updated != 1)
+				throw new IllegalStateException(TABLE_NAME
+						+ " should have exactly one row, found " + updated);
+
+			return jdbcTemplate.queryForObject("SELECT next_id FROM "
+					+ TABLE_NAME, Long.class) - size;
+		});
+
+		return first;
+	}
+
+	/**
+	 * Make sure ids up to and including the one specified are never
+	 * allocated, after loading accounts that already have ids.
+	 *
+	 * @param id
+	 *            The highest id in use.
+	 */
+	public void reserveThrough(long id) {
+		jdbcTemplate.update("UPDATE " + TABLE_NAME
+				+ " SET next_id = ? WHERE next_id <= ?", id + 1, id);
+	}
+}
@@ -0,0 +1,135 @@
+package io.pivotal.microservices.accounts;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Inserts accounts into <code>T_ACCOUNT</code> in bulk using JDBC batches,
+ * committing every {@link #BATCH_SIZE} rows instead of once per row.
+ */
+public class JdbcAccountLoader implements AccountSink, AutoCloseable {
+
+	public static final int BATCH_SIZE = 10000;
+
+	protected Logger logger = Logger.getLogger(JdbcAccountLoader.class
+			.getName());
+
+	private final Connection connection;
+
+	private final PreparedStatement insert;
+
+	private int batched;
+
+	private long loaded;
+
+	public JdbcAccountLoader(DataSource dataSource) throws SQLException {
+		connection = dataSource.getConnection();
+		connection.setAutoCommit(false);
+		insert = connection.prepareStatement("INSERT INTO T_ACCOUNT"
+				+ " (id, number, name, balance) VALUES (?, ?, ?, ?)");
+	}
+
+	@Override
+	public void add(long id, int number, String owner, String foldedOwner,
+			long balance) {
+		try {
+			insert.setLong(1, id);
+			insert.setString(2, InMemoryAccountRepository.formatNumber(number));
+			insert.setString(3, owner);
+			insert.setBigDecimal(4, BigDecimal.valueOf(balance, 2));
+			insert.addBatch();
+
+			if (++batched == BATCH_SIZE)
+				flush();
+		} catch (SQLException e) {
+			throw new IllegalStateException("Failed to insert account " + id,
+					e);
+		}
+	}
+
+	/**
+	 * Pass every account in <code>T_ACCOUNT</code> to the sink.
+	 *
+	 * @param dataSource
+	 *            The accounts database.
+	 * @param sink
+	 *            Receives each account.
+	 */
+	public static void forEach(DataSource dataSource, AccountSink sink) {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.setFetchSize(BATCH_SIZE);
+		jdbcTemplate.query("SELECT id, number, name, balance FROM T_ACCOUNT",
+				(RowCallbackHandler) rs -> {
+					String owner = rs.getString("name");
+					BigDecimal balance = rs.getBigDecimal("balance");
+
+					sink.add(rs.getLong("id"), InMemoryAccountRepository
+							.parseNumber(rs.getString("number")), owner, owner
+							.toUpperCase(Locale.ROOT), balance == null ? 0
+							: balance.movePointRight(2).longValueExact());
+				});
+	}
+
+	/**
+	 * Pass the id and owner of every account in <code>T_ACCOUNT</code> to the
+	 * sink, for uses that need nothing else. The number and balance passed are
+	 * always 0.
+	 *
+	 * @param dataSource
+	 *            The accounts database.
+	 * @param sink
+	 *            Receives each account.
+	 */
+	public static void forEachOwner(DataSource dataSource, AccountSink sink) {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.setFetchSize(BATCH_SIZE);
+		jdbcTemplate.query("SELECT id, name FROM T_ACCOUNT",
+				(RowCallbackHandler) rs -> {
+					String owner = rs.getString("name");
+
+					sink.add(rs.getLong("id"), 0, owner, owner == null ? null
+							: owner.toUpperCase(Locale.ROOT), 0);
+				});
+	}
+
+	/**
+	 * Insert and commit any accounts not yet written.
+	 */
+	public void flush() throws SQLException {
+		if (batched > 0) {
+			insert.executeBatch();
+			connection.commit();
+			loaded += batched;
+			batched = 0;
+		}
+	}
+
+	/**
+	 * Number of accounts inserted so far.
+	 */
+	public long getLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Write any remaining accounts and release the connection.
+	 */
+	@Override
+	public void close() throws SQLException {
+		try {
+			flush();
+		} finally {
+			insert.close();
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package io.pivotal.microservices.accounts;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.pivotal.microservices.exceptions.InsufficientFundsException;
+
+/**
+ * Writes each batch of balance changes to <code>T_ACCOUNT</code> as a single
+ * JDBC batch in one transaction, so the cost of a commit is shared by every
+ * change in the batch. Each account's version is incremented too.
+ * <p>
+ * Every account must be in the table: if one is not, nothing in the batch is
+ * written and an {@link IllegalStateException} is thrown, rather than the
+ * change being silently lost.
+ * <p>
+ * No balance is taken below zero, checked by the <code>UPDATE</code> itself:
+ * other accounts-service instances may share the database, so the balance
+ * checked by this instance's {@link BalanceEngine} may be out of date. If an
+ * account would be overdrawn nothing in the batch is written and an
+ * {@link InsufficientFundsException} is thrown.
+ */
+public class JdbcBalanceWriter implements BalanceWriter {
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TransactionTemplate transactionTemplate;
+
+	public JdbcBalanceWriter(DataSource dataSource) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.transactionTemplate = new TransactionTemplate(
+				new DataSourceTransactionManager(dataSource));
+	}
+
+	@Override
+	public void write(Map<String, Long> deltas) {
+		List<Object[]> args = new ArrayList<Object[]>(deltas.size());
+
+		for (Map.Entry<String, Long> delta : deltas.entrySet())
+			args.add(new Object[] { BigDecimal.valueOf(delta.getValue(), 2),
+					delta.getKey(), BigDecimal.valueOf(delta.getValue(), 2) });
+
+		transactionTemplate.executeWithoutResult(status -> {
+			int[] updated = jdbcTemplate.batchUpdate("UPDATE T_ACCOUNT"
+					+ " SET balance = coalesce(balance, 0) + ?, version = version + 1"
+					+ " WHERE number = ? AND coalesce(balance, 0) + ? >= 0",
+					args);
+
+			// Some drivers report success without a count, never as zero
+			for (int i = 0; i < updated.length; i++) {
+				if (updated[i] == 0)
+					throw notUpdated((String) args.get(i)[1]);
+			}
+		});
+	}
+
+	/**
+	 * @return Why an account was not updated: it would have been overdrawn,
+	 *         or it is not in the database.
+	 */
+	private RuntimeException notUpdated(String accountNumber) {
+		Integer found = jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM T_ACCOUNT WHERE number = ?",
+				Integer.class, accountNumber);
+
+		if (found != null && found > 0)
+			return new InsufficientFundsException(accountNumber);
+		else
+			return new IllegalStateException("Account " + accountNumber
+					+ " is not in the database");
+	}
+}
@@ -0,0 +1,614 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Makes balance changes durable by appending them to a journal file before
+ * passing them on to another {@link BalanceWriter}, such as the
+ * {@link JdbcBalanceWriter} for the (in-memory, so not durable) database.
+ * <p>
+ * The journal is written through a memory-mapped file. Each batch from the
+ * {@link BalanceEngine} becomes one record, followed by a single
+ * <code>force()</code>, so one fsync covers every change in the batch.
+ * Records hold a sequence number and a CRC, so a record torn by a crash is
+ * detected and ignored.
+ * <p>
+ * Periodically, and whenever the journal fills up, it is compacted. The
+ * journal is in two halves, and records are appended to one of them at a time.
+ * Compaction reads the last snapshot and adds every record since, without
+ * holding the writer's lock or reading the repository, so balance writes carry
+ * on meanwhile. The new snapshot is written to a temporary file, and only
+ * renaming it into place, and switching to the other half of the journal
+ * (emptying it), are done with the lock held. The snapshot records the last
+ * sequence number it includes, so journal records it already covers are never
+ * applied twice.
+ * <p>
+ * On startup the snapshot and any later journal records are replayed, and the
+ * difference from the balances currently in the repository is written to the
+ * target writer.
+ * <p>
+ * If the target fails and the record reversing the changes cannot be appended
+ * either, the journal holds changes the target never stored. The record is
+ * then erased, so recovery does not replay it, and the journal refuses every
+ * later write - and is not compacted - until it is reopened.
+ */
+public class JournalingBalanceWriter implements BalanceWriter, Closeable {
+
+	public static final String JOURNAL_FILE = "balances.journal";
+	public static final String SNAPSHOT_FILE = "balances.snapshot";
+
+	public static final int DEFAULT_JOURNAL_SIZE = 64 * 1024 * 1024;
+
+	private static final int SNAPSHOT_MAGIC = 0x42414c31; // "BAL1"
+
+	/** Record count, sequence number and CRC. */
+	private static final int RECORD_OVERHEAD = 4 + 8 + 4;
+
+	/** Account number and delta. */
+	private static final int ENTRY_SIZE = 4 + 8;
+
+	protected Logger logger = Logger.getLogger(JournalingBalanceWriter.class
+			.getName());
+
+	private final Path directory;
+
+	private final AccountRepository accountRepository;
+
+	private final BalanceWriter target;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer journal;
+
+	/** Size of each half of the journal. */
+	private final int regionSize;
+
+	private ScheduledExecutorService compactor;
+
+	/** Sequence number of the last record written. */
+	private long lastSequence;
+
+	/** The half of the journal records are appended to, 0 or 1. */
+	private int region;
+
+	/** Where the next record will be written. */
+	private int position;
+
+	/** Whether a compaction is in progress. */
+	private boolean compacting;
+
+	/**
+	 * Why the journal cannot be used, if it may hold a record the target did
+	 * not store.
+	 */
+	private RuntimeException unusable;
+
+	/**
+	 * Open the journal in the specified directory, creating it if necessary,
+	 * and recover any balance changes it holds.
+	 *
+	 * @param directory
+	 *            Where to keep the journal and snapshot files.
+	 * @param journalSize
+	 *            Size of the journal file in bytes, half of which holds
+	 *            records at a time.
+	 * @param accountRepository
+	 *            The accounts, holding their balances as currently stored by
+	 *            the target. Only read on startup.
+	 * @param target
+	 *            Stores each batch once it is in the journal.
+	 * @throws IOException
+	 *             If the journal or snapshot cannot be read or written.
+	 */
+	public JournalingBalanceWriter(Path directory, int journalSize,
+			AccountRepository accountRepository, BalanceWriter target)
+			throws IOException {
+		this.directory = directory;
+		this.accountRepository = accountRepository;
+		this.target = target;
+
+		Files.createDirectories(directory);
+		channel = FileChannel.open(directory.resolve(JOURNAL_FILE),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		journal = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				Math.max(journalSize, channel.size()));
+		regionSize = journal.capacity() / 2;
+
+		recover();
+	}
+
+	/**
+	 * Compact the journal at a fixed interval, on a background thread.
+	 *
+	 * @param interval
+	 *            Time between compactions.
+	 * @param unit
+	 *            Unit of the interval.
+	 */
+	public synchronized void startCompacting(long interval, TimeUnit unit) {
+		if (compactor != null)
+			return;
+
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "balance-journal-compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				compact();
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Journal compaction failed", e);
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Append the changes to the journal, wait for them to reach disk and then
+	 * pass them on to the target. If the target fails, a record reversing the
+	 * changes is appended, so they are not applied on recovery either.
+	 *
+	 * @throws IllegalStateException
+	 *             If the journal is unusable, as a reversing record could not
+	 *             be appended.
+	 */
+	@Override
+	public synchronized void write(Map<String, Long> deltas) {
+		if (unusable != null)
+			throw new IllegalStateException("Journal holds changes that were not stored, reopen it to recover",
+					unusable);
+
+		int record = append(deltas);
+
+		try {
+			target.write(deltas);
+		} catch (RuntimeException e) {
+			Map<String, Long> reversed = new LinkedHashMap<String, Long>();
+
+			for (Map.Entry<String, Long> delta : deltas.entrySet())
+				reversed.put(delta.getKey(), -delta.getValue());
+
+			try {
+				append(reversed);
+			} catch (RuntimeException appendFailure) {
+				e.addSuppressed(appendFailure);
+				erase(record, e);
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Erase a record the target did not store, and whose reversal could not be
+	 * appended, so it is not replayed. It is the last record, so recovery
+	 * stops where it was. Only called with the lock held.
+	 *
+	 * @param failure
+	 *            Why the record was not stored, which makes the journal
+	 *            unusable.
+	 */
+	private void erase(int record, RuntimeException failure) {
+		unusable = failure;
+
+		try {
+			journal.putInt(record, 0);
+			journal.force();
+			logger.log(Level.SEVERE, "Balance changes not stored, erased from the journal", failure);
+		} catch (RuntimeException e) {
+			failure.addSuppressed(e);
+			logger.log(Level.SEVERE, "Balance changes not stored, but still in the journal at " + record
+					+ " - they will be replayed on recovery", failure);
+		}
+	}
+
+	/**
+	 * Add every journal record since the last snapshot to it, and switch to the
+	 * other, emptied, half of the journal. Writes wait only while the new
+	 * snapshot is renamed into place.
+	 *
+	 * @throws IOException
+	 *             If the snapshot cannot be written. The journal is unchanged.
+	 */
+	public void compact() throws IOException {
+		long sequence;
+		int appending, end;
+
+		synchronized (this) {
+			while (compacting)
+				awaitCompaction();
+
+			// The erased record must stay out of the snapshot too
+			if (unusable != null)
+				throw new IOException("Journal is unusable, not compacted", unusable);
+
+			compacting = true;
+			sequence = lastSequence;
+			appending = region;
+			end = position;
+		}
+
+		try {
+			// Records up to the end noted are not changed until this
+			// compaction switches halves, so can be read without the lock
+			Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+			Snapshot snapshot = readSnapshot(snapshotFile);
+			int records = 0;
+
+			for (Record record : records(appending, end)) {
+				if (record.sequence > snapshot.sequence
+						&& record.sequence <= sequence) {
+					apply(record, snapshot.balances);
+					records++;
+				}
+			}
+
+			Path temporary = writeSnapshot(snapshot.balances, sequence);
+
+			synchronized (this) {
+				Files.move(temporary, snapshotFile,
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				switchRegion();
+			}
+
+			logger.fine("Journal compacted, " + records
+					+ " records added to snapshot of "
+					+ snapshot.balances.size() + " accounts, to sequence "
+					+ sequence);
+		} finally {
+			synchronized (this) {
+				compacting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stop compacting, take a final snapshot - unless the journal is unusable
+	 * - and close the journal.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (compactor != null)
+			compactor.shutdownNow();
+
+		try {
+			if (unusable == null)
+				compact();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return Where the record was written.
+	 */
+	private int append(Map<String, Long> deltas) {
+		int size = RECORD_OVERHEAD + deltas.size() * ENTRY_SIZE;
+
+		// Leave room for the end marker
+		if (size + 4 > regionSize)
+			throw new IllegalStateException("Batch of " + deltas.size()
+					+ " changes is too large for the journal");
+
+		// When full, wait for a compaction already running to switch halves,
+		// or compact now
+		while (position + size + 4 > regionStart(region) + regionSize) {
+			try {
+				if (compacting)
+					awaitCompaction();
+				else
+					compact();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Journal full and compaction failed", e);
+			}
+		}
+
+		int start = position;
+		((Buffer) journal).position(start); // Cast for Java 8 compatibility
+		journal.putInt(deltas.size());
+		journal.putLong(++lastSequence);
+
+		for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+			int number = InMemoryAccountRepository.parseNumber(delta.getKey());
+
+			if (number < 0)
+				throw new IllegalArgumentException("Invalid account number: "
+						+ delta.getKey());
+
+			journal.putInt(number);
+			journal.putLong(delta.getValue());
+		}
+
+		journal.putInt(crc(start, size - 4));
+		journal.putInt(0); // End marker, overwritten by the next record
+		journal.force();
+		position = start + size;
+		return start;
+	}
+
+	/**
+	 * Wait, releasing the lock, for the compaction in progress to finish. Only
+	 * called with the lock held.
+	 */
+	private void awaitCompaction() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for journal compaction");
+		}
+	}
+
+	/**
+	 * Append to the start of the other half of the journal, discarding what it
+	 * holds. Only called with the lock held, once the records in that half are
+	 * all in the snapshot.
+	 */
+	private void switchRegion() {
+		region = 1 - region;
+		position = regionStart(region);
+		journal.putInt(position, 0);
+		journal.force();
+	}
+
+	private int regionStart(int region) {
+		return region * regionSize;
+	}
+
+	/**
+	 * Rebuild the balances from the snapshot and journal, bring the target up
+	 * to date and start a fresh journal. With no snapshot there is nothing to
+	 * recover, so the current balances become the first snapshot.
+	 */
+	private void recover() throws IOException {
+		Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+
+		if (!Files.exists(snapshotFile)) {
+			logger.info("No balance snapshot in " + directory
+					+ ", starting a new journal");
+
+			Map<Integer, Long> balances = new HashMap<Integer, Long>();
+
+			for (Account account : accountRepository.findAll())
+				balances.put(InMemoryAccountRepository.parseNumber(account
+						.getNumber()), toCents(account.getBalance()));
+
+			Files.move(writeSnapshot(balances, 0), snapshotFile,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			journal.putInt(regionStart(1), 0);
+			journal.putInt(regionStart(0), 0);
+			journal.force();
+			return;
+		}
+
+		Snapshot snapshot = readSnapshot(snapshotFile);
+		lastSequence = snapshot.sequence;
+		int records = 0;
+
+		// Records must follow the snapshot's sequence number without gaps,
+		// anything else is left over from before the last compaction
+		for (Record record : records(0, -1)) {
+			if (record.sequence <= lastSequence)
+				continue;
+			else if (record.sequence != lastSequence + 1)
+				break;
+
+			apply(record, snapshot.balances);
+			lastSequence++;
+			records++;
+			region = record.offset / regionSize;
+			position = record.offset + record.size;
+		}
+
+		journal.putInt(position, 0);
+		journal.force();
+
+		Map<String, Long> deltas = new HashMap<String, Long>();
+
+		for (Account account : accountRepository.findAll()) {
+			Long balance = snapshot.balances.get(InMemoryAccountRepository
+					.parseNumber(account.getNumber()));
+
+			if (balance != null && balance != toCents(account.getBalance()))
+				deltas.put(account.getNumber(),
+						balance - toCents(account.getBalance()));
+		}
+
+		if (!deltas.isEmpty())
+			target.write(deltas);
+
+		logger.info("Recovered balances from snapshot and " + records
+				+ " journal records, " + deltas.size() + " accounts updated");
+
+		Files.move(writeSnapshot(snapshot.balances, lastSequence),
+				snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		switchRegion();
+	}
+
+	/**
+	 * The valid records in both halves of the journal, in sequence order.
+	 *
+	 * @param appending
+	 *            The half being appended to.
+	 * @param end
+	 *            Where the records in that half end, or -1 to read up to the
+	 *            first invalid record.
+	 */
+	private List<Record> records(int appending, int end) {
+		List<Record> records = new ArrayList<Record>();
+
+		for (int half = 0; half < 2; half++) {
+			int at = regionStart(half);
+			int limit = end >= 0 && half == appending ? end : at + regionSize;
+
+			while (at + RECORD_OVERHEAD <= limit) {
+				int count = journal.getInt(at);
+				int size = RECORD_OVERHEAD + count * ENTRY_SIZE;
+
+				if (count <= 0 || count > (limit - at) / ENTRY_SIZE
+						|| at + size > limit
+						|| journal.getInt(at + size - 4) != crc(at, size - 4))
+					break;
+
+				records.add(new Record(at, size, journal.getLong(at + 4)));
+				at += size;
+			}
+		}
+
+		records.sort(Comparator.comparingLong(record -> record.sequence));
+		return records;
+	}
+
+	private void apply(Record record, Map<Integer, Long> balances) {
+		for (int entry = record.offset + 12; entry < record.offset + record.size
+				- 4; entry += ENTRY_SIZE)
+			balances.merge(journal.getInt(entry), journal.getLong(entry + 4),
+					Long::sum);
+	}
+
+	/**
+	 * Write the balances, as of a sequence number, to a temporary snapshot
+	 * file on disk.
+	 *
+	 * @return The file, to be renamed into place.
+	 */
+	private Path writeSnapshot(Map<Integer, Long> balances, long sequence)
+			throws IOException {
+		Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+
+		try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+			BufferedOutputStream buffer = new BufferedOutputStream(file);
+			CheckedOutputStream checked = new CheckedOutputStream(buffer,
+					new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(sequence);
+			out.writeInt(balances.size());
+
+			for (Map.Entry<Integer, Long> balance : balances.entrySet()) {
+				out.writeInt(balance.getKey());
+				out.writeLong(balance.getValue());
+			}
+
+			out.flush();
+			new DataOutputStream(buffer).writeInt((int) checked.getChecksum()
+					.getValue());
+			buffer.flush();
+			file.getFD().sync();
+		}
+
+		return temporary;
+	}
+
+	/**
+	 * Read the balances in a snapshot, and the last sequence number it covers.
+	 */
+	private Snapshot readSnapshot(Path snapshot) throws IOException {
+		try (InputStream file = Files.newInputStream(snapshot)) {
+			BufferedInputStream buffer = new BufferedInputStream(file);
+			CheckedInputStream checked = new CheckedInputStream(buffer,
+					new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+
+			if (in.readInt() != SNAPSHOT_MAGIC)
+				throw new IOException("Not a balance snapshot: " + snapshot);
+
+			long sequence = in.readLong();
+			int count = in.readInt();
+			Map<Integer, Long> balances = new HashMap<Integer, Long>(
+					count * 4 / 3 + 1);
+
+			for (int i = 0; i < count; i++)
+				balances.put(in.readInt(), in.readLong());
+
+			int crc = (int) checked.getChecksum().getValue();
+
+			if (new DataInputStream(buffer).readInt() != crc)
+				throw new IOException("Balance snapshot is corrupt: "
+						+ snapshot);
+
+			return new Snapshot(sequence, balances);
+		}
+	}
+
+	private int crc(int start, int length) {
+		ByteBuffer record = journal.duplicate();
+		((Buffer) record).limit(start + length);
+		((Buffer) record).position(start);
+
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	private static long toCents(BigDecimal balance) {
+		return balance.movePointRight(2).longValueExact();
+	}
+
+	/**
+	 * Balances in cents, by account number, as of a sequence number.
+	 */
+	private static class Snapshot {
+		final long sequence;
+		final Map<Integer, Long> balances;
+
+		Snapshot(long sequence, Map<Integer, Long> balances) {
+			this.sequence = sequence;
+			this.balances = balances;
+		}
+	}
+
+	/**
+	 * Where a journal record is, and its sequence number.
+	 */
+	private static class Record {
+		final int offset;
+		final int size;
+		final long sequence;
+
+		Record(int offset, int size, long sequence) {
+			this.offset = offset;
+			this.size = size;
+			this.sequence = sequence;
+		}
+	}
+}
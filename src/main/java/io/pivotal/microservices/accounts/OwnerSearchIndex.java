@@ -0,0 +1,482 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * In-memory trigram index over account owner names. Used by
+ * {@link AccountsController#byOwner(String)} to find matching accounts without
+ * the <code>LIKE '%x%'</code> table scan performed by
+ * {@link AccountRepository#findByOwnerContainingIgnoreCase(String)}.
+ * <p>
+ * Names are case-folded (upper case, as SQL <code>UPPER</code> does) and every
+ * three character sequence is mapped to the list of accounts containing it. A
+ * search takes the shortest posting list for the search text and checks each
+ * candidate with a plain substring match, so results are identical to the
+ * repository query.
+ * <p>
+ * The index cannot help with search text shorter than three characters, nor is
+ * it worthwhile when a search matches a large part of the table - its shortest
+ * posting list is longer than the maximum number of results. In both cases
+ * {@link #search(String)} returns <code>null</code>, without scanning the
+ * index, and the caller should use the repository instead.
+ * <p>
+ * A renamed account keeps its slot, but stays in the posting lists of
+ * trigrams only its old name had - so is not added to them again if it gets a
+ * name with those trigrams back - and a removed account stays in all of its
+ * lists. Searches skip these stale entries, and once they are half of all
+ * entries the index is compacted.
+ */
+public class OwnerSearchIndex {
+
+	public static final int GRAM_LENGTH = 3;
+
+	protected Logger logger = Logger.getLogger(OwnerSearchIndex.class
+			.getName());
+
+	private final int maxResults;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Account id held in each document slot. */
+	private long[] ids = new long[1024];
+
+	/** Folded owner name for each document slot, null once removed. */
+	private String[] names = new String[1024];
+
+	private int size;
+
+	/** Number of slots, and of posting list entries, no longer in use. */
+	private int deadSlots, stalePostings;
+
+	private int postingCount;
+
+	private final Map<Long, Integer> slots = new HashMap<Long, Integer>();
+
+	private final Map<Long, IntList> postings = new HashMap<Long, IntList>();
+
+	/**
+	 * Create an empty index.
+	 *
+	 * @param maxResults
+	 *            Searches matching more accounts than this are left to the
+	 *            repository.
+	 */
+	public OwnerSearchIndex(int maxResults) {
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * Discard the current contents and index all the accounts supplied.
+	 *
+	 * @param accounts
+	 *            The accounts to index.
+	 */
+	public void rebuild(Iterable<Account> accounts) {
+		lock.writeLock().lock();
+
+		try {
+			clear(1024);
+
+			for (Account account : accounts)
+				addInternal(account.getId(), fold(account.getOwner()));
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		logger.info("Owner index built for " + slots.size() + " accounts, "
+				+ postings.size() + " trigrams");
+	}
+
+	/**
+	 * Discard the current contents and index the accounts passed to a sink,
+	 * one at a time, so they need not all be loaded first. Only the id and
+	 * owner of each account are used.
+	 *
+	 * @param accounts
+	 *            Passes every account to the sink it is given.
+	 */
+	public void rebuild(Consumer<AccountSink> accounts) {
+		lock.writeLock().lock();
+
+		try {
+			clear(1024);
+			accounts.accept((id, number, owner, foldedOwner, balance) -> addInternal(id,
+					foldedOwner == null ? fold(owner) : foldedOwner));
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		logger.info("Owner index built for " + slots.size() + " accounts, "
+				+ postings.size() + " trigrams");
+	}
+
+	/**
+	 * Add an account or, if it is already indexed, update its owner name.
+	 *
+	 * @param account
+	 *            A new or modified account.
+	 */
+	public void put(Account account) {
+		lock.writeLock().lock();
+
+		try {
+			Integer slot = slots.get(account.getId());
+			String name = fold(account.getOwner());
+
+			if (slot == null) {
+				addInternal(account.getId(), name);
+			} else if (!name.equals(names[slot])) {
+				// Reuse the slot, adding it to posting lists for new trigrams
+				Set<Long> oldGrams = grams(names[slot]);
+				names[slot] = name;
+
+				for (long gram : grams(name)) {
+					if (!oldGrams.remove(gram))
+						addPosting(gram, slot);
+				}
+
+				stalePostings += oldGrams.size();
+				compactIfWasteful();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove an account from the index.
+	 *
+	 * @param id
+	 *            The id of the account to remove.
+	 */
+	public void remove(long id) {
+		lock.writeLock().lock();
+
+		try {
+			Integer slot = slots.remove(id);
+
+			if (slot != null) {
+				stalePostings += grams(names[slot]).size();
+				names[slot] = null;
+				deadSlots++;
+				compactIfWasteful();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the ids of accounts whose owner name contains the specified text,
+	 * ignoring case.
+	 *
+	 * @param partialName
+	 *            Any string.
+	 * @return The matching account ids in ascending order, or null if the
+	 *         index cannot answer this search efficiently - found before
+	 *         scanning any posting list.
+	 */
+	public List<Long> search(String partialName) {
+		String text = fold(partialName);
+
+		if (text.length() < GRAM_LENGTH)
+			return null;
+
+		lock.readLock().lock();
+
+		try {
+			IntList candidates = candidates(text);
+
+			if (candidates == null)
+				return Collections.emptyList();
+			else if (candidates.size > maxResults)
+				return null;
+
+			long[] matches = new long[candidates.size];
+			int count = 0;
+
+			for (int i = 0; i < candidates.size; i++) {
+				int doc = candidates.values[i];
+				String name = names[doc];
+
+				if (name != null && name.contains(text))
+					matches[count++] = ids[doc];
+			}
+
+			return toList(matches, count);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find one page of the ids of accounts whose owner name contains the
+	 * specified text, ignoring case. Only <code>limit</code> ids are held at a
+	 * time, so this can be used however many accounts match, and posting lists
+	 * are in id order, so only the part after <code>afterId</code> is read.
+	 *
+	 * @param partialName
+	 *            Any string.
+	 * @param afterId
+	 *            Only return ids greater than this.
+	 * @param limit
+	 *            Maximum number of ids to return.
+	 * @return The lowest matching account ids in ascending order, or null if
+	 *         the search text is too short for the index.
+	 */
+	public List<Long> search(String partialName, long afterId, int limit) {
+		String text = fold(partialName);
+
+		if (text.length() < GRAM_LENGTH)
+			return null;
+
+		lock.readLock().lock();
+
+		try {
+			IntList candidates = candidates(text);
+
+			if (candidates == null)
+				return Collections.emptyList();
+
+			List<Long> matches = new ArrayList<Long>(limit);
+
+			for (int i = firstAfter(candidates, afterId); i < candidates.size && matches.size() < limit; i++) {
+				int doc = candidates.values[i];
+				String name = names[doc];
+
+				if (name != null && name.contains(text))
+					matches.add(ids[doc]);
+			}
+
+			return matches;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of accounts currently indexed.
+	 *
+	 * @return The number of accounts.
+	 */
+	public int size() {
+		lock.readLock().lock();
+
+		try {
+			return slots.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of slots in use, including those of removed accounts not yet
+	 * compacted.
+	 */
+	protected int slotsUsed() {
+		lock.readLock().lock();
+
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of posting list entries, including stale ones not yet compacted.
+	 */
+	protected int postingsHeld() {
+		lock.readLock().lock();
+
+		try {
+			return postingCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void clear(int capacity) {
+		ids = new long[capacity];
+		names = new String[capacity];
+		size = 0;
+		deadSlots = 0;
+		stalePostings = 0;
+		postingCount = 0;
+		slots.clear();
+		postings.clear();
+	}
+
+	private void addInternal(long id, String name) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+			names = Arrays.copyOf(names, size * 2);
+		}
+
+		int slot = size++;
+		ids[slot] = id;
+		names[slot] = name;
+		slots.put(id, slot);
+
+		for (long gram : grams(name))
+			addPosting(gram, slot);
+	}
+
+	private void addPosting(long gram, int slot) {
+		IntList docs = postings.get(gram);
+
+		if (docs == null) {
+			docs = new IntList();
+			postings.put(gram, docs);
+		}
+
+		int index = position(docs, ids[slot]);
+
+		if (index > 0 && docs.values[index - 1] == slot) {
+			// Left from an earlier name, now current again
+			stalePostings--;
+			return;
+		}
+
+		docs.add(index, slot);
+		postingCount++;
+	}
+
+	/**
+	 * Index the accounts again, without stale entries or unused slots, once
+	 * they are half of the index. Only called with the write lock held.
+	 */
+	private void compactIfWasteful() {
+		if (stalePostings * 2 <= postingCount && deadSlots * 2 <= size)
+			return;
+
+		long[] oldIds = ids;
+		String[] oldNames = names;
+		Integer[] live = new Integer[slots.size()];
+		int count = 0;
+
+		for (int slot = 0; slot < size; slot++) {
+			if (oldNames[slot] != null)
+				live[count++] = slot;
+		}
+
+		// In id order, so every posting list is appended to
+		Arrays.sort(live, 0, count, Comparator.comparingLong(slot -> oldIds[slot]));
+		clear(Math.max(1024, Integer.highestOneBit(Math.max(1, count)) * 2));
+
+		for (int i = 0; i < count; i++)
+			addInternal(oldIds[live[i]], oldNames[live[i]]);
+
+		logger.fine("Owner index compacted to " + size + " accounts, "
+				+ postingCount + " postings");
+	}
+
+	/**
+	 * Where a slot with this id goes in a posting list - at the end, unless
+	 * accounts are added out of id order.
+	 */
+	private int position(IntList docs, long id) {
+		if (docs.size == 0 || ids[docs.values[docs.size - 1]] < id)
+			return docs.size;
+
+		return firstAfter(docs, id);
+	}
+
+	/**
+	 * Binary search a posting list for the first slot whose id is greater than
+	 * the one specified.
+	 */
+	private int firstAfter(IntList docs, long id) {
+		int low = 0, high = docs.size;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (ids[docs.values[middle]] <= id)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	/**
+	 * The shortest posting list for the search text - every match must be in
+	 * it. Null if any trigram is not indexed, so nothing can match.
+	 */
+	private IntList candidates(String text) {
+		IntList candidates = null;
+
+		for (long gram : grams(text)) {
+			IntList docs = postings.get(gram);
+
+			if (docs == null)
+				return null;
+			else if (candidates == null || docs.size < candidates.size)
+				candidates = docs;
+		}
+
+		return candidates;
+	}
+
+	private static List<Long> toList(long[] values, int count) {
+		List<Long> list = new ArrayList<Long>(count);
+
+		for (int i = 0; i < count; i++)
+			list.add(values[i]);
+
+		return list;
+	}
+
+	/**
+	 * Case-fold a name the same way as SQL <code>UPPER</code>.
+	 */
+	protected static String fold(String name) {
+		return name == null ? "" : name.toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * The distinct trigrams of a folded string, each packed into a long.
+	 */
+	protected static Set<Long> grams(String text) {
+		Set<Long> grams = new LinkedHashSet<Long>();
+
+		for (int i = 0; i + GRAM_LENGTH <= text.length(); i++)
+			grams.add(((long) text.charAt(i) << 32)
+					| ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+
+		return grams;
+	}
+
+	/**
+	 * Growable list of document slots, kept in ascending order of the account
+	 * id in each slot, so a page of results can start from a binary search.
+	 */
+	private static class IntList {
+		int[] values = new int[4];
+		int size;
+
+		void add(int index, int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = value;
+			size++;
+		}
+	}
+}
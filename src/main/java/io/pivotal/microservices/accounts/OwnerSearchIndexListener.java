@@ -0,0 +1,41 @@
+package io.pivotal.microservices.accounts;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+/**
+ * JPA entity listener that keeps the {@link OwnerSearchIndex} current whenever
+ * an {@link Account} is written. Hibernate obtains this listener from Spring,
+ * so the index is looked up lazily to avoid a dependency cycle with the
+ * repository that the index is built from.
+ */
+@Component
+public class OwnerSearchIndexListener {
+
+	protected ObjectProvider<OwnerSearchIndex> ownerIndex;
+
+	public OwnerSearchIndexListener(ObjectProvider<OwnerSearchIndex> ownerIndex) {
+		this.ownerIndex = ownerIndex;
+	}
+
+	@PostPersist
+	@PostUpdate
+	public void saved(Account account) {
+		OwnerSearchIndex index = ownerIndex.getIfAvailable();
+
+		if (index != null)
+			index.put(account);
+	}
+
+	@PostRemove
+	public void removed(Account account) {
+		OwnerSearchIndex index = ownerIndex.getIfAvailable();
+
+		if (index != null)
+			index.remove(account.getId());
+	}
+}
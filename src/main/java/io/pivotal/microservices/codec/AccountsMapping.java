@@ -0,0 +1,37 @@
+package io.pivotal.microservices.codec;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * How a {@link CompactAccountsHttpMessageConverter} gets at, and creates, the
+ * account and batch classes of one service - the accounts and web services
+ * each have their own.
+ *
+ * @param <A>
+ *            The account class.
+ * @param <B>
+ *            The batch class, accounts found and numbers missing.
+ */
+public interface AccountsMapping<A, B> {
+
+	Class<A> accountType();
+
+	Class<B> batchType();
+
+	long getId(A account);
+
+	String getNumber(A account);
+
+	String getOwner(A account);
+
+	BigDecimal getBalance(A account);
+
+	A newAccount(long id, String number, String owner, BigDecimal balance);
+
+	List<A> getAccounts(B batch);
+
+	List<String> getMissing(B batch);
+
+	B newBatch(List<A> accounts, List<String> missing);
+}
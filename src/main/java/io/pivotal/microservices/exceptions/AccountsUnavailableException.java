@@ -0,0 +1,19 @@
+package io.pivotal.microservices.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Allow the controller to return a 503 when the accounts microservice is not
+ * being called, because it is failing or already handling as many calls as
+ * allowed.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class AccountsUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public AccountsUnavailableException(String reason) {
+		super("Accounts service unavailable: " + reason);
+	}
+}
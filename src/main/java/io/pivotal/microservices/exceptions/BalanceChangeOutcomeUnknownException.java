@@ -0,0 +1,18 @@
+package io.pivotal.microservices.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Allow the controller to return a 504 when a balance change was still being
+ * written when its caller gave up waiting, so it may or may not have been made.
+ */
+@ResponseStatus(HttpStatus.GATEWAY_TIMEOUT)
+public class BalanceChangeOutcomeUnknownException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BalanceChangeOutcomeUnknownException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
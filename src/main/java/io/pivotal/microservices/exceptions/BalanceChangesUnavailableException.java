@@ -0,0 +1,22 @@
+package io.pivotal.microservices.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Allow the controller to return a 503 when it has no means of changing
+ * balances, so deposits, withdrawals and transfers cannot be made.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class BalanceChangesUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BalanceChangesUnavailableException() {
+		super("Balances cannot be changed");
+	}
+
+	public BalanceChangesUnavailableException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,18 @@
+package io.pivotal.microservices.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Allow the controller to return a 400 if a client asks for too many accounts
+ * in a single request.
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class BatchTooLargeException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BatchTooLargeException(int requested, int maxSize) {
+		super("Requested " + requested + " accounts, limit is " + maxSize);
+	}
+}
@@ -0,0 +1,25 @@
+package io.pivotal.microservices.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Allow the controller to return a 409 if a withdrawal or transfer would leave
+ * an account overdrawn.
+ */
+@ResponseStatus(HttpStatus.CONFLICT)
+public class InsufficientFundsException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String accountNumber;
+
+	public InsufficientFundsException(String accountNumber) {
+		super("Insufficient funds in account: " + accountNumber);
+		this.accountNumber = accountNumber;
+	}
+
+	public String getAccountNumber() {
+		return accountNumber;
+	}
+}
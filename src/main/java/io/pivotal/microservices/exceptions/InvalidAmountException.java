@@ -0,0 +1,18 @@
+package io.pivotal.microservices.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Allow the controller to return a 400 if a balance change is for an amount
+ * that is not allowed, or would take a balance beyond what can be stored.
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidAmountException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public InvalidAmountException(String message) {
+		super(message);
+	}
+}
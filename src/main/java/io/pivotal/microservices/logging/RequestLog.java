@@ -0,0 +1,77 @@
+package io.pivotal.microservices.logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.core.env.Environment;
+
+/**
+ * Decides which requests to an endpoint are logged, so that request logging
+ * stays cheap at high request rates. Check {@link #sample(Logger, String)}
+ * once per request and only build the log messages if it returns true.
+ * <p>
+ * The fraction of requests logged is set by
+ * <code>request-log.sample-rate.&lt;endpoint&gt;</code>, falling back to
+ * <code>request-log.sample-rate.default</code>, and then to logging every
+ * request. For example 0.01 logs about one request in a hundred.
+ */
+public class RequestLog {
+
+	public static final String SAMPLE_RATE_PROPERTY = "request-log.sample-rate.";
+
+	public static final String DEFAULT_ENDPOINT = "default";
+
+	private final Environment environment;
+
+	private final double defaultRate;
+
+	/** Looked up once per endpoint, the environment is too slow per request. */
+	private final ConcurrentMap<String, Double> rates = new ConcurrentHashMap<String, Double>();
+
+	/**
+	 * @param environment
+	 *            Where to find the sample rates, null to log every request.
+	 */
+	public RequestLog(Environment environment) {
+		this.environment = environment;
+		this.defaultRate = environment == null ? 1.0
+				: environment.getProperty(SAMPLE_RATE_PROPERTY + DEFAULT_ENDPOINT, Double.class, 1.0);
+	}
+
+	/**
+	 * Should this request be logged?
+	 * 
+	 * @param logger
+	 *            The logger that will be used, the request is not logged
+	 *            unless it is enabled for INFO.
+	 * @param endpoint
+	 *            The endpoint handling the request.
+	 * @return True to log the request.
+	 */
+	public boolean sample(Logger logger, String endpoint) {
+		if (!logger.isLoggable(Level.INFO))
+			return false;
+
+		double rate = rate(endpoint);
+		return rate >= 1.0 || (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate);
+	}
+
+	/**
+	 * @return The fraction of requests to the endpoint that are logged.
+	 */
+	public double rate(String endpoint) {
+		if (environment == null)
+			return defaultRate;
+
+		Double rate = rates.get(endpoint);
+
+		if (rate == null)
+			rate = rates.computeIfAbsent(endpoint,
+					e -> environment.getProperty(SAMPLE_RATE_PROPERTY + e, Double.class, defaultRate));
+
+		return rate;
+	}
+}
@@ -0,0 +1,155 @@
+package io.pivotal.microservices.metrics;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.web.client.HttpClientErrorException;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.pivotal.microservices.exceptions.AccountNotFoundException;
+
+/**
+ * A family of timers measuring one kind of operation, such as controller
+ * calls, tagged by which operation (the endpoint, query or call) and its
+ * outcome: found, not found, not modified or error.
+ * <p>
+ * Every timer publishes a percentile histogram, so a monitoring system can
+ * aggregate percentiles across instances, and also the p50, p99 and p99.9
+ * computed locally - visible without one at
+ * <code>/actuator/metrics/&lt;name&gt;.percentile</code>.
+ * <p>
+ * Without a {@link MeterRegistry} nothing is recorded.
+ */
+public class LatencyTimers {
+
+	public static final String FOUND = "found";
+	public static final String NOT_FOUND = "not_found";
+	public static final String NOT_MODIFIED = "not_modified";
+	public static final String SUCCESS = "success";
+	public static final String ERROR = "error";
+
+	public static final String OUTCOME_TAG = "outcome";
+
+	private final MeterRegistry registry;
+
+	private final String name;
+
+	private final String description;
+
+	private final String operationTag;
+
+	/** Timers by operation and then outcome, so a lookup allocates nothing. */
+	private final ConcurrentMap<String, ConcurrentMap<String, Timer>> timers = new ConcurrentHashMap<String, ConcurrentMap<String, Timer>>();
+
+	/**
+	 * @param registry
+	 *            Where to register the timers, null to record nothing.
+	 * @param name
+	 *            Name of every timer.
+	 * @param description
+	 *            Description of every timer.
+	 * @param operationTag
+	 *            Name of the tag identifying each operation.
+	 */
+	public LatencyTimers(MeterRegistry registry, String name, String description, String operationTag) {
+		this.registry = registry;
+		this.name = name;
+		this.description = description;
+		this.operationTag = operationTag;
+	}
+
+	/**
+	 * @return The start time to pass to {@link #record(String, String, long)}.
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the time since an operation started.
+	 *
+	 * @param operation
+	 *            The operation.
+	 * @param outcome
+	 *            Such as {@link #FOUND}.
+	 * @param start
+	 *            As returned by {@link #start()}.
+	 */
+	public void record(String operation, String outcome, long start) {
+		if (registry != null)
+			timer(operation, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Time an operation, taking its outcome from the result or exception.
+	 *
+	 * @param operation
+	 *            The operation.
+	 * @param call
+	 *            Performs the operation.
+	 * @return The call's result.
+	 */
+	public <T> T record(String operation, Supplier<T> call) {
+		long start = start();
+		String outcome = ERROR;
+
+		try {
+			T result = call.get();
+			outcome = outcome(result);
+			return result;
+		} catch (RuntimeException e) {
+			outcome = outcome(e);
+			throw e;
+		} finally {
+			record(operation, outcome, start);
+		}
+	}
+
+	/**
+	 * @return {@link #NOT_FOUND} for null or an empty collection or array,
+	 *         otherwise {@link #FOUND}.
+	 */
+	public static String outcome(Object result) {
+		if (result == null)
+			return NOT_FOUND;
+		else if (result instanceof Collection)
+			return ((Collection<?>) result).isEmpty() ? NOT_FOUND : FOUND;
+		else if (result.getClass().isArray())
+			return Array.getLength(result) == 0 ? NOT_FOUND : FOUND;
+		else
+			return FOUND;
+	}
+
+	/**
+	 * @return {@link #NOT_FOUND} for a missing account, locally or from the
+	 *         accounts service, otherwise {@link #ERROR}.
+	 */
+	public static String outcome(Throwable e) {
+		if (e instanceof AccountNotFoundException || e instanceof HttpClientErrorException.NotFound)
+			return NOT_FOUND;
+		else
+			return ERROR;
+	}
+
+	private Timer timer(String operation, String outcome) {
+		ConcurrentMap<String, Timer> byOutcome = timers.get(operation);
+
+		if (byOutcome == null)
+			byOutcome = timers.computeIfAbsent(operation, o -> new ConcurrentHashMap<String, Timer>());
+
+		Timer timer = byOutcome.get(outcome);
+
+		if (timer == null) {
+			timer = byOutcome.computeIfAbsent(outcome,
+					o -> Timer.builder(name).description(description).tags(operationTag, operation, OUTCOME_TAG, o)
+							.publishPercentileHistogram().publishPercentiles(0.5, 0.99, 0.999).register(registry));
+		}
+
+		return timer;
+	}
+}
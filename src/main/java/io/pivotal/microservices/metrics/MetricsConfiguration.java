@@ -0,0 +1,35 @@
+package io.pivotal.microservices.metrics;
+
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Latency metrics shared by the accounts and web servers. Replaces Spring
+ * Boot's JSON message converter with one that times every conversion, used
+ * by Spring MVC and by any <code>RestTemplate</code> built with the
+ * auto-configured <code>RestTemplateBuilder</code>.
+ * <p>
+ * Each server also times its controllers, and the accounts server its
+ * repository, with a {@link TimedBeanPostProcessor}. See the metrics listed
+ * at <code>/actuator/metrics</code>.
+ */
+@Configuration
+public class MetricsConfiguration {
+
+	protected Logger logger = Logger.getLogger(MetricsConfiguration.class.getName());
+
+	@Bean
+	public MappingJackson2HttpMessageConverter timedJsonHttpMessageConverter(ObjectMapper objectMapper,
+			ObjectProvider<MeterRegistry> meterRegistry) {
+		logger.info("timedJsonHttpMessageConverter() invoked");
+		return new TimedJsonHttpMessageConverter(objectMapper, meterRegistry.getIfAvailable());
+	}
+}
@@ -0,0 +1,138 @@
+package io.pivotal.microservices.metrics;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Times every public method a type declares, on each bean of that type, using
+ * {@link LatencyTimers} tagged by method name. Used to measure the
+ * repositories and controllers without changing them.
+ * <p>
+ * Beans that are already proxies, such as Spring Data repositories, just get
+ * an extra interceptor. Anything else is proxied by subclassing, so the bean
+ * can still be injected, or cast, as its own class.
+ */
+public class TimedBeanPostProcessor implements BeanPostProcessor {
+
+	private final Class<?> type;
+
+	private final String name;
+
+	private final String description;
+
+	private final String operationTag;
+
+	private final ObjectProvider<MeterRegistry> registry;
+
+	private final Set<String> timedMethods = new HashSet<String>();
+
+	private volatile LatencyTimers timers;
+
+	/**
+	 * @param type
+	 *            Class or interface whose methods are timed.
+	 * @param name
+	 *            Name of the timers.
+	 * @param description
+	 *            Description of the timers.
+	 * @param operationTag
+	 *            Name of the tag holding the method name.
+	 * @param registry
+	 *            Provides the registry when the first call is timed.
+	 */
+	public TimedBeanPostProcessor(Class<?> type, String name, String description, String operationTag,
+			ObjectProvider<MeterRegistry> registry) {
+		this.type = type;
+		this.name = name;
+		this.description = description;
+		this.operationTag = operationTag;
+		this.registry = registry;
+
+		for (Method method : type.getDeclaredMethods()) {
+			if (Modifier.isPublic(method.getModifiers()) && !Modifier.isStatic(method.getModifiers()))
+				timedMethods.add(method.getName());
+		}
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		if (!type.isInstance(bean))
+			return bean;
+
+		if (bean instanceof Advised && !((Advised) bean).isFrozen()) {
+			((Advised) bean).addAdvice(0, new TimingInterceptor());
+			return bean;
+		}
+
+		ProxyFactory proxyFactory = new ProxyFactory(bean);
+		proxyFactory.setProxyTargetClass(!(bean instanceof Advised));
+		proxyFactory.addAdvice(new TimingInterceptor());
+		return proxyFactory.getProxy(bean.getClass().getClassLoader());
+	}
+
+	private LatencyTimers timers() {
+		if (timers == null)
+			timers = new LatencyTimers(registry.getIfAvailable(), name, description, operationTag);
+
+		return timers;
+	}
+
+	/**
+	 * Whether the current request is being answered 304 Not Modified - a
+	 * controller returns null for a conditional request whose entity tag
+	 * still matches, which is not a "not found".
+	 */
+	private static boolean notModified() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+
+		if (!(attributes instanceof ServletRequestAttributes))
+			return false;
+
+		HttpServletResponse response = ((ServletRequestAttributes) attributes).getResponse();
+		return response != null && response.getStatus() == HttpStatus.NOT_MODIFIED.value();
+	}
+
+	private class TimingInterceptor implements MethodInterceptor {
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			String method = invocation.getMethod().getName();
+
+			if (!timedMethods.contains(method))
+				return invocation.proceed();
+
+			LatencyTimers timers = timers();
+			long start = timers.start();
+			String outcome = LatencyTimers.ERROR;
+
+			try {
+				Object result = invocation.proceed();
+				outcome = result == null && notModified() ? LatencyTimers.NOT_MODIFIED
+						: LatencyTimers.outcome(result);
+				return result;
+			} catch (Throwable e) {
+				outcome = LatencyTimers.outcome(e);
+				throw e;
+			} finally {
+				timers.record(method, outcome, start);
+			}
+		}
+	}
+}
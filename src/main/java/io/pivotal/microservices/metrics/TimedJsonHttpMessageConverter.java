@@ -0,0 +1,91 @@
+package io.pivotal.microservices.metrics;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.lang.Nullable;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Converts to and from JSON, as usual, timing each conversion tagged by the
+ * type converted. Used for responses by the accounts service and for reading
+ * them by the web service, so serialisation shows up separately from the rest
+ * of a request.
+ * <p>
+ * The time taken to write a response includes sending it, since Jackson
+ * writes straight to the response stream.
+ */
+public class TimedJsonHttpMessageConverter extends MappingJackson2HttpMessageConverter {
+
+	public static final String WRITE_TIMER = "json.write";
+	public static final String READ_TIMER = "json.read";
+
+	private final LatencyTimers writeTimers;
+
+	private final LatencyTimers readTimers;
+
+	/**
+	 * @param objectMapper
+	 *            Performs the conversions.
+	 * @param registry
+	 *            Where to register the timers, null to record nothing.
+	 */
+	public TimedJsonHttpMessageConverter(ObjectMapper objectMapper, @Nullable MeterRegistry registry) {
+		super(objectMapper);
+		writeTimers = new LatencyTimers(registry, WRITE_TIMER, "Time taken to write objects as JSON", "type");
+		readTimers = new LatencyTimers(registry, READ_TIMER, "Time taken to read objects from JSON", "type");
+	}
+
+	@Override
+	protected void writeInternal(Object object, @Nullable Type type, HttpOutputMessage outputMessage)
+			throws IOException, HttpMessageNotWritableException {
+		long start = writeTimers.start();
+		String outcome = LatencyTimers.ERROR;
+
+		try {
+			super.writeInternal(object, type, outputMessage);
+			outcome = LatencyTimers.SUCCESS;
+		} finally {
+			writeTimers.record(object.getClass().getSimpleName(), outcome, start);
+		}
+	}
+
+	@Override
+	public Object read(Type type, @Nullable Class<?> contextClass, HttpInputMessage inputMessage)
+			throws IOException, HttpMessageNotReadableException {
+		long start = readTimers.start();
+		String outcome = LatencyTimers.ERROR;
+
+		try {
+			Object result = super.read(type, contextClass, inputMessage);
+			outcome = LatencyTimers.SUCCESS;
+			return result;
+		} finally {
+			readTimers.record(ResolvableType.forType(type).toClass().getSimpleName(), outcome, start);
+		}
+	}
+
+	@Override
+	protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage)
+			throws IOException, HttpMessageNotReadableException {
+		long start = readTimers.start();
+		String outcome = LatencyTimers.ERROR;
+
+		try {
+			Object result = super.readInternal(clazz, inputMessage);
+			outcome = LatencyTimers.SUCCESS;
+			return result;
+		} finally {
+			readTimers.record(clazz.getSimpleName(), outcome, start);
+		}
+	}
+}
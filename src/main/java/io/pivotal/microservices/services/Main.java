@@ -16,6 +16,11 @@ public class Main {
 
     public static final String NO_VALUE = "NO-VALUE";
 
+    /**
+     * Handle requests using virtual threads (Java 21 or later).
+     */
+    public static final String VIRTUAL_THREADS_OPTION = "--virtual-threads";
+
     public static void main(String[] args) {
 
         String serverName = NO_VALUE;
@@ -27,6 +32,11 @@ public class Main {
         // Look for server name and (optional) port property
         // Ignore any -- arguments intended for Spring Boot
         for (String arg : args) {
+            if (arg.equals(VIRTUAL_THREADS_OPTION)) {
+                System.setProperty(VirtualThreads.ENABLED_PROPERTY, "true");
+                continue;
+            }
+
             if (arg.startsWith("--"))
                 continue;
 
@@ -84,6 +94,8 @@ public class Main {
         System.out.println("       server-port > 1024");
         System.out.println(
                 "     optionally specify --registration.server.hostname=<IP-address> if it is not running on localhost,");
+        System.out.println("     optionally specify " + VIRTUAL_THREADS_OPTION
+                + " to handle requests using virtual threads (Java 21 or later)");
         System.out.println();
     }
 }
@@ -0,0 +1,68 @@
+package io.pivotal.microservices.services;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.springframework.core.env.Environment;
+
+/**
+ * Access to virtual threads (Java 21 or later). The application is built for
+ * older JVMs, so virtual threads are created reflectively and
+ * {@link #isAvailable()} should be checked first.
+ */
+public class VirtualThreads {
+
+    /**
+     * Property that enables virtual threads, the same property that later
+     * versions of Spring Boot use.
+     */
+    public static final String ENABLED_PROPERTY = "spring.threads.virtual.enabled";
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Are virtual threads supported by this JVM?
+     */
+    public static boolean isAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Has {@value #ENABLED_PROPERTY} been set, and does this JVM support virtual
+     * threads?
+     */
+    public static boolean isEnabled(Environment environment) {
+        return environment != null && environment.getProperty(ENABLED_PROPERTY, Boolean.class, false)
+                && isAvailable();
+    }
+
+    /**
+     * Create an executor that runs each task on a new virtual thread.
+     *
+     * @param namePrefix Threads are named by appending a counter to this.
+     * @return The executor.
+     * @throws UnsupportedOperationException If virtual threads are not supported.
+     */
+    public static ExecutorService newExecutor(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        }
+    }
+}
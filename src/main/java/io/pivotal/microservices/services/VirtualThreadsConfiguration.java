@@ -0,0 +1,72 @@
+package io.pivotal.microservices.services;
+
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Run request handling on virtual threads instead of Tomcat's fixed-size
+ * platform thread pool. Enabled by setting
+ * <code>spring.threads.virtual.enabled=true</code> (or running {@link Main}
+ * with <code>--virtual-threads</code>) on Java 21 or later. Each request then
+ * gets its own virtual thread, so requests blocked on JDBC or remote calls no
+ * longer exhaust the pool.
+ * <p>
+ * Asynchronous Spring MVC requests (streamed responses and the reactive web
+ * controller) also complete on virtual threads. Both executors are shut down
+ * when the application context closes, after the web server has stopped.
+ */
+@Configuration
+@ConditionalOnProperty(name = VirtualThreads.ENABLED_PROPERTY, havingValue = "true")
+public class VirtualThreadsConfiguration implements WebMvcConfigurer, DisposableBean {
+
+    protected Logger logger = Logger.getLogger(VirtualThreadsConfiguration.class.getName());
+
+    protected final ExecutorService requestExecutor;
+    protected final ExecutorService asyncExecutor;
+
+    public VirtualThreadsConfiguration() {
+        if (VirtualThreads.isAvailable()) {
+            logger.info("Handling requests using virtual threads");
+            requestExecutor = VirtualThreads.newExecutor("http-vt-");
+            asyncExecutor = VirtualThreads.newExecutor("mvc-async-vt-");
+        } else {
+            logger.warning("Virtual threads require Java 21 or later, running on "
+                    + System.getProperty("java.version") + " - using platform threads");
+            requestExecutor = null;
+            asyncExecutor = null;
+        }
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadsProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            if (requestExecutor != null)
+                protocolHandler.setExecutor(requestExecutor);
+        };
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        if (asyncExecutor != null)
+            configurer.setTaskExecutor(new TaskExecutorAdapter(asyncExecutor));
+    }
+
+    @Override
+    public void destroy() {
+        if (requestExecutor != null)
+            requestExecutor.shutdownNow();
+
+        if (asyncExecutor != null)
+            asyncExecutor.shutdownNow();
+    }
+}
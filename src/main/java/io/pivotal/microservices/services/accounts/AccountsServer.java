@@ -10,6 +10,8 @@ import org.springframework.context.annotation.Import;
 
 import io.pivotal.microservices.accounts.AccountRepository;
 import io.pivotal.microservices.accounts.AccountsConfiguration;
+import io.pivotal.microservices.metrics.MetricsConfiguration;
+import io.pivotal.microservices.services.VirtualThreadsConfiguration;
 import io.pivotal.microservices.services.registration.RegistrationServer;
 
 /**
@@ -17,6 +19,9 @@ import io.pivotal.microservices.services.registration.RegistrationServer;
  * <p>
  * Note that the configuration for this application is imported from
  * {@link AccountsConfiguration}. This is a deliberate separation of concerns.
+ * {@link MetricsConfiguration} is also imported, to time JSON responses, and
+ * {@link VirtualThreadsConfiguration}, to allow requests to be handled using
+ * virtual threads.
  * <p>
  * This class declares no beans and current package contains no components for
  * ComponentScan to find.
@@ -25,7 +30,7 @@ import io.pivotal.microservices.services.registration.RegistrationServer;
  */
 @SpringBootApplication
 @EnableDiscoveryClient
-@Import(AccountsConfiguration.class)
+@Import({ AccountsConfiguration.class, MetricsConfiguration.class, VirtualThreadsConfiguration.class })
 public class AccountsServer {
 
     @Autowired
@@ -1,10 +1,18 @@
 package io.pivotal.microservices.services.registration;
 
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
 import org.springframework.cloud.netflix.eureka.server.EnableEurekaServer;
+import org.springframework.context.annotation.Bean;
+
+import com.netflix.eureka.EurekaServerContext;
 
 /**
  * All you need to run a Eureka registration server.
@@ -29,4 +37,22 @@ public class RegistrationServer {
 
         SpringApplication.run(RegistrationServer.class, args);
     }
+
+    /**
+     * Keeps a {@link RegistrySnapshot} in the file named by
+     * <code>registry.snapshot.file</code>, written every
+     * <code>registry.snapshot.interval-seconds</code> and on shutdown, and
+     * restores it on startup. Created with the Eureka server context, before
+     * any requests are handled.
+     */
+    @Bean
+    @ConditionalOnProperty("registry.snapshot.file")
+    public RegistrySnapshot registrySnapshot(EurekaServerContext serverContext,
+            @Value("${registry.snapshot.file}") String snapshotFile,
+            @Value("${registry.snapshot.interval-seconds:30}") long intervalSeconds) {
+        RegistrySnapshot snapshot = new RegistrySnapshot(serverContext.getRegistry(),
+                serverContext.getServerCodecs().getFullJsonCodec(), Paths.get(snapshotFile));
+        snapshot.startWriting(intervalSeconds, TimeUnit.SECONDS);
+        return snapshot;
+    }
 }
@@ -0,0 +1,185 @@
+package io.pivotal.microservices.services.registration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.LeaseInfo;
+import com.netflix.discovery.converters.wrappers.CodecWrapper;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+
+/**
+ * Copy of the Eureka registry on local disk, so a restarted registration server
+ * answers with the instances registered before it stopped - rather than none,
+ * until every client has noticed and registered again.
+ * <p>
+ * Written periodically and on shutdown, in the registry's full JSON format, to
+ * a temporary file which then replaces the snapshot. When created, every
+ * instance in the snapshot whose lease has not expired is registered again, with
+ * its usual lease duration: a client still running renews it as before, and
+ * the lease of one that stopped while the server was down expires and is
+ * evicted like any other. Leases already expired are not restored.
+ */
+public class RegistrySnapshot implements DisposableBean {
+
+    protected Logger logger = Logger.getLogger(RegistrySnapshot.class.getName());
+
+    private final PeerAwareInstanceRegistry registry;
+
+    private final CodecWrapper codec;
+
+    private final Path file;
+
+    private ScheduledExecutorService writer;
+
+    /**
+     * Restore the instances in the snapshot, if there is one. An unreadable
+     * snapshot is logged and ignored, so the server still starts.
+     *
+     * @param registry The registry, ready to register instances.
+     * @param codec    Writes and reads the registry, as JSON.
+     * @param file     The snapshot file.
+     */
+    public RegistrySnapshot(PeerAwareInstanceRegistry registry, CodecWrapper codec, Path file) {
+        this.registry = registry;
+        this.codec = codec;
+        this.file = file;
+
+        if (Files.exists(file)) {
+            try {
+                restore();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to restore registry from " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot at a fixed interval, on a background thread.
+     *
+     * @param interval Time between snapshots.
+     * @param unit     Unit of the interval.
+     */
+    public synchronized void startWriting(long interval, TimeUnit unit) {
+        if (writer != null)
+            return;
+
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "registry-snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                write();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Registry snapshot failed", e);
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Write every instance now registered, with its lease, to the snapshot.
+     *
+     * @return The number of instances written.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized int write() throws IOException {
+        Applications applications = registry.getApplicationsFromLocalRegionOnly();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            codec.encode(applications, out);
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return instances(applications).size();
+    }
+
+    /**
+     * Register every instance in the snapshot whose lease has not expired.
+     *
+     * @return The number of instances registered.
+     * @throws IOException If the file cannot be read.
+     */
+    protected int restore() throws IOException {
+        long now = System.currentTimeMillis();
+        int restored = 0, expired = 0;
+        Applications applications;
+
+        try (InputStream in = Files.newInputStream(file)) {
+            applications = codec.decode(in, Applications.class);
+        }
+
+        for (InstanceInfo instance : instances(applications)) {
+            if (expiresAt(instance) <= now) {
+                expired++;
+            } else {
+                registry.register(instance, leaseDuration(instance), false);
+                restored++;
+            }
+        }
+
+        logger.info("Restored " + restored + " instances from " + file + ", " + expired + " leases had expired");
+        return restored;
+    }
+
+    /**
+     * @return When the lease of an instance, as saved in a snapshot, expires -
+     *         one lease duration after it was last renewed.
+     */
+    protected static long expiresAt(InstanceInfo instance) {
+        LeaseInfo lease = instance.getLeaseInfo();
+        return lease == null ? 0 : lease.getRenewalTimestamp() + lease.getDurationInSecs() * 1000L;
+    }
+
+    protected static int leaseDuration(InstanceInfo instance) {
+        LeaseInfo lease = instance.getLeaseInfo();
+        return lease == null || lease.getDurationInSecs() <= 0 ? LeaseInfo.DEFAULT_LEASE_DURATION
+                : lease.getDurationInSecs();
+    }
+
+    protected static List<InstanceInfo> instances(Applications applications) {
+        List<InstanceInfo> instances = new ArrayList<InstanceInfo>();
+
+        if (applications != null) {
+            for (Application application : applications.getRegisteredApplications())
+                instances.addAll(application.getInstancesAsIsFromEureka());
+        }
+
+        return instances;
+    }
+
+    /**
+     * Stop writing periodically, and write a final snapshot.
+     */
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (writer != null)
+                writer.shutdownNow();
+        }
+
+        try {
+            logger.info("Wrote " + write() + " instances to " + file);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to write registry snapshot to " + file, e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Account batch DTO - the result of {@link WebAccountsService#findByNumbers}.
+ */
+public class AccountBatch {
+
+	protected List<Account> accounts = new ArrayList<Account>();
+
+	protected List<String> missing = new ArrayList<String>();
+
+	public List<Account> getAccounts() {
+		return accounts;
+	}
+
+	protected void setAccounts(List<Account> accounts) {
+		this.accounts = accounts;
+	}
+
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	protected void setMissing(List<String> missing) {
+		this.missing = missing;
+	}
+
+	@Override
+	public String toString() {
+		return accounts.size() + " found, missing: " + missing;
+	}
+}
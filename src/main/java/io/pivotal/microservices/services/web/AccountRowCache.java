@@ -0,0 +1,97 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.context.WebContext;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Caches the HTML table row rendered for each account listed by an owner
+ * search, so a search returning hundreds of accounts does not evaluate the
+ * row's expressions for every one of them. A row is rendered by the
+ * <code>row</code> fragment of <code>accountRow.html</code> - the same fragment
+ * <code>accounts.html</code> uses when rows are not cached.
+ * <p>
+ * A row is keyed by the account number and the entity tag of the search
+ * results it is part of. The accounts service changes that tag whenever the
+ * version of any account found changes, so a changed account gets a new row
+ * and its old one is, in time, evicted. Results without a tag (caching is
+ * disabled) are rendered every time.
+ * <p>
+ * Rows are held in a {@link NearCache}, so lookups take no lock. Hits and
+ * misses are published as the <code>accounts.cache.*</code> metrics, tagged
+ * <code>cache=accountRows</code>.
+ */
+public class AccountRowCache implements MeterBinder {
+
+    public static final String TEMPLATE = "accountRow";
+    public static final Set<String> FRAGMENT = Collections.singleton("row");
+
+    protected final ITemplateEngine templateEngine;
+    protected final NearCache<List<String>, String> rows;
+
+    /**
+     * @param templateEngine Renders the rows.
+     * @param maxSize        Maximum number of rows. When full, the least recently
+     *                       used rows are evicted.
+     */
+    public AccountRowCache(ITemplateEngine templateEngine, int maxSize) {
+        this.templateEngine = templateEngine;
+
+        // A row never goes stale, as a changed account has a new key
+        this.rows = new NearCache<List<String>, String>("accountRows", maxSize, Duration.ofNanos(Long.MAX_VALUE),
+                Duration.ZERO, Runnable::run);
+    }
+
+    /**
+     * Return the table row of each account, rendering those not cached.
+     *
+     * @param accounts The accounts found by a search.
+     * @param tag      Entity tag of the search results, null if not known.
+     * @param request  The request the rows are shown in, for their links.
+     * @param response Its response.
+     * @return The rows, as HTML, in the same order as the accounts.
+     */
+    public List<String> rows(List<Account> accounts, String tag, HttpServletRequest request,
+            HttpServletResponse response) {
+        WebContext context = new WebContext(request, response, request.getServletContext(), request.getLocale());
+        List<String> rendered = new ArrayList<String>(accounts.size());
+
+        for (Account account : accounts) {
+            if (tag == null)
+                rendered.add(render(account, context));
+            else
+                rendered.add(rows.get(Arrays.asList(account.getNumber(), tag), key -> render(account, context)));
+        }
+
+        return rendered;
+    }
+
+    /**
+     * @return The number of rows cached.
+     */
+    public int size() {
+        return rows.size();
+    }
+
+    protected String render(Account account, WebContext context) {
+        context.setVariable("account", account);
+        return templateEngine.process(TEMPLATE, FRAGMENT, context);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        rows.bindTo(registry);
+    }
+}
@@ -0,0 +1,444 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings for the way {@link WebAccountsService} calls the accounts
+ * microservice, set using <code>accounts-client.*</code> properties in
+ * <code>web-server.yml</code>.
+ */
+@ConfigurationProperties("accounts-client")
+public class AccountsClientProperties {
+
+    /**
+     * Use the non-blocking {@link ReactiveWebAccountsController} and
+     * {@link ReactiveWebAccountsService} instead of their blocking equivalents.
+     */
+    private boolean reactive = false;
+
+    /**
+     * Ask the accounts microservice for accounts in binary, see
+     * {@link io.pivotal.microservices.codec.CompactAccountsHttpMessageConverter},
+     * rather than JSON.
+     */
+    private boolean binary = true;
+
+    private final Cache cache = new Cache();
+
+    private final LoadBalancer loadBalancer = new LoadBalancer();
+
+    private final Hedging hedging = new Hedging();
+
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    private final Bulkhead bulkhead = new Bulkhead();
+
+    private final Pool pool = new Pool();
+
+    /** Give up connecting to an accounts service instance after this long. */
+    private Duration connectTimeout = Duration.ofSeconds(1);
+
+    /** Give up waiting for an accounts service response after this long. */
+    private Duration readTimeout = Duration.ofSeconds(5);
+
+    public boolean isReactive() {
+        return reactive;
+    }
+
+    public void setReactive(boolean reactive) {
+        this.reactive = reactive;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public Hedging getHedging() {
+        return hedging;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    public Pool getPool() {
+        return pool;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Near-cache of accounts fetched by number and by owner.
+     */
+    public static class Cache {
+
+        /** Cache results at all? */
+        private boolean enabled = true;
+
+        /** Maximum entries in each cache, least recently used are evicted. */
+        private int maxSize = 10000;
+
+        /** How long an entry is fresh. */
+        private Duration ttl = Duration.ofSeconds(30);
+
+        /** How long a stale entry may be used while it is refreshed. */
+        private Duration staleWhileRevalidate = Duration.ofSeconds(30);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(Duration ttl) {
+            this.ttl = ttl;
+        }
+
+        public Duration getStaleWhileRevalidate() {
+            return staleWhileRevalidate;
+        }
+
+        public void setStaleWhileRevalidate(Duration staleWhileRevalidate) {
+            this.staleWhileRevalidate = staleWhileRevalidate;
+        }
+    }
+
+    /**
+     * How instances of the accounts microservice are chosen, see
+     * {@link LatencyAwareLoadBalancerConfiguration}.
+     */
+    public static class LoadBalancer {
+
+        public static final Duration DEFAULT_DECAY = Duration.ofSeconds(10);
+
+        /** <code>round-robin</code> or <code>latency-aware</code>. */
+        private String strategy = "round-robin";
+
+        /** How quickly the latency-aware balancer forgets old response times. */
+        private Duration decay = DEFAULT_DECAY;
+
+        public String getStrategy() {
+            return strategy;
+        }
+
+        public void setStrategy(String strategy) {
+            this.strategy = strategy;
+        }
+
+        public Duration getDecay() {
+            return decay;
+        }
+
+        public void setDecay(Duration decay) {
+            this.decay = decay;
+        }
+    }
+
+    /**
+     * Hedging of lookups by number and owner, see {@link Hedger}.
+     */
+    public static class Hedging {
+
+        /** Hedge slow lookups at all? */
+        private boolean enabled = false;
+
+        /** Fixed time before a lookup is hedged, if not set it is adaptive. */
+        private Duration delay;
+
+        /** Adaptive delay: the percentile of recent response times. */
+        private double percentile = 0.95;
+
+        /** Adaptive delay: never less than this. */
+        private Duration minDelay = Duration.ofMillis(5);
+
+        /** Most extra calls, as a fraction of all calls. */
+        private double budget = 0.05;
+
+        /** Most hedges in progress at once, unless virtual threads are enabled. */
+        private int maxThreads = 200;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getDelay() {
+            return delay;
+        }
+
+        public void setDelay(Duration delay) {
+            this.delay = delay;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        public void setPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        public Duration getMinDelay() {
+            return minDelay;
+        }
+
+        public void setMinDelay(Duration minDelay) {
+            this.minDelay = minDelay;
+        }
+
+        public double getBudget() {
+            return budget;
+        }
+
+        public void setBudget(double budget) {
+            this.budget = budget;
+        }
+
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+
+        public void setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+        }
+    }
+
+    /**
+     * Circuit breaker around calls to the accounts microservice, see
+     * {@link io.pivotal.microservices.services.web.CircuitBreaker}.
+     */
+    public static class CircuitBreaker {
+
+        /** Use a circuit breaker at all? */
+        private boolean enabled = true;
+
+        /** Open when at least this fraction of recent calls failed. */
+        private double failureRateThreshold = 0.5;
+
+        /** How many recent calls are remembered. */
+        private int windowSize = 20;
+
+        /** Never open until at least this many calls were made. */
+        private int minimumCalls = 10;
+
+        /** How long to stay open before trying again. */
+        private Duration openDuration = Duration.ofSeconds(10);
+
+        /** Trial calls made when half open, all must succeed to close. */
+        private int halfOpenCalls = 3;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public void setFailureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public void setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        public int getMinimumCalls() {
+            return minimumCalls;
+        }
+
+        public void setMinimumCalls(int minimumCalls) {
+            this.minimumCalls = minimumCalls;
+        }
+
+        public Duration getOpenDuration() {
+            return openDuration;
+        }
+
+        public void setOpenDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+        }
+
+        public int getHalfOpenCalls() {
+            return halfOpenCalls;
+        }
+
+        public void setHalfOpenCalls(int halfOpenCalls) {
+            this.halfOpenCalls = halfOpenCalls;
+        }
+    }
+
+    /**
+     * Limit on concurrent calls to the accounts microservice, see
+     * {@link io.pivotal.microservices.services.web.Bulkhead}.
+     */
+    public static class Bulkhead {
+
+        /** Limit concurrent calls at all? */
+        private boolean enabled = true;
+
+        /** Most calls in progress at once. */
+        private int maxConcurrentCalls = 50;
+
+        /** How long a call may wait to start when the limit is reached. */
+        private Duration maxWait = Duration.ZERO;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxConcurrentCalls() {
+            return maxConcurrentCalls;
+        }
+
+        public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+            this.maxConcurrentCalls = maxConcurrentCalls;
+        }
+
+        public Duration getMaxWait() {
+            return maxWait;
+        }
+
+        public void setMaxWait(Duration maxWait) {
+            this.maxWait = maxWait;
+        }
+    }
+
+    /**
+     * Pool of keep-alive HTTP connections the blocking RestTemplate uses to call
+     * accounts microservice instances.
+     */
+    public static class Pool {
+
+        /** Most connections open to all instances. */
+        private int maxConnections = 200;
+
+        /** Most connections open to each instance. */
+        private int maxConnectionsPerInstance = 50;
+
+        /**
+         * Keep an idle connection at most this long, unless the instance says
+         * otherwise. Must be less than the instance's keep-alive timeout (20s for
+         * Tomcat) or the instance may close it while it is being reused.
+         */
+        private Duration keepAlive = Duration.ofSeconds(15);
+
+        /** Close connections idle for this long, checked in the background. */
+        private Duration evictIdleAfter = Duration.ofSeconds(10);
+
+        /** Check a connection idle for this long is still open before reusing it. */
+        private Duration validateAfterInactivity = Duration.ofSeconds(2);
+
+        /** Give up waiting for a connection from the pool after this long. */
+        private Duration acquireTimeout = Duration.ofSeconds(1);
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        public int getMaxConnectionsPerInstance() {
+            return maxConnectionsPerInstance;
+        }
+
+        public void setMaxConnectionsPerInstance(int maxConnectionsPerInstance) {
+            this.maxConnectionsPerInstance = maxConnectionsPerInstance;
+        }
+
+        public Duration getKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(Duration keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        public Duration getEvictIdleAfter() {
+            return evictIdleAfter;
+        }
+
+        public void setEvictIdleAfter(Duration evictIdleAfter) {
+            this.evictIdleAfter = evictIdleAfter;
+        }
+
+        public Duration getValidateAfterInactivity() {
+            return validateAfterInactivity;
+        }
+
+        public void setValidateAfterInactivity(Duration validateAfterInactivity) {
+            this.validateAfterInactivity = validateAfterInactivity;
+        }
+
+        public Duration getAcquireTimeout() {
+            return acquireTimeout;
+        }
+
+        public void setAcquireTimeout(Duration acquireTimeout) {
+            this.acquireTimeout = acquireTimeout;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.pivotal.microservices.exceptions.AccountsUnavailableException;
+
+/**
+ * Limits how many calls to the accounts microservice are in progress at once,
+ * so when it slows down only some of the web server's threads wait for it and
+ * the rest can still serve other requests - from the cache, for example.
+ * <p>
+ * Calls in progress and calls rejected are published as the
+ * <code>accounts.client.bulkhead.*</code> metrics.
+ */
+public class Bulkhead implements MeterBinder {
+
+    protected final int maxConcurrentCalls;
+    protected final long maxWaitNanos;
+    protected final Semaphore permits;
+
+    protected final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxConcurrentCalls Most calls in progress at once.
+     * @param maxWait            How long a call may wait to start, when that
+     *                           many are already in progress.
+     */
+    public Bulkhead(int maxConcurrentCalls, Duration maxWait) {
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.permits = new Semaphore(maxConcurrentCalls);
+    }
+
+    /**
+     * Make the call, unless too many are in progress.
+     *
+     * @throws AccountsUnavailableException If the call could not start in time.
+     */
+    public <T> T call(Supplier<T> call) {
+        boolean acquired;
+
+        try {
+            acquired = maxWaitNanos <= 0 ? permits.tryAcquire()
+                    : permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired) {
+            rejected.increment();
+            throw new AccountsUnavailableException(maxConcurrentCalls + " calls already in progress");
+        }
+
+        try {
+            return call.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Take a permit without waiting, for a call made outside
+     * {@link #call(Supplier)} - a hedge, for example. Release it with
+     * {@link #release()} once the call is done.
+     *
+     * @return False if too many calls are in progress.
+     */
+    public boolean tryAcquire() {
+        if (permits.tryAcquire())
+            return true;
+
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Return a permit taken by {@link #tryAcquire()}.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return Calls in progress now.
+     */
+    public int getActiveCalls() {
+        return maxConcurrentCalls - permits.availablePermits();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("accounts.client.bulkhead.active", this, Bulkhead::getActiveCalls)
+                .description("Calls to the accounts service in progress").register(registry);
+        FunctionCounter.builder("accounts.client.bulkhead.rejected", rejected, LongAdder::doubleValue)
+                .description("Calls not made because too many were in progress").register(registry);
+    }
+}
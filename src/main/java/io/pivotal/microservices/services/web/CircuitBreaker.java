@@ -0,0 +1,217 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.springframework.web.client.HttpClientErrorException;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.pivotal.microservices.exceptions.AccountsUnavailableException;
+
+/**
+ * Stops calling the accounts microservice while it is failing, so web requests
+ * fail fast - or use cached data - instead of each waiting for a call to fail.
+ * <p>
+ * While <b>closed</b> the outcomes of the last calls are remembered. Once
+ * enough of them have failed the breaker <b>opens</b> and calls are rejected
+ * at once. After a while it is <b>half open</b>: a few trial calls are let
+ * through, and it closes again if they all succeed or reopens if any fails.
+ * A client error, such as 404, means the service is working so is not a
+ * failure.
+ * <p>
+ * The state is published as the <code>accounts.client.circuit.state</code>
+ * metric (0 closed, 1 half open, 2 open) and calls as
+ * <code>accounts.client.circuit.calls</code>, tagged by result.
+ */
+public class CircuitBreaker implements MeterBinder {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    protected Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    protected final double failureRateThreshold;
+    protected final int minimumCalls;
+    protected final long openNanos;
+    protected final int halfOpenCalls;
+    protected final LongSupplier clock;
+
+    /** Outcomes of the last calls while closed, true for a failure. */
+    protected final boolean[] window;
+    protected int windowCalls;
+    protected int windowFailures;
+    protected int windowNext;
+
+    protected volatile State state = State.CLOSED;
+    protected volatile long openedAt;
+    protected final AtomicInteger trialCalls = new AtomicInteger();
+    protected final AtomicInteger trialSuccesses = new AtomicInteger();
+
+    protected final LongAdder successes = new LongAdder();
+    protected final LongAdder failures = new LongAdder();
+    protected final LongAdder rejected = new LongAdder();
+
+    public CircuitBreaker(AccountsClientProperties.CircuitBreaker settings) {
+        this(settings, System::nanoTime);
+    }
+
+    CircuitBreaker(AccountsClientProperties.CircuitBreaker settings, LongSupplier clock) {
+        this.failureRateThreshold = settings.getFailureRateThreshold();
+        this.minimumCalls = settings.getMinimumCalls();
+        this.openNanos = settings.getOpenDuration().toNanos();
+        this.halfOpenCalls = settings.getHalfOpenCalls();
+        this.window = new boolean[Math.max(settings.getWindowSize(), settings.getMinimumCalls())];
+        this.clock = clock;
+    }
+
+    /**
+     * Make the call, unless the breaker is open.
+     *
+     * @throws AccountsUnavailableException If the breaker is open.
+     */
+    public <T> T call(Supplier<T> call) {
+        State permittedIn = acquirePermission();
+
+        try {
+            T result = call.get();
+            onSuccess(permittedIn);
+            return result;
+        } catch (AccountsUnavailableException e) {
+            // Not called at all (bulkhead full), so no outcome
+            if (permittedIn == State.HALF_OPEN)
+                trialCalls.decrementAndGet();
+            throw e;
+        } catch (HttpClientErrorException e) {
+            onSuccess(permittedIn);
+            throw e;
+        } catch (RuntimeException | Error e) {
+            onFailure(permittedIn);
+            throw e;
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The state the call is permitted in.
+     */
+    protected State acquirePermission() {
+        State current = state;
+
+        if (current == State.CLOSED)
+            return current;
+
+        if (current == State.OPEN) {
+            synchronized (this) {
+                if (state == State.OPEN && clock.getAsLong() - openedAt >= openNanos)
+                    transitionTo(State.HALF_OPEN);
+
+                current = state;
+            }
+
+            if (current == State.CLOSED)
+                return current;
+        }
+
+        if (current == State.HALF_OPEN && trialCalls.incrementAndGet() <= halfOpenCalls)
+            return current;
+
+        rejected.increment();
+        throw new AccountsUnavailableException("circuit breaker is " + current);
+    }
+
+    protected void onSuccess(State permittedIn) {
+        successes.increment();
+
+        if (permittedIn == State.HALF_OPEN) {
+            if (trialSuccesses.incrementAndGet() >= halfOpenCalls) {
+                synchronized (this) {
+                    if (state == State.HALF_OPEN)
+                        transitionTo(State.CLOSED);
+                }
+            }
+        } else {
+            record(false);
+        }
+    }
+
+    protected void onFailure(State permittedIn) {
+        failures.increment();
+
+        if (permittedIn == State.HALF_OPEN) {
+            synchronized (this) {
+                if (state == State.HALF_OPEN)
+                    transitionTo(State.OPEN);
+            }
+        } else {
+            record(true);
+        }
+    }
+
+    /**
+     * Remember the outcome of a call made while closed, and open if too many
+     * failed.
+     */
+    protected synchronized void record(boolean failed) {
+        if (state != State.CLOSED)
+            return;
+
+        if (windowCalls == window.length) {
+            if (window[windowNext])
+                windowFailures--;
+        } else {
+            windowCalls++;
+        }
+
+        window[windowNext] = failed;
+        windowNext = (windowNext + 1) % window.length;
+
+        if (failed)
+            windowFailures++;
+
+        if (windowCalls >= minimumCalls && windowFailures >= failureRateThreshold * windowCalls)
+            transitionTo(State.OPEN);
+    }
+
+    /** Call holding the lock. */
+    protected void transitionTo(State next) {
+        logger.warning("Accounts service circuit breaker " + state + " -> " + next
+                + (state == State.CLOSED ? ", " + windowFailures + " of last " + windowCalls + " calls failed" : ""));
+
+        if (next == State.OPEN) {
+            openedAt = clock.getAsLong();
+        } else if (next == State.HALF_OPEN) {
+            trialCalls.set(0);
+            trialSuccesses.set(0);
+        } else {
+            windowCalls = 0;
+            windowFailures = 0;
+            windowNext = 0;
+        }
+
+        state = next;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("accounts.client.circuit.state", this, b -> b.getState().ordinal())
+                .description("0 closed, 1 half open, 2 open").register(registry);
+        counter(registry, "success", successes);
+        counter(registry, "failure", failures);
+        counter(registry, "rejected", rejected);
+    }
+
+    private void counter(MeterRegistry registry, String result, LongAdder count) {
+        FunctionCounter.builder("accounts.client.circuit.calls", count, LongAdder::doubleValue)
+                .tags("result", result).register(registry);
+    }
+}
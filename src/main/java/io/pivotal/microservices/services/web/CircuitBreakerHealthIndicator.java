@@ -0,0 +1,40 @@
+package io.pivotal.microservices.services.web;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+
+/**
+ * Reports the state of the accounts service {@link CircuitBreaker} at
+ * <code>/actuator/health</code>. The web server is {@link #DEGRADED}, rather
+ * than down, while the breaker is open: it still serves cached accounts.
+ */
+public class CircuitBreakerHealthIndicator implements HealthIndicator {
+
+    public static final Status DEGRADED = new Status("DEGRADED", "Accounts service calls are failing fast");
+
+    protected final CircuitBreaker circuitBreaker;
+
+    protected final Bulkhead bulkhead;
+
+    /**
+     * @param circuitBreaker The breaker to report on.
+     * @param bulkhead       Its calls in progress are reported too, may be null.
+     */
+    public CircuitBreakerHealthIndicator(CircuitBreaker circuitBreaker, Bulkhead bulkhead) {
+        this.circuitBreaker = circuitBreaker;
+        this.bulkhead = bulkhead;
+    }
+
+    @Override
+    public Health health() {
+        CircuitBreaker.State state = circuitBreaker.getState();
+        Health.Builder health = state == CircuitBreaker.State.OPEN ? Health.status(DEGRADED) : Health.up();
+        health.withDetail("state", state);
+
+        if (bulkhead != null)
+            health.withDetail("activeCalls", bulkhead.getActiveCalls());
+
+        return health.build();
+    }
+}
@@ -0,0 +1,131 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+import org.springframework.cloud.client.ServiceInstance;
+
+/**
+ * One attempt at a call made by a {@link Hedger}. While it runs, the load
+ * balancer records which instance the call went to, and avoids the instance
+ * the previous attempt went to - see {@link HedgingServiceInstanceListSupplier}.
+ * <p>
+ * The attempt is found through a thread local, which works because the
+ * blocking load balancer chooses the instance on the thread making the call.
+ * <p>
+ * Once another attempt has answered, this one is cancelled: the thread making
+ * it is interrupted and its request, if one was registered with
+ * {@link #onCancel(Runnable)}, is aborted - a thread blocked reading a socket
+ * does not notice an interrupt.
+ */
+public class HedgeAttempt {
+
+    private static final ThreadLocal<HedgeAttempt> CURRENT = new ThreadLocal<HedgeAttempt>();
+
+    private final ServiceInstance avoid;
+
+    private volatile ServiceInstance instance;
+
+    private Thread thread;
+
+    private Runnable cancelAction;
+
+    private boolean cancelled;
+
+    /**
+     * @param avoid Instance not to use, if any other is available. May be null.
+     */
+    public HedgeAttempt(ServiceInstance avoid) {
+        this.avoid = avoid;
+    }
+
+    /**
+     * @return The attempt running on this thread, null if none.
+     */
+    public static HedgeAttempt current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Make the call as this attempt.
+     */
+    public <T> T run(Supplier<T> call) {
+        synchronized (this) {
+            if (cancelled)
+                throw new CancellationException("Attempt cancelled before it started");
+
+            thread = Thread.currentThread();
+        }
+
+        CURRENT.set(this);
+
+        try {
+            return call.get();
+        } finally {
+            CURRENT.remove();
+            boolean interrupted;
+
+            synchronized (this) {
+                thread = null;
+                interrupted = cancelled;
+            }
+
+            // Clear the interrupt from cancel(), so it does not outlive the attempt
+            if (interrupted)
+                Thread.interrupted();
+        }
+    }
+
+    /**
+     * Stop the attempt, if it is still running.
+     */
+    public void cancel() {
+        Runnable action;
+
+        synchronized (this) {
+            if (cancelled)
+                return;
+
+            cancelled = true;
+            action = cancelAction;
+
+            if (thread != null)
+                thread.interrupt();
+        }
+
+        if (action != null)
+            action.run();
+    }
+
+    /**
+     * Set what to do to stop the request this attempt is making, such as
+     * aborting it. Run straight away if the attempt is already cancelled.
+     *
+     * @param action Stops the current request.
+     */
+    public void onCancel(Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelAction = action;
+                return;
+            }
+        }
+
+        action.run();
+    }
+
+    public ServiceInstance getAvoid() {
+        return avoid;
+    }
+
+    /**
+     * @return The instance the call went to, null if not known yet.
+     */
+    public ServiceInstance getInstance() {
+        return instance;
+    }
+
+    public void setInstance(ServiceInstance instance) {
+        this.instance = instance;
+    }
+}
@@ -0,0 +1,405 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Hedges read-only calls: if a call has not answered after a delay, the same
+ * call is made again - to a different instance, see {@link HedgeAttempt} - and
+ * whichever answers first is used, the other being cancelled. A call that slow
+ * is usually stuck behind a slow or paused instance, so this cuts the tail
+ * latency for a few percent more calls.
+ * <p>
+ * The call itself is made on the caller's thread, so a call that answers in
+ * time costs no more than it would unhedged. Only the hedge is run by the
+ * executor, started by a timer once the delay has passed.
+ * <p>
+ * The delay is either fixed or the chosen percentile of recent response times.
+ * Extra calls are limited by a budget: each call earns a fraction of a hedge,
+ * and hedging stops when the budget is spent, so a slow service does not get
+ * twice the load. If a {@link Bulkhead} is given, a hedge also needs one of its
+ * permits, so hedging cannot take calls in progress past its limit.
+ * <p>
+ * Outcomes are published as the <code>accounts.client.hedging</code> metric,
+ * tagged <code>result</code>: <code>not_needed</code>,
+ * <code>hedge_won</code>, <code>primary_won</code> or
+ * <code>over_budget</code>. The hedge rate is the won and lost hedges over all
+ * calls, the win rate is hedges won over hedges made.
+ */
+public class Hedger implements MeterBinder {
+
+    /** Response times remembered to calculate the adaptive delay. */
+    protected static final int WINDOW_SIZE = 1024;
+
+    /** Hedge only once this many response times are known, and recalculate after this many more. */
+    protected static final int MIN_SAMPLES = 64;
+
+    /** Most hedges that can be saved up, so a burst can be hedged. */
+    protected static final long MAX_BUDGET = 10;
+
+    /** Budget is counted in thousandths of a hedge. */
+    protected static final long HEDGE_COST = 1000;
+
+    protected final String name;
+    protected final Executor executor;
+    protected final ScheduledExecutorService timer;
+    protected final long fixedDelayNanos;
+    protected final double percentile;
+    protected final long minDelayNanos;
+    protected final long budgetPerCall;
+    protected final Bulkhead bulkhead;
+
+    protected final AtomicLong budget = new AtomicLong(MAX_BUDGET * HEDGE_COST);
+
+    /** Written by every calling thread, so each element is set atomically. */
+    protected final AtomicLongArray window = new AtomicLongArray(WINDOW_SIZE);
+    protected final AtomicLong samples = new AtomicLong();
+    protected volatile long adaptiveDelayNanos = -1;
+
+    protected final LongAdder notNeeded = new LongAdder();
+    protected final LongAdder hedgeWon = new LongAdder();
+    protected final LongAdder primaryWon = new LongAdder();
+    protected final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param name       Name used to tag this instance's metrics.
+     * @param executor   Runs each hedge. If it rejects one, the call is not
+     *                   hedged.
+     * @param timer      Starts each hedge once the delay has passed.
+     * @param settings   The delay, percentile and budget.
+     */
+    public Hedger(String name, Executor executor, ScheduledExecutorService timer,
+            AccountsClientProperties.Hedging settings) {
+        this(name, executor, timer, settings, null);
+    }
+
+    /**
+     * @param name       Name used to tag this instance's metrics.
+     * @param executor   Runs each hedge. If it rejects one, the call is not
+     *                   hedged.
+     * @param timer      Starts each hedge once the delay has passed.
+     * @param settings   The delay, percentile and budget.
+     * @param bulkhead   Limits calls in progress, hedges included. May be null.
+     */
+    public Hedger(String name, Executor executor, ScheduledExecutorService timer,
+            AccountsClientProperties.Hedging settings, Bulkhead bulkhead) {
+        this.name = name;
+        this.executor = executor;
+        this.timer = timer;
+        this.fixedDelayNanos = settings.getDelay() == null ? -1 : settings.getDelay().toNanos();
+        this.percentile = settings.getPercentile();
+        this.minDelayNanos = settings.getMinDelay().toNanos();
+        this.budgetPerCall = Math.round(settings.getBudget() * HEDGE_COST);
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * Make the call, hedging it if it is slow.
+     *
+     * @param call A read-only call, safe to make twice. May return null.
+     * @return The result of the first attempt to answer.
+     */
+    public <T> T call(Supplier<T> call) {
+        earnBudget();
+
+        long delay = delayNanos();
+        long start = System.nanoTime();
+        HedgeAttempt first = new HedgeAttempt(null);
+
+        if (delay < 0) {
+            try {
+                return first.run(call);
+            } finally {
+                record(System.nanoTime() - start);
+                notNeeded.increment();
+            }
+        }
+
+        Race<T> race = new Race<T>(first);
+        ScheduledFuture<?> hedge = timer.schedule(() -> hedge(race, call), delay, TimeUnit.NANOSECONDS);
+
+        try {
+            race.answered(first, first.run(call), null);
+        } catch (RuntimeException e) {
+            race.answered(first, null, e);
+        } finally {
+            // If the hedge won, the call was cancelled when it answered
+            hedge.cancel(false);
+            record(System.nanoTime() - start);
+        }
+
+        try {
+            return await(race.answer);
+        } catch (InterruptedException e) {
+            race.cancel();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted calling " + name, e);
+        }
+    }
+
+    /**
+     * @return How long to wait before hedging, in nanoseconds. Negative to not
+     *         hedge, until enough response times are known.
+     */
+    public long delayNanos() {
+        return fixedDelayNanos >= 0 ? fixedDelayNanos : adaptiveDelayNanos;
+    }
+
+    /**
+     * Start the hedge of a call that has not answered yet, budget and bulkhead
+     * allowing. Run by the timer, so never waits for the call.
+     */
+    protected <T> void hedge(Race<T> race, Supplier<T> call) {
+        HedgeAttempt second = race.hedge();
+
+        if (second == null)
+            return;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    race.answered(second, second.run(call), null);
+                } catch (RuntimeException e) {
+                    race.answered(second, null, e);
+                } finally {
+                    releasePermit();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releasePermit();
+            race.rejected();
+        }
+    }
+
+    protected boolean acquirePermit() {
+        return bulkhead == null || bulkhead.tryAcquire();
+    }
+
+    protected void releasePermit() {
+        if (bulkhead != null)
+            bulkhead.release();
+    }
+
+    protected <T> T await(CompletableFuture<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * @return The exception thrown by the call, to rethrow.
+     */
+    protected RuntimeException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+
+        if (cause instanceof RuntimeException)
+            return (RuntimeException) cause;
+        else if (cause instanceof Error)
+            throw (Error) cause;
+        else
+            return new IllegalStateException(cause);
+    }
+
+    protected void earnBudget() {
+        long max = MAX_BUDGET * HEDGE_COST;
+        long current;
+
+        do {
+            current = budget.get();
+        } while (current < max && !budget.compareAndSet(current, Math.min(max, current + budgetPerCall)));
+    }
+
+    protected boolean spendBudget() {
+        long current;
+
+        do {
+            current = budget.get();
+
+            if (current < HEDGE_COST)
+                return false;
+        } while (!budget.compareAndSet(current, current - HEDGE_COST));
+
+        return true;
+    }
+
+    /**
+     * Remember a response time, and recalculate the delay every
+     * {@link #MIN_SAMPLES} of them. Response times recorded while the delay is
+     * calculated may or may not be included.
+     */
+    protected void record(long nanos) {
+        long count = samples.incrementAndGet();
+        window.set((int) ((count - 1) % WINDOW_SIZE), nanos);
+
+        if (fixedDelayNanos < 0 && count % MIN_SAMPLES == 0) {
+            long[] sorted = new long[(int) Math.min(count, WINDOW_SIZE)];
+
+            for (int i = 0; i < sorted.length; i++)
+                sorted[i] = window.get(i);
+
+            Arrays.sort(sorted);
+            long delay = sorted[(int) Math.min(sorted.length - 1, Math.floor(percentile * sorted.length))];
+            adaptiveDelayNanos = Math.max(minDelayNanos, delay);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        counter(registry, "not_needed", notNeeded);
+        counter(registry, "hedge_won", hedgeWon);
+        counter(registry, "primary_won", primaryWon);
+        counter(registry, "over_budget", overBudget);
+        TimeGauge.builder("accounts.client.hedging.delay", this, TimeUnit.NANOSECONDS, h -> Math.max(0, h.delayNanos()))
+                .tags("call", name).description("Time before a call is hedged").register(registry);
+    }
+
+    private void counter(MeterRegistry registry, String result, LongAdder count) {
+        FunctionCounter.builder("accounts.client.hedging", count, LongAdder::doubleValue)
+                .tags("call", name, "result", result).register(registry);
+    }
+
+    /**
+     * A call and, once it is slow, its hedge. The first attempt to succeed
+     * answers the call and the other is cancelled. The call only fails once
+     * every attempt made has failed, with the last failure.
+     */
+    protected class Race<T> {
+
+        protected final CompletableFuture<T> answer = new CompletableFuture<T>();
+
+        protected final HedgeAttempt first;
+
+        protected HedgeAttempt second;
+
+        protected boolean done;
+
+        protected boolean hedgeRejected;
+
+        protected int failures;
+
+        protected RuntimeException failure;
+
+        protected Race(HedgeAttempt first) {
+            this.first = first;
+        }
+
+        /**
+         * @return The hedge to make, or null if the call has answered, the
+         *         budget is spent or the bulkhead is full. A hedge returned
+         *         holds a bulkhead permit, to release when it is done.
+         */
+        protected synchronized HedgeAttempt hedge() {
+            if (done)
+                return null;
+
+            if (!spendBudget()) {
+                overBudget.increment();
+                hedgeRejected = true;
+                return null;
+            }
+
+            // Counted as over budget too, with the budget returned
+            if (!acquirePermit()) {
+                budget.addAndGet(HEDGE_COST);
+                overBudget.increment();
+                hedgeRejected = true;
+                return null;
+            }
+
+            second = new HedgeAttempt(first.getInstance());
+            return second;
+        }
+
+        /**
+         * The executor is busy, so the hedge was not made after all - counted
+         * as over budget, and the budget spent on it returned.
+         */
+        protected void rejected() {
+            synchronized (this) {
+                budget.addAndGet(HEDGE_COST);
+                overBudget.increment();
+                second = null;
+                hedgeRejected = true;
+
+                // The call may have failed while waiting for the hedge
+                if (done || failures == 0)
+                    return;
+
+                done = true;
+            }
+
+            answer.completeExceptionally(failure);
+        }
+
+        /**
+         * An attempt has succeeded or failed.
+         */
+        protected void answered(HedgeAttempt attempt, T result, RuntimeException e) {
+            HedgeAttempt loser;
+
+            synchronized (this) {
+                if (done)
+                    return;
+
+                if (e != null) {
+                    failure = e;
+
+                    if (++failures < (second == null ? 1 : 2))
+                        return;
+                } else if (second != null) {
+                    if (attempt == first)
+                        primaryWon.increment();
+                    else
+                        hedgeWon.increment();
+                }
+
+                if (second == null && !hedgeRejected)
+                    notNeeded.increment();
+
+                done = true;
+                loser = attempt == first ? second : first;
+            }
+
+            // Counted before completing, so the count is current when the caller returns
+            if (e != null)
+                answer.completeExceptionally(e);
+            else
+                answer.complete(result);
+
+            if (loser != null)
+                loser.cancel();
+        }
+
+        /**
+         * Cancel the hedge, if one was made, as the caller has given up.
+         */
+        protected void cancel() {
+            HedgeAttempt hedge;
+
+            synchronized (this) {
+                hedge = second;
+            }
+
+            if (hedge != null)
+                hedge.cancel();
+        }
+    }
+}
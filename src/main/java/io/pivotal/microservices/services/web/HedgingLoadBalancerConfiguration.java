@@ -0,0 +1,33 @@
+package io.pivotal.microservices.services.web;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Load balancer configuration for each service the web server calls, like
+ * {@link LatencyAwareLoadBalancerConfiguration}. When
+ * <code>accounts-client.hedging.enabled=true</code> hedged calls are sent to a
+ * different instance from the call they hedge, whichever load balancing
+ * strategy is used.
+ * <p>
+ * Must not be component scanned, or it would apply to the web server itself.
+ */
+@Configuration(proxyBeanMethods = false)
+public class HedgingLoadBalancerConfiguration {
+
+    /**
+     * Instances from the discovery client, cached as by default. Declared as its
+     * own class so Spring Cloud also finds it as a
+     * {@link org.springframework.cloud.client.loadbalancer.LoadBalancerLifecycle}.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.hedging.enabled", havingValue = "true")
+    public HedgingServiceInstanceListSupplier hedgingServiceInstanceListSupplier(
+            ConfigurableApplicationContext context) {
+        return new HedgingServiceInstanceListSupplier(
+                ServiceInstanceListSupplier.builder().withBlockingDiscoveryClient().withCaching().build(context));
+    }
+}
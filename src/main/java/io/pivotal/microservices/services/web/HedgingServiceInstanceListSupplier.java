@@ -0,0 +1,86 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerLifecycle;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.loadbalancer.core.DelegatingServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * Sends a hedged call to a different instance from the call it hedges. Used
+ * with any load balancing strategy, it removes the instance the first
+ * {@link HedgeAttempt} went to from the instances the load balancer chooses
+ * from, unless no other is available. As a {@link LoadBalancerLifecycle} it
+ * records the instance each attempt went to.
+ */
+public class HedgingServiceInstanceListSupplier extends DelegatingServiceInstanceListSupplier
+        implements LoadBalancerLifecycle<Object, Object, ServiceInstance> {
+
+    public HedgingServiceInstanceListSupplier(ServiceInstanceListSupplier delegate) {
+        super(delegate);
+    }
+
+    @Override
+    public Flux<List<ServiceInstance>> get() {
+        return withoutAvoided(delegate.get());
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Flux<List<ServiceInstance>> get(Request request) {
+        return withoutAvoided(delegate.get(request));
+    }
+
+    /**
+     * Must check the attempt now, on the calling thread, not when the instances
+     * are supplied.
+     */
+    protected Flux<List<ServiceInstance>> withoutAvoided(Flux<List<ServiceInstance>> instances) {
+        HedgeAttempt attempt = HedgeAttempt.current();
+
+        if (attempt == null || attempt.getAvoid() == null)
+            return instances;
+
+        ServiceInstance avoid = attempt.getAvoid();
+
+        return instances.map(list -> {
+            List<ServiceInstance> others = new ArrayList<ServiceInstance>(list.size());
+
+            for (ServiceInstance instance : list) {
+                if (!instance.getHost().equals(avoid.getHost()) || instance.getPort() != avoid.getPort())
+                    others.add(instance);
+            }
+
+            return others.isEmpty() ? list : others;
+        });
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean supports(Class requestContextClass, Class responseClass, Class serverTypeClass) {
+        return ServiceInstance.class.isAssignableFrom(serverTypeClass);
+    }
+
+    @Override
+    public void onStart(Request<Object> request) {
+    }
+
+    @Override
+    public void onStartRequest(Request<Object> request, Response<ServiceInstance> lbResponse) {
+        HedgeAttempt attempt = HedgeAttempt.current();
+
+        if (attempt != null && lbResponse.hasServer())
+            attempt.setInstance(lbResponse.getServer());
+    }
+
+    @Override
+    public void onComplete(CompletionContext<Object, ServiceInstance, Object> completionContext) {
+    }
+}
@@ -0,0 +1,308 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.DefaultResponse;
+import org.springframework.cloud.client.loadbalancer.EmptyResponse;
+import org.springframework.cloud.client.loadbalancer.LoadBalancerLifecycle;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.client.loadbalancer.TimedRequestContext;
+import org.springframework.cloud.loadbalancer.core.NoopServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.core.ReactorServiceInstanceLoadBalancer;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Load balancer that sends each request to the instance expected to answer
+ * soonest, so one slow or paused instance does not drag down the tail latency
+ * the way round-robin does.
+ * <p>
+ * Each instance's cost is its "peak EWMA" response time - an exponentially
+ * weighted moving average that jumps straight up to any slower response -
+ * multiplied by one more than its requests in flight. Two instances are picked
+ * at random and the cheaper one used ("power of two choices"), which avoids
+ * every client piling onto the same instance at once.
+ * <p>
+ * The average decays towards zero while an instance is not used, so an
+ * instance that was slow is eventually tried again. Response times are
+ * measured as a {@link LoadBalancerLifecycle}, which Spring Cloud calls around
+ * every request this balancer chooses an instance for. Those of instances no
+ * longer supplied are dropped - but not when the instances are for a hedged
+ * call, which are all but the one the call it hedges went to. A request is
+ * taken off the in-flight count it was added to, even if its instance has
+ * since been dropped and measured afresh.
+ */
+public class LatencyAwareLoadBalancer implements ReactorServiceInstanceLoadBalancer,
+        LoadBalancerLifecycle<Object, Object, ServiceInstance> {
+
+    /** Cost of a failed request, in nanoseconds, unless it took longer. */
+    public static final long FAILURE_PENALTY_NANOS = 1_000_000_000L;
+
+    private final ObjectProvider<ServiceInstanceListSupplier> instances;
+
+    private final String serviceId;
+
+    private final double decayNanos;
+
+    private final LongSupplier clock;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * @param instances  Supplies the instances of the service.
+     * @param serviceId  The service.
+     * @param decayNanos Time constant of the moving average: the weight of a
+     *                   response time falls by a factor of e in this time.
+     */
+    public LatencyAwareLoadBalancer(ObjectProvider<ServiceInstanceListSupplier> instances, String serviceId,
+            long decayNanos) {
+        this(instances, serviceId, decayNanos, System::nanoTime);
+    }
+
+    LatencyAwareLoadBalancer(ObjectProvider<ServiceInstanceListSupplier> instances, String serviceId,
+            long decayNanos, LongSupplier clock) {
+        this.instances = instances;
+        this.serviceId = serviceId;
+        this.decayNanos = decayNanos;
+        this.clock = clock;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Mono<Response<ServiceInstance>> choose(Request request) {
+        ServiceInstanceListSupplier supplier = instances.getIfAvailable(NoopServiceInstanceListSupplier::new);
+
+        // Checked now, on the calling thread, see HedgingServiceInstanceListSupplier
+        HedgeAttempt attempt = HedgeAttempt.current();
+        boolean everyInstance = attempt == null || attempt.getAvoid() == null;
+
+        return supplier.get(request).next().map(candidates -> choose(candidates, everyInstance));
+    }
+
+    /**
+     * Pick the cheaper of two random instances.
+     *
+     * @param candidates Every instance of the service.
+     * @return The instance chosen, empty if there are none.
+     */
+    protected Response<ServiceInstance> choose(List<ServiceInstance> candidates) {
+        return choose(candidates, true);
+    }
+
+    /**
+     * Pick the cheaper of two random instances.
+     *
+     * @param candidates    The instances available.
+     * @param everyInstance Whether the candidates are every instance of the
+     *                      service, so any other known instance has gone.
+     * @return The instance chosen, empty if there are none.
+     */
+    protected Response<ServiceInstance> choose(List<ServiceInstance> candidates, boolean everyInstance) {
+        int size = candidates.size();
+
+        // More known than supplied, so some have gone
+        if (everyInstance && stats.size() > size)
+            prune(candidates);
+
+        if (size == 0)
+            return new EmptyResponse();
+        else if (size == 1)
+            return new Choice(candidates.get(0), stats(candidates.get(0)));
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+
+        if (second >= first)
+            second++;
+
+        ServiceInstance a = candidates.get(first);
+        ServiceInstance b = candidates.get(second);
+        Stats statsA = stats(a);
+        Stats statsB = stats(b);
+        long now = clock.getAsLong();
+
+        return statsA.cost(now) <= statsB.cost(now) ? new Choice(a, statsA) : new Choice(b, statsB);
+    }
+
+    /**
+     * Forget the instances that are not candidates.
+     */
+    protected void prune(List<ServiceInstance> candidates) {
+        Set<String> keys = new HashSet<String>();
+
+        for (ServiceInstance candidate : candidates)
+            keys.add(key(candidate));
+
+        stats.keySet().retainAll(keys);
+    }
+
+    /**
+     * @return The number of instances whose response times are known.
+     */
+    public int instancesKnown() {
+        return stats.size();
+    }
+
+    /**
+     * @return The current cost of an instance, used to compare it with others.
+     */
+    public double cost(ServiceInstance instance) {
+        return stats(instance).cost(clock.getAsLong());
+    }
+
+    @Override
+    public boolean supports(Class requestContextClass, Class responseClass, Class serverTypeClass) {
+        return ServiceInstance.class.isAssignableFrom(serverTypeClass);
+    }
+
+    @Override
+    public void onStart(Request<Object> request) {
+    }
+
+    @Override
+    public void onStartRequest(Request<Object> request, Response<ServiceInstance> lbResponse) {
+        if (!lbResponse.hasServer())
+            return;
+
+        Stats instanceStats;
+
+        if (lbResponse instanceof Choice) {
+            Choice choice = (Choice) lbResponse;
+
+            if (!choice.started.compareAndSet(false, true))
+                return;
+
+            instanceStats = choice.stats;
+        } else {
+            instanceStats = stats(lbResponse.getServer());
+        }
+
+        if (request.getContext() instanceof TimedRequestContext)
+            ((TimedRequestContext) request.getContext()).setRequestStartTime(clock.getAsLong());
+
+        instanceStats.inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void onComplete(CompletionContext<Object, ServiceInstance, Object> completionContext) {
+        Response<ServiceInstance> lbResponse = completionContext.getLoadBalancerResponse();
+
+        if (lbResponse == null || !lbResponse.hasServer())
+            return;
+
+        Stats instanceStats;
+
+        if (lbResponse instanceof Choice) {
+            Choice choice = (Choice) lbResponse;
+
+            // Not started, or already completed
+            if (!choice.started.compareAndSet(true, false))
+                return;
+
+            instanceStats = choice.stats;
+            instanceStats.inFlight.decrementAndGet();
+        } else {
+            // Chosen elsewhere, so the stats it was counted in are not known
+            instanceStats = stats.get(key(lbResponse.getServer()));
+
+            // Dropped while the request was in flight
+            if (instanceStats == null)
+                return;
+
+            instanceStats.inFlight.updateAndGet(n -> n > 0 ? n - 1 : 0);
+        }
+
+        Object context = completionContext.getLoadBalancerRequest() == null ? null
+                : completionContext.getLoadBalancerRequest().getContext();
+
+        if (!(context instanceof TimedRequestContext) || ((TimedRequestContext) context).getRequestStartTime() == 0)
+            return;
+
+        long now = clock.getAsLong();
+        long elapsed = now - ((TimedRequestContext) context).getRequestStartTime();
+
+        if (completionContext.status() == CompletionContext.Status.FAILED)
+            elapsed = Math.max(elapsed, FAILURE_PENALTY_NANOS);
+
+        instanceStats.observe(elapsed, now);
+    }
+
+    private static String key(ServiceInstance instance) {
+        return instance.getHost() + ':' + instance.getPort();
+    }
+
+    private Stats stats(ServiceInstance instance) {
+        String key = key(instance);
+        Stats instanceStats = stats.get(key);
+
+        if (instanceStats == null)
+            instanceStats = stats.computeIfAbsent(key, k -> new Stats());
+
+        return instanceStats;
+    }
+
+    /**
+     * An instance chosen, with the stats its request is counted in while in
+     * flight.
+     */
+    private static class Choice extends DefaultResponse {
+
+        final Stats stats;
+
+        final AtomicBoolean started = new AtomicBoolean();
+
+        Choice(ServiceInstance instance, Stats stats) {
+            super(instance);
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Response times and requests in flight for one instance.
+     */
+    private class Stats {
+
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        /** Peak EWMA of the response time, in nanoseconds. */
+        private volatile double ewma;
+
+        private volatile long updated;
+
+        synchronized void observe(long responseNanos, long now) {
+            if (responseNanos > ewma) {
+                ewma = responseNanos;
+            } else {
+                double weight = Math.exp(-Math.max(now - updated, 0) / decayNanos);
+                ewma = ewma * weight + responseNanos * (1 - weight);
+            }
+
+            updated = now;
+        }
+
+        double cost(long now) {
+            // +1 so instances not yet measured are still ranked by load
+            return (decayed(now) + 1) * (inFlight.get() + 1);
+        }
+
+        private double decayed(long now) {
+            double value = ewma;
+            long elapsed = now - updated;
+            return elapsed <= 0 || value == 0 ? value : value * Math.exp(-elapsed / decayNanos);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.support.LoadBalancerClientFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Load balancer configuration for each service the web server calls,
+ * registered by {@link WebServer} and created by Spring Cloud in a separate
+ * context per service. Uses the {@link LatencyAwareLoadBalancer} when
+ * <code>accounts-client.load-balancer.strategy=latency-aware</code>, otherwise
+ * Spring Cloud's default round-robin.
+ * <p>
+ * Must not be component scanned, or it would apply to the web server itself.
+ */
+@Configuration(proxyBeanMethods = false)
+public class LatencyAwareLoadBalancerConfiguration {
+
+    public static final String STRATEGY_PROPERTY = "accounts-client.load-balancer.strategy";
+
+    public static final String LATENCY_AWARE = "latency-aware";
+
+    /**
+     * Declared as its own class, not just a load balancer, so Spring Cloud also
+     * finds it as the {@link org.springframework.cloud.client.loadbalancer.LoadBalancerLifecycle}
+     * that measures each request.
+     */
+    @Bean
+    @ConditionalOnProperty(name = STRATEGY_PROPERTY, havingValue = LATENCY_AWARE)
+    public LatencyAwareLoadBalancer latencyAwareLoadBalancer(Environment environment,
+            LoadBalancerClientFactory loadBalancerClientFactory) {
+        String serviceId = environment.getProperty(LoadBalancerClientFactory.PROPERTY_NAME);
+        Duration decay = Binder.get(environment).bind("accounts-client.load-balancer.decay", Duration.class)
+                .orElse(AccountsClientProperties.LoadBalancer.DEFAULT_DECAY);
+
+        return new LatencyAwareLoadBalancer(
+                loadBalancerClientFactory.getLazyProvider(serviceId, ServiceInstanceListSupplier.class), serviceId,
+                decay.toNanos());
+    }
+}
@@ -0,0 +1,327 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * A size-bounded, least-recently-used cache of results fetched from the
+ * accounts microservice by {@link WebAccountsService}.
+ * <p>
+ * Lookups take no lock: a hit only records when the entry was last used. Once
+ * the cache is over its maximum size, the thread adding an entry evicts the
+ * least recently used entries, a few more than needed so this happens once per
+ * many additions. Concurrent additions may take the cache briefly over size.
+ * <p>
+ * Entries younger than the time-to-live are returned as they are. For a
+ * further <code>staleWhileRevalidate</code> period an entry is still returned,
+ * but a background refresh is started so the next caller gets fresh data.
+ * Older entries are reloaded before returning. Null results (such as an
+ * unknown account number) are cached too; a loader that throws is not.
+ * <p>
+ * An entry may have an entity tag. A {@link Loader} is given the entry it is
+ * reloading, so it can ask for the value only if its tag has changed, and
+ * return the same entry if not - which is then fresh again.
+ * <p>
+ * Hit, miss and eviction counts are published as metrics (see
+ * {@link #bindTo(MeterRegistry)}) under <code>accounts.cache.*</code>.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+public class NearCache<K, V> implements MeterBinder {
+
+    protected Logger logger = Logger.getLogger(NearCache.class.getName());
+
+    protected final String name;
+    protected final long ttlNanos;
+    protected final long staleNanos;
+    protected final Executor refreshExecutor;
+    protected final int maxSize;
+    protected final Map<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+
+    /** Held by the thread evicting entries, others do not wait for it. */
+    protected final ReentrantLock evicting = new ReentrantLock();
+
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder staleHits = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
+    protected final LongAdder evictions = new LongAdder();
+    protected final LongAdder refreshFailures = new LongAdder();
+    protected final LongAdder revalidated = new LongAdder();
+
+    /**
+     * Fetches a value, or confirms a cached value has not changed.
+     */
+    @FunctionalInterface
+    public interface Loader<K, V> {
+
+        /**
+         * @param key      The key.
+         * @param previous The entry being reloaded, however old, or null if there
+         *                 is none.
+         * @return A new entry, or <code>previous</code> if its value has not
+         *         changed. Never null.
+         */
+        Entry<V> load(K key, Entry<V> previous);
+    }
+
+    /**
+     * Create an empty cache.
+     *
+     * @param name                 Name used to tag this cache's metrics.
+     * @param maxSize              Maximum number of entries. When full, the least
+     *                             recently used entries are evicted.
+     * @param ttl                  How long an entry is fresh.
+     * @param staleWhileRevalidate How long after that a stale entry may be
+     *                             returned while it is refreshed.
+     * @param refreshExecutor      Runs background refreshes.
+     */
+    public NearCache(String name, int maxSize, Duration ttl, Duration staleWhileRevalidate,
+            Executor refreshExecutor) {
+        this.name = name;
+        this.ttlNanos = ttl.toNanos();
+        this.staleNanos = staleWhileRevalidate.toNanos();
+        this.refreshExecutor = refreshExecutor;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the cached value for the key, loading it if there is no usable
+     * entry.
+     *
+     * @param key    The key.
+     * @param loader Fetches the value for a key. May return null. Any exception
+     *               is passed on to the caller.
+     * @return The value, possibly stale.
+     */
+    public V get(K key, Function<K, V> loader) {
+        return get(key, (k, previous) -> new Entry<V>(loader.apply(k), null));
+    }
+
+    /**
+     * Return the cached value for the key, loading or revalidating it if there
+     * is no usable entry.
+     *
+     * @param key    The key.
+     * @param loader Fetches the value for a key, or confirms the cached value is
+     *               unchanged. Any exception is passed on to the caller.
+     * @return The value, possibly stale.
+     */
+    public V get(K key, Loader<K, V> loader) {
+        return getEntry(key, loader).value;
+    }
+
+    /**
+     * As {@link #get(Object, Loader)}, but return the entry, so the caller also
+     * has the value's entity tag.
+     *
+     * @param key    The key.
+     * @param loader Fetches the value for a key, or confirms the cached value is
+     *               unchanged. Any exception is passed on to the caller.
+     * @return The entry, possibly stale. Never null.
+     */
+    public Entry<V> getEntry(K key, Loader<K, V> loader) {
+        Entry<V> entry = entries.get(key);
+
+        if (entry != null) {
+            long now = System.nanoTime();
+            long age = now - entry.loadedAt;
+            entry.lastUsed = now;
+
+            if (age < ttlNanos) {
+                hits.increment();
+                return entry;
+            } else if (age < ttlNanos + staleNanos) {
+                staleHits.increment();
+                refresh(key, entry, loader);
+                return entry;
+            }
+        }
+
+        misses.increment();
+        return load(key, entry, loader);
+    }
+
+    /**
+     * Return the cached value for the key, however old, without loading it.
+     *
+     * @param key The key.
+     * @return The entry, or null if there is none. Use {@link Entry#getValue()}
+     *         since the cached value may itself be null.
+     */
+    public Entry<V> getIfPresent(K key) {
+        return entries.get(key);
+    }
+
+    public void put(K key, V value) {
+        put(key, new Entry<V>(value, null));
+    }
+
+    protected void put(K key, Entry<V> entry) {
+        entries.put(key, entry);
+
+        if (entries.size() > maxSize)
+            evict();
+    }
+
+    /**
+     * Remove the least recently used entries, down to the maximum size less a
+     * sixteenth, unless another thread is already doing so.
+     */
+    protected void evict() {
+        if (!evicting.tryLock())
+            return;
+
+        try {
+            long[] lastUsed = new long[entries.size()];
+            int count = 0;
+
+            for (Entry<V> entry : entries.values()) {
+                if (count == lastUsed.length)
+                    break;
+
+                lastUsed[count++] = entry.lastUsed;
+            }
+
+            int excess = count - maxSize + maxSize / 16;
+
+            if (excess <= 0)
+                return;
+
+            // Times are compared by difference, as System.nanoTime() may wrap
+            long newest = lastUsed[0];
+
+            for (int i = 1; i < count; i++)
+                if (lastUsed[i] - newest > 0)
+                    newest = lastUsed[i];
+
+            // Now the age of each entry, youngest first once sorted
+            for (int i = 0; i < count; i++)
+                lastUsed[i] = newest - lastUsed[i];
+
+            Arrays.sort(lastUsed, 0, count);
+            long minAge = lastUsed[count - excess];
+
+            for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+                if (excess == 0)
+                    break;
+
+                if (newest - entry.getValue().lastUsed >= minAge && entries.remove(entry.getKey(), entry.getValue())) {
+                    evictions.increment();
+                    excess--;
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    /**
+     * Load and cache an entry. If the loader says an existing entry is
+     * unchanged, it is cached again as if just loaded - whether it is the
+     * previous entry, or one from a revalidation shared with another caller.
+     */
+    protected Entry<V> load(K key, Entry<V> previous, Loader<K, V> loader) {
+        long start = System.nanoTime();
+        Entry<V> loaded = loader.load(key, previous);
+
+        if (loaded == previous || loaded.loadedAt - start < 0) {
+            revalidated.increment();
+            loaded = new Entry<V>(loaded.value, loaded.tag);
+        }
+
+        put(key, loaded);
+        return loaded;
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Reload a stale entry in the background, unless that is already happening.
+     * The stale entry stays in place if the reload fails.
+     */
+    protected void refresh(K key, Entry<V> entry, Loader<K, V> loader) {
+        if (!entry.refreshing.compareAndSet(false, true))
+            return;
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    load(key, entry, loader);
+                } catch (RuntimeException e) {
+                    refreshFailures.increment();
+                    logger.warning(name + " cache refresh failed for " + key + ": " + e);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) { // Rejected, try again next time
+            entry.refreshing.set(false);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("accounts.cache.requests", hits, LongAdder::doubleValue).tags("cache", name, "result", "hit")
+                .register(registry);
+        FunctionCounter.builder("accounts.cache.requests", staleHits, LongAdder::doubleValue)
+                .tags("cache", name, "result", "stale").register(registry);
+        FunctionCounter.builder("accounts.cache.requests", misses, LongAdder::doubleValue)
+                .tags("cache", name, "result", "miss").register(registry);
+        FunctionCounter.builder("accounts.cache.evictions", evictions, LongAdder::doubleValue).tags("cache", name)
+                .register(registry);
+        FunctionCounter.builder("accounts.cache.refresh.failures", refreshFailures, LongAdder::doubleValue)
+                .tags("cache", name).register(registry);
+        FunctionCounter.builder("accounts.cache.revalidated", revalidated, LongAdder::doubleValue).tags("cache", name)
+                .description("Reloads that found the cached value unchanged").register(registry);
+        Gauge.builder("accounts.cache.size", this, NearCache::size).tags("cache", name).register(registry);
+    }
+
+    /**
+     * A cached value, its entity tag, when it was loaded and when it was last
+     * used.
+     */
+    public static class Entry<V> {
+        protected final V value;
+        protected final String tag;
+        protected final long loadedAt = System.nanoTime();
+        protected final AtomicBoolean refreshing = new AtomicBoolean();
+        protected volatile long lastUsed = loadedAt;
+
+        /**
+         * @param value The value, may be null.
+         * @param tag   Entity tag of the value, null if it has none.
+         */
+        public Entry(V value, String tag) {
+            this.value = value;
+            this.tag = tag;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.util.StringUtils;
+import org.springframework.validation.BindingResult;
+import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.bind.annotation.InitBinder;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import io.pivotal.microservices.logging.RequestLog;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking alternative to {@link WebAccountsController}, used when
+ * <code>accounts-client.reactive=true</code>. Handles the same requests, but
+ * returns a {@link Mono} so that Spring MVC processes the request
+ * asynchronously. The servlet thread is released while the accounts
+ * microservice is being called, so slow responses do not use up Tomcat's
+ * thread pool.
+ */
+@Controller
+public class ReactiveWebAccountsController {
+
+    protected ReactiveWebAccountsService accountsService;
+
+    /** Which requests are logged, by default all of them. */
+    @Autowired(required = false)
+    protected RequestLog requestLog = new RequestLog(null);
+
+    protected Logger logger = Logger.getLogger(ReactiveWebAccountsController.class.getName());
+
+    public ReactiveWebAccountsController(ReactiveWebAccountsService accountsService) {
+        this.accountsService = accountsService;
+    }
+
+    @InitBinder
+    public void initBinder(WebDataBinder binder) {
+        binder.setAllowedFields("accountNumber", "searchText");
+    }
+
+    @RequestMapping("/accounts")
+    public String goHome() {
+        return "index";
+    }
+
+    @RequestMapping("/accounts/{accountNumber}")
+    public Mono<String> byNumber(Model model, @PathVariable("accountNumber") String accountNumber) {
+
+        boolean log = requestLog.sample(logger, "byNumber");
+
+        if (log)
+            logger.info("web-service byNumber() invoked: " + accountNumber);
+
+        return accountsService.findByNumber(accountNumber) //
+                .map(account -> {
+                    if (log)
+                        logger.info("web-service byNumber() found: " + account);
+                    model.addAttribute("account", account);
+                    return "account";
+                }) //
+                .switchIfEmpty(Mono.fromSupplier(() -> { // no such account
+                    model.addAttribute("number", accountNumber);
+                    return "account";
+                }));
+    }
+
+    @RequestMapping("/accounts/owner/{text}")
+    public Mono<String> ownerSearch(Model model, @PathVariable("text") String name) {
+        boolean log = requestLog.sample(logger, "ownerSearch");
+
+        if (log)
+            logger.info("web-service byOwner() invoked: " + name);
+
+        model.addAttribute("search", name);
+
+        return accountsService.byOwnerContains(name) //
+                .map(accounts -> {
+                    if (log)
+                        logger.info("web-service byOwner() found: " + accounts.size() + " accounts");
+                    model.addAttribute("accounts", accounts);
+                    return "accounts";
+                }) //
+                .defaultIfEmpty("accounts");
+    }
+
+    @RequestMapping(value = "/accounts/search", method = RequestMethod.GET)
+    public String searchForm(Model model) {
+        model.addAttribute("searchCriteria", new SearchCriteria());
+        return "accountSearch";
+    }
+
+    @RequestMapping(value = "/accounts/dosearch")
+    public Mono<String> doSearch(Model model, SearchCriteria criteria, BindingResult result) {
+        if (requestLog.sample(logger, "search"))
+            logger.info("web-service search() invoked: " + criteria);
+
+        criteria.validate(result);
+
+        if (result.hasErrors())
+            return Mono.just("accountSearch");
+
+        String accountNumber = criteria.getAccountNumber();
+        if (StringUtils.hasText(accountNumber)) {
+            return byNumber(model, accountNumber);
+        } else {
+            String searchText = criteria.getSearchText();
+            return ownerSearch(model, searchText);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cloud.client.loadbalancer.LoadBalanced;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import io.pivotal.microservices.exceptions.AccountNotFoundException;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking equivalent of {@link WebAccountsService}. Uses a load-balanced
+ * {@link WebClient}, so no thread is held while waiting for the accounts
+ * microservice to respond.
+ * <p>
+ * As with {@link WebAccountsService}, an account that cannot be found, or an
+ * accounts microservice that cannot be reached, results in an empty
+ * {@link Mono} rather than an error. A search that fails, other than by
+ * finding nothing, results in an error - there is no cache to fall back on.
+ */
+public class ReactiveWebAccountsService {
+
+    @Autowired
+    @LoadBalanced
+    protected WebClient.Builder webClientBuilder;
+
+    protected WebClient webClient;
+
+    protected String serviceUrl;
+
+    protected Logger logger = Logger.getLogger(ReactiveWebAccountsService.class.getName());
+
+    public ReactiveWebAccountsService(String serviceUrl) {
+        this.serviceUrl = serviceUrl.startsWith("http") ? serviceUrl : "http://" + serviceUrl;
+    }
+
+    /**
+     * Can't do this in the constructor because the builder injection happens
+     * afterwards. The builder is shared, so is cloned before the base URL is
+     * set.
+     */
+    @PostConstruct
+    public void createWebClient() {
+        webClient = webClientBuilder.clone().baseUrl(serviceUrl).build();
+    }
+
+    public Mono<Account> findByNumber(String accountNumber) {
+        logger.fine(() -> "findByNumber() invoked: for " + accountNumber);
+
+        return webClient.get().uri("/accounts/{number}", accountNumber) //
+                .retrieve().bodyToMono(Account.class) //
+                .onErrorResume(WebClientResponseException.NotFound.class, e -> Mono.empty()) //
+                .onErrorResume(e -> {
+                    logger.severe(e.getClass() + ": " + e.getLocalizedMessage());
+                    return Mono.empty();
+                });
+    }
+
+    public Mono<List<Account>> byOwnerContains(String name) {
+        logger.fine(() -> "byOwnerContains() invoked:  for " + name);
+
+        // Not Found means nothing found. Any other failure, including other
+        // client errors, is passed on rather than shown as an empty search -
+        // as WebAccountsService does when it has no cached results
+        return webClient.get().uri("/accounts/owner/{name}", name) //
+                .retrieve() //
+                .onStatus(status -> status == HttpStatus.NOT_FOUND,
+                        response -> response.releaseBody().then(Mono.error(new AccountNotFoundException(name)))) //
+                .bodyToFlux(Account.class).collectList() //
+                .filter(accounts -> !accounts.isEmpty()) //
+                .onErrorResume(AccountNotFoundException.class, e -> Mono.empty()) //
+                .doOnError(e -> logger.severe(e.getClass() + ": " + e.getLocalizedMessage()));
+    }
+}
@@ -0,0 +1,80 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Coalesces concurrent identical calls. The first caller for a key makes the
+ * call; anyone asking for the same key while it is in progress waits for, and
+ * shares, its result - or its exception. Used by {@link WebAccountsService} so
+ * a burst of requests for a popular account becomes a single remote call.
+ * <p>
+ * The number of calls avoided is published as the
+ * <code>accounts.client.coalesced</code> metric.
+ *
+ * @param <K> Key type.
+ * @param <V> Result type.
+ */
+public class SingleFlight<K, V> implements MeterBinder {
+
+    protected final String name;
+    protected final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+    protected final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param name Name used to tag this instance's metrics.
+     */
+    public SingleFlight(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Make the call for this key, or wait for the same call already in progress.
+     *
+     * @param key  Identifies the call.
+     * @param call Makes the call. May return null.
+     * @return The result of the call.
+     */
+    public V execute(K key, Function<K, V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<V>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+
+        if (existing != null) {
+            coalesced.increment();
+
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                else
+                    throw e;
+            }
+        }
+
+        try {
+            V result = call.apply(key);
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("accounts.client.coalesced", coalesced, LongAdder::doubleValue).tags("call", name)
+                .register(registry);
+    }
+}
@@ -3,6 +3,9 @@ package io.pivotal.microservices.services.web;
 import java.util.List;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -14,6 +17,8 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
+import io.pivotal.microservices.logging.RequestLog;
+
 /**
  * Client controller, fetches Account info from the microservice via
  * {@link WebAccountsService}.
@@ -26,6 +31,14 @@ public class WebAccountsController {
     @Autowired
     protected WebAccountsService accountsService;
 
+    /** Which requests are logged, by default all of them. */
+    @Autowired(required = false)
+    protected RequestLog requestLog = new RequestLog(null);
+
+    /** Rendered account rows, if cached - see the production profile. */
+    @Autowired(required = false)
+    protected AccountRowCache rowCache;
+
     protected Logger logger = Logger.getLogger(WebAccountsController.class.getName());
 
     public WebAccountsController(WebAccountsService accountsService) {
@@ -45,7 +58,10 @@ public class WebAccountsController {
     @RequestMapping("/accounts/{accountNumber}")
     public String byNumber(Model model, @PathVariable("accountNumber") String accountNumber) {
 
-        logger.info("web-service byNumber() invoked: " + accountNumber);
+        boolean log = requestLog.sample(logger, "byNumber");
+
+        if (log)
+            logger.info("web-service byNumber() invoked: " + accountNumber);
 
         Account account = accountsService.findByNumber(accountNumber);
 
@@ -54,20 +70,36 @@ public class WebAccountsController {
             return "account";
         }
 
-        logger.info("web-service byNumber() found: " + account);
+        if (log)
+            logger.info("web-service byNumber() found: " + account);
+
         model.addAttribute("account", account);
         return "account";
     }
 
     @RequestMapping("/accounts/owner/{text}")
-    public String ownerSearch(Model model, @PathVariable("text") String name) {
-        logger.info("web-service byOwner() invoked: " + name);
+    public String ownerSearch(Model model, @PathVariable("text") String name, HttpServletRequest request,
+            HttpServletResponse response) {
+        boolean log = requestLog.sample(logger, "ownerSearch");
+
+        if (log)
+            logger.info("web-service byOwner() invoked: " + name);
+
+        NearCache.Entry<List<Account>> results = accountsService.searchByOwner(name);
+        List<Account> accounts = results.getValue();
+
+        // The count only, a list of thousands of accounts is too big to log
+        if (log)
+            logger.info("web-service byOwner() found: " + (accounts == null ? 0 : accounts.size()) + " accounts");
 
-        List<Account> accounts = accountsService.byOwnerContains(name);
-        logger.info("web-service byOwner() found: " + accounts);
         model.addAttribute("search", name);
-        if (accounts != null)
+        if (accounts != null) {
             model.addAttribute("accounts", accounts);
+
+            if (rowCache != null)
+                model.addAttribute("rows", rowCache.rows(accounts, results.getTag(), request, response));
+        }
+
         return "accounts";
     }
 
@@ -78,8 +110,10 @@ public class WebAccountsController {
     }
 
     @RequestMapping(value = "/accounts/dosearch")
-    public String doSearch(Model model, SearchCriteria criteria, BindingResult result) {
-        logger.info("web-service search() invoked: " + criteria);
+    public String doSearch(Model model, SearchCriteria criteria, BindingResult result, HttpServletRequest request,
+            HttpServletResponse response) {
+        if (requestLog.sample(logger, "search"))
+            logger.info("web-service search() invoked: " + criteria);
 
         criteria.validate(result);
 
@@ -91,7 +125,7 @@ public class WebAccountsController {
             return byNumber(model, accountNumber);
         } else {
             String searchText = criteria.getSearchText();
-            return ownerSearch(model, searchText);
+            return ownerSearch(model, searchText, request, response);
         }
     }
 }
@@ -0,0 +1,72 @@
+package io.pivotal.microservices.services.web;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import io.pivotal.microservices.codec.AccountsMapping;
+
+/**
+ * The web service's {@link Account} and {@link AccountBatch}, as written and
+ * read by a
+ * {@link io.pivotal.microservices.codec.CompactAccountsHttpMessageConverter}.
+ */
+public class WebAccountsMapping implements AccountsMapping<Account, AccountBatch> {
+
+    @Override
+    public Class<Account> accountType() {
+        return Account.class;
+    }
+
+    @Override
+    public Class<AccountBatch> batchType() {
+        return AccountBatch.class;
+    }
+
+    @Override
+    public long getId(Account account) {
+        return account.getId();
+    }
+
+    @Override
+    public String getNumber(Account account) {
+        return account.getNumber();
+    }
+
+    @Override
+    public String getOwner(Account account) {
+        return account.getOwner();
+    }
+
+    @Override
+    public BigDecimal getBalance(Account account) {
+        return account.getBalance();
+    }
+
+    @Override
+    public Account newAccount(long id, String number, String owner, BigDecimal balance) {
+        Account account = new Account();
+        account.setId(id);
+        account.setNumber(number);
+        account.setOwner(owner);
+        account.setBalance(balance);
+        return account;
+    }
+
+    @Override
+    public List<Account> getAccounts(AccountBatch batch) {
+        return batch.getAccounts();
+    }
+
+    @Override
+    public List<String> getMissing(AccountBatch batch) {
+        return batch.getMissing();
+    }
+
+    @Override
+    public AccountBatch newBatch(List<Account> accounts, List<String> missing) {
+        AccountBatch batch = new AccountBatch();
+        batch.setAccounts(accounts);
+        batch.setMissing(missing);
+        return batch;
+    }
+}
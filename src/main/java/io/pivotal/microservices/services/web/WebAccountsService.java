@@ -1,18 +1,48 @@
 package io.pivotal.microservices.services.web;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
 import io.pivotal.microservices.exceptions.AccountNotFoundException;
+import io.pivotal.microservices.exceptions.AccountsUnavailableException;
+import io.pivotal.microservices.metrics.LatencyTimers;
+import io.pivotal.microservices.services.VirtualThreads;
 
 /**
  * Hide the access to the microservice inside this local service.
@@ -26,6 +56,58 @@ public class WebAccountsService {
     @LoadBalanced
     protected RestTemplate restTemplate;
 
+    @Autowired(required = false)
+    protected ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired(required = false)
+    protected AccountsClientProperties properties;
+
+    @Autowired(required = false)
+    protected MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    protected Environment environment;
+
+    @Autowired(required = false)
+    protected CircuitBreaker circuitBreaker;
+
+    @Autowired(required = false)
+    protected Bulkhead bulkhead;
+
+    /**
+     * Threads used to refresh stale cache entries in the background, unless
+     * virtual threads are enabled.
+     */
+    protected static final int REFRESH_THREADS = 4;
+
+    public static final String REMOTE_CALL_TIMER = "accounts.client.calls";
+
+    /**
+     * Calls shared by concurrent lookups, keyed by what is looked up and the
+     * entity tag of the entry being revalidated - a caller with nothing cached
+     * needs the whole value, not a reply that its cached entry is unchanged.
+     */
+    protected SingleFlight<List<String>, NearCache.Entry<Account>> byNumberFlights =
+            new SingleFlight<List<String>, NearCache.Entry<Account>>("byNumber");
+    protected SingleFlight<List<String>, NearCache.Entry<List<Account>>> byOwnerFlights =
+            new SingleFlight<List<String>, NearCache.Entry<List<Account>>>("byOwner");
+
+    /** Times each call to the accounts microservice. */
+    protected LatencyTimers remoteCalls = new LatencyTimers(null, REMOTE_CALL_TIMER, null, "call");
+
+    protected ExecutorService refreshExecutor;
+
+    /** Hedge slow lookups, if enabled. */
+    protected ExecutorService hedgeExecutor;
+    protected ScheduledExecutorService hedgeTimer;
+    protected Hedger byNumberHedger;
+    protected Hedger byOwnerHedger;
+    protected NearCache<String, Account> byNumberCache;
+    protected NearCache<String, List<Account>> byOwnerCache;
+
+    /** Lookups answered from the cache because the accounts service failed. */
+    protected final LongAdder fallbacks = new LongAdder();
+
     protected String serviceUrl;
 
     protected Logger logger = Logger.getLogger(WebAccountsService.class.getName());
@@ -45,27 +127,344 @@ public class WebAccountsService {
         logger.warning("The RestTemplate request factory is " + restTemplate.getRequestFactory().getClass());
     }
 
+    /**
+     * Create the near-caches, if enabled. Can't do this in the constructor
+     * because the properties are injected afterwards.
+     */
+    @PostConstruct
+    public void createCaches() {
+        if (meterRegistry != null) {
+            byNumberFlights.bindTo(meterRegistry);
+            byOwnerFlights.bindTo(meterRegistry);
+            remoteCalls = new LatencyTimers(meterRegistry, REMOTE_CALL_TIMER,
+                    "Time taken by calls to the accounts microservice", "call");
+        }
+
+        if (properties == null || !properties.getCache().isEnabled())
+            return;
+
+        AccountsClientProperties.Cache settings = properties.getCache();
+
+        if (VirtualThreads.isEnabled(environment)) {
+            refreshExecutor = VirtualThreads.newExecutor("accounts-cache-refresh-");
+        } else {
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("accounts-cache-refresh-");
+            threadFactory.setDaemon(true);
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(settings.getMaxSize()), threadFactory);
+            threadPool.allowCoreThreadTimeOut(true);
+            refreshExecutor = threadPool;
+        }
+
+        byNumberCache = new NearCache<String, Account>("byNumber", settings.getMaxSize(), settings.getTtl(),
+                settings.getStaleWhileRevalidate(), refreshExecutor);
+        byOwnerCache = new NearCache<String, List<Account>>("byOwner", settings.getMaxSize(), settings.getTtl(),
+                settings.getStaleWhileRevalidate(), refreshExecutor);
+
+        if (meterRegistry != null) {
+            byNumberCache.bindTo(meterRegistry);
+            byOwnerCache.bindTo(meterRegistry);
+            FunctionCounter.builder("accounts.client.fallbacks", fallbacks, LongAdder::doubleValue)
+                    .description("Lookups answered from the cache because the accounts service failed")
+                    .register(meterRegistry);
+        }
+
+        logger.info("Caching accounts for " + settings.getTtl() + ", max " + settings.getMaxSize());
+    }
+
+    /**
+     * Create the hedgers, if enabled.
+     */
+    @PostConstruct
+    public void createHedgers() {
+        if (properties == null || !properties.getHedging().isEnabled())
+            return;
+
+        AccountsClientProperties.Hedging settings = properties.getHedging();
+
+        if (VirtualThreads.isEnabled(environment)) {
+            hedgeExecutor = VirtualThreads.newExecutor("accounts-hedge-");
+        } else {
+            // Beyond the limit, hedges are rejected and calls are not hedged
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("accounts-hedge-");
+            threadFactory.setDaemon(true);
+            hedgeExecutor = new ThreadPoolExecutor(0, settings.getMaxThreads(), 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory);
+        }
+
+        CustomizableThreadFactory timerThreadFactory = new CustomizableThreadFactory("accounts-hedge-timer-");
+        timerThreadFactory.setDaemon(true);
+        hedgeTimer = Executors.newSingleThreadScheduledExecutor(timerThreadFactory);
+
+        byNumberHedger = new Hedger("byNumber", hedgeExecutor, hedgeTimer, settings, bulkhead);
+        byOwnerHedger = new Hedger("byOwner", hedgeExecutor, hedgeTimer, settings, bulkhead);
+
+        if (meterRegistry != null) {
+            byNumberHedger.bindTo(meterRegistry);
+            byOwnerHedger.bindTo(meterRegistry);
+        }
+
+        logger.info("Hedging lookups after "
+                + (settings.getDelay() == null ? "p" + Math.round(settings.getPercentile() * 100) : settings.getDelay())
+                + ", budget " + settings.getBudget());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (refreshExecutor != null)
+            refreshExecutor.shutdownNow();
+
+        if (hedgeExecutor != null)
+            hedgeExecutor.shutdownNow();
+
+        if (hedgeTimer != null)
+            hedgeTimer.shutdownNow();
+    }
+
     public Account findByNumber(String accountNumber) {
 
-        logger.info("findByNumber() invoked: for " + accountNumber);
+        logger.fine(() -> "findByNumber() invoked: for " + accountNumber);
         try {
-            return restTemplate.getForObject(serviceUrl + "/accounts/{number}", Account.class, accountNumber);
+            if (byNumberCache == null)
+                return loadByNumber(accountNumber, null).getValue();
+            else
+                return byNumberCache.get(accountNumber, this::loadByNumber);
+        } catch (AccountsUnavailableException e) {
+            // Not asked, so not known to be missing: fail, unless cached
+            log(e);
+            NearCache.Entry<Account> entry = byNumberCache == null ? null : byNumberCache.getIfPresent(accountNumber);
+
+            if (entry == null)
+                throw e;
+
+            fallbacks.increment();
+            return entry.getValue();
         } catch (Exception e) {
+            log(e);
+            return fallback(byNumberCache, accountNumber, null);
+        }
+
+    }
+
+    /**
+     * The last value fetched, however old, if the accounts service fails.
+     *
+     * @param cache        Where to look, may be null if caching is disabled.
+     * @param key          What to look for.
+     * @param defaultValue Returned if there is no cached value.
+     */
+    protected <V> V fallback(NearCache<String, V> cache, String key, V defaultValue) {
+        NearCache.Entry<V> entry = cache == null ? null : cache.getIfPresent(key);
+
+        if (entry == null)
+            return defaultValue;
+
+        fallbacks.increment();
+        return entry.getValue();
+    }
+
+    /**
+     * Log a failed call. Calls not made, because the circuit breaker is open or
+     * the bulkhead full, are not worth logging every time.
+     */
+    protected void log(Exception e) {
+        if (e instanceof AccountsUnavailableException)
+            logger.fine(e::getMessage);
+        else
             logger.severe(e.getClass() + ": " + e.getLocalizedMessage());
+    }
+
+    /**
+     * Make a call to the accounts microservice: timed, and through the circuit
+     * breaker and bulkhead, if enabled.
+     *
+     * @param operation Name of the call, for the metrics.
+     * @param call      Makes the call.
+     * @return The call's result.
+     * @throws AccountsUnavailableException If the call was not made.
+     */
+    protected <T> T remote(String operation, Supplier<T> call) {
+        return remoteCalls.record(operation, () -> {
+            Supplier<T> limited = bulkhead == null ? call : () -> bulkhead.call(call);
+            return circuitBreaker == null ? limited.get() : circuitBreaker.call(limited);
+        });
+    }
+
+    /**
+     * Call the accounts microservice to fetch an account, unless it has not
+     * changed since it was cached.
+     *
+     * @param cached The cached account, null if there is none.
+     * @return The account and its entity tag, with a null account if there is no
+     *         such account. The cached entry if it is unchanged.
+     */
+    protected NearCache.Entry<Account> fetchByNumber(String accountNumber, NearCache.Entry<Account> cached) {
+        return remote("byNumber", () -> hedged(byNumberHedger, () -> {
+            try {
+                ResponseEntity<Account> response = restTemplate.exchange(serviceUrl + "/accounts/{number}",
+                        HttpMethod.GET, conditional(cached), Account.class, accountNumber);
+
+                if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && cached != null)
+                    return cached;
+
+                return new NearCache.Entry<Account>(response.getBody(), response.getHeaders().getETag());
+            } catch (HttpClientErrorException.NotFound e) {
+                return new NearCache.Entry<Account>(null, null);
+            }
+        }));
+    }
+
+    /**
+     * A GET request that, if the cached entry has an entity tag, only asks for
+     * the value if it has changed.
+     */
+    protected HttpEntity<Void> conditional(NearCache.Entry<?> cached) {
+        HttpHeaders headers = new HttpHeaders();
+
+        if (cached != null && cached.getTag() != null)
+            headers.setIfNoneMatch(cached.getTag());
+
+        return new HttpEntity<Void>(headers);
+    }
+
+    /**
+     * Make a read-only call, hedged if hedging is enabled.
+     */
+    protected <T> T hedged(Hedger hedger, Supplier<T> call) {
+        return hedger == null ? call.get() : hedger.call(call);
+    }
+
+    /**
+     * Fetch several accounts with a single call to the accounts microservice.
+     *
+     * @param accountNumbers Numeric, 9 digit account numbers.
+     * @return The accounts found and the numbers of those that were not, or null
+     *         if the accounts microservice could not be reached.
+     */
+    public AccountBatch findByNumbers(List<String> accountNumbers) {
+
+        logger.fine(() -> "findByNumbers() invoked: for " + accountNumbers);
+        try {
+            return remote("byNumbers",
+                    () -> restTemplate.getForObject(serviceUrl + "/accounts/batch?numbers={numbers}",
+                            AccountBatch.class, String.join(",", accountNumbers)));
+        } catch (Exception e) {
+            log(e);
             return null;
         }
-
     }
 
     public List<Account> byOwnerContains(String name) {
-        logger.info("byOwnerContains() invoked:  for " + name);
-        Account[] accounts = null;
+        return searchByOwner(name).getValue();
+    }
+
+    /**
+     * Search by owner, as {@link #byOwnerContains(String)}, returning the
+     * results with their entity tag - which changes whenever any of the
+     * accounts found does.
+     *
+     * @param name Text to search for.
+     * @return The matching accounts, null if there are none, and their tag, null
+     *         if not known.
+     */
+    public NearCache.Entry<List<Account>> searchByOwner(String name) {
+        logger.fine(() -> "byOwnerContains() invoked:  for " + name);
+
+        // Search is case-insensitive, so cache accordingly
+        String key = name.toLowerCase(Locale.ROOT);
 
         try {
-            accounts = restTemplate.getForObject(serviceUrl + "/accounts/owner/{name}", Account[].class, name);
-        } catch (HttpClientErrorException e) { // 404
-            // Nothing found
+            if (byOwnerCache == null)
+                return loadByOwner(key, null);
+            else
+                return byOwnerCache.getEntry(key, this::loadByOwner);
+        } catch (RuntimeException e) {
+            NearCache.Entry<List<Account>> entry = byOwnerCache == null ? null : byOwnerCache.getIfPresent(key);
+
+            if (entry == null)
+                throw e;
+
+            log(e);
+            fallbacks.increment();
+            return entry;
         }
+    }
+
+    /**
+     * Fetch an account, sharing the call with any other thread already fetching
+     * the same account.
+     */
+    protected NearCache.Entry<Account> loadByNumber(String accountNumber, NearCache.Entry<Account> cached) {
+        return byNumberFlights.execute(flightKey(accountNumber, cached), key -> fetchByNumber(accountNumber, cached));
+    }
+
+    /**
+     * Search by owner, sharing the call with any other thread already making the
+     * same search.
+     */
+    protected NearCache.Entry<List<Account>> loadByOwner(String name, NearCache.Entry<List<Account>> cached) {
+        return byOwnerFlights.execute(flightKey(name, cached), key -> fetchByOwner(name, cached));
+    }
+
+    protected static List<String> flightKey(String key, NearCache.Entry<?> cached) {
+        return Arrays.asList(key, cached == null ? null : cached.getTag());
+    }
+
+    /**
+     * Call the accounts microservice to search by owner, unless the results have
+     * not changed since they were cached.
+     *
+     * @param cached The cached results, null if there are none.
+     * @return The matching accounts and their entity tag, with null accounts if
+     *         there are none. The cached entry if it is unchanged.
+     */
+    protected NearCache.Entry<List<Account>> fetchByOwner(String name, NearCache.Entry<List<Account>> cached) {
+        return remote("byOwner", () -> hedged(byOwnerHedger, () -> {
+            try {
+                ResponseEntity<Account[]> response = restTemplate.exchange(serviceUrl + "/accounts/owner/{name}",
+                        HttpMethod.GET, conditional(cached), Account[].class, name);
+
+                if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && cached != null)
+                    return cached;
+
+                Account[] accounts = response.getBody();
+
+                if (accounts == null || accounts.length == 0)
+                    return new NearCache.Entry<List<Account>>(null, null);
+                else
+                    return new NearCache.Entry<List<Account>>(
+                            Collections.unmodifiableList(Arrays.asList(accounts)), response.getHeaders().getETag());
+            } catch (HttpClientErrorException.NotFound e) {
+                return new NearCache.Entry<List<Account>>(null, null); // Nothing found
+            }
+        }));
+    }
+
+    /**
+     * Fetch one page of the accounts whose owner contains the specified text.
+     * Pass the id of the last account on one page to get the next.
+     *
+     * @param name    Text to search for.
+     * @param limit   Page size.
+     * @param afterId Id of the last account on the previous page, null for the
+     *                first page.
+     * @return The page of accounts, or null if there are no (more) matches.
+     */
+    public List<Account> byOwnerContains(String name, int limit, Long afterId) {
+        logger.fine(() -> "byOwnerContains() invoked:  for " + name + " after " + afterId);
+        Account[] accounts = remote("byOwnerPage", () -> {
+            try {
+                if (afterId == null)
+                    return restTemplate.getForObject(serviceUrl + "/accounts/owner/{name}?limit={limit}",
+                            Account[].class, name, limit);
+                else
+                    return restTemplate.getForObject(
+                            serviceUrl + "/accounts/owner/{name}?limit={limit}&after={after}", Account[].class, name,
+                            limit, afterId);
+            } catch (HttpClientErrorException.NotFound e) {
+                return null; // Nothing found
+            }
+        });
 
         if (accounts == null || accounts.length == 0)
             return null;
@@ -73,8 +472,40 @@ public class WebAccountsService {
             return Arrays.asList(accounts);
     }
 
+    /**
+     * Stream every account whose owner contains the specified text, passing each
+     * to the consumer as it arrives. Uses the newline-delimited JSON response of
+     * the accounts microservice, so the accounts are never all held in memory.
+     *
+     * @param name     Text to search for.
+     * @param consumer Called once for each matching account.
+     * @return The number of accounts found.
+     */
+    public long streamByOwnerContains(String name, Consumer<Account> consumer) {
+        logger.fine(() -> "streamByOwnerContains() invoked:  for " + name);
+
+        Long count = remote("streamByOwner", () -> restTemplate.execute(serviceUrl + "/accounts/owner/{name}", HttpMethod.GET,
+                request -> request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_NDJSON)),
+                response -> {
+                    long n = 0;
+
+                    try (MappingIterator<Account> accounts = objectMapper.readerFor(Account.class)
+                            .readValues(response.getBody())) {
+                        while (accounts.hasNext()) {
+                            consumer.accept(accounts.next());
+                            n++;
+                        }
+                    }
+
+                    return n;
+                }, name));
+
+        return count == null ? 0 : count;
+    }
+
     public Account getByNumber(String accountNumber) {
-        Account account = restTemplate.getForObject(serviceUrl + "/accounts/{number}", Account.class, accountNumber);
+        Account account = remote("byNumber",
+                () -> restTemplate.getForObject(serviceUrl + "/accounts/{number}", Account.class, accountNumber));
 
         if (account == null)
             throw new AccountNotFoundException(accountNumber);
@@ -1,15 +1,41 @@
 package io.pivotal.microservices.services.web;
 
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
+import org.springframework.cloud.loadbalancer.annotation.LoadBalancerClients;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.thymeleaf.ITemplateEngine;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import io.pivotal.microservices.codec.CompactAccountsHttpMessageConverter;
+import io.pivotal.microservices.logging.RequestLog;
+import io.pivotal.microservices.metrics.MetricsConfiguration;
+import io.pivotal.microservices.metrics.TimedBeanPostProcessor;
+import io.pivotal.microservices.services.VirtualThreadsConfiguration;
 import io.pivotal.microservices.services.registration.RegistrationServer;
 
 /**
@@ -21,7 +47,11 @@ import io.pivotal.microservices.services.registration.RegistrationServer;
 @SpringBootApplication(exclude = { HibernateJpaAutoConfiguration.class, //
         DataSourceAutoConfiguration.class })
 @EnableDiscoveryClient
+@EnableConfigurationProperties(AccountsClientProperties.class)
 @ComponentScan(useDefaultFilters = false) // Disable component scanner
+@Import({ MetricsConfiguration.class, VirtualThreadsConfiguration.class })
+@LoadBalancerClients(defaultConfiguration = { LatencyAwareLoadBalancerConfiguration.class,
+        HedgingLoadBalancerConfiguration.class })
 public class WebServer {
 
     /**
@@ -48,13 +78,128 @@ public class WebServer {
     /**
      * A customized RestTemplate that has the ribbon load balancer build in. Note
      * that prior to the "Brixton"
+     * <p>
+     * Built by Spring Boot's builder, so it reads JSON using the timed converter
+     * from {@link MetricsConfiguration} and each call is recorded in the
+     * <code>http.client.requests</code> metric. Connect and read timeouts are
+     * set, so a hung accounts service counts as a failure to the
+     * {@link CircuitBreaker}, rather than holding up requests indefinitely.
+     * <p>
+     * Calls are made using {@link #accountsHttpClient}, which reuses
+     * connections instead of opening one per call. A call made by a
+     * {@link HedgeAttempt} is aborted if the attempt is cancelled.
      * 
      * @return
      */
     @LoadBalanced
     @Bean
-    RestTemplate restTemplate() {
-        return new RestTemplate();
+    RestTemplate restTemplate(RestTemplateBuilder builder, AccountsClientProperties properties,
+            CloseableHttpClient accountsHttpClient) {
+        return builder.requestFactory(() -> new HttpComponentsClientHttpRequestFactory(accountsHttpClient) {
+
+            @Override
+            protected void postProcessHttpRequest(HttpUriRequest request) {
+                HedgeAttempt attempt = HedgeAttempt.current();
+
+                if (attempt != null)
+                    attempt.onCancel(request::abort);
+            }
+        }).setConnectTimeout(properties.getConnectTimeout()).setReadTimeout(properties.getReadTimeout()).build();
+    }
+
+    /**
+     * Reads accounts sent in binary, see
+     * {@link CompactAccountsHttpMessageConverter}.
+     * As a bean, Spring Boot puts it first in the converters of the
+     * {@link #restTemplate}, so every call asks for binary ahead of JSON -
+     * unless <code>accounts-client.binary=false</code>.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.binary", havingValue = "true", matchIfMissing = true)
+    CompactAccountsHttpMessageConverter<Account, AccountBatch> compactAccountsHttpMessageConverter(
+            ObjectProvider<MeterRegistry> meterRegistry) {
+        return new CompactAccountsHttpMessageConverter<Account, AccountBatch>(new WebAccountsMapping(),
+                meterRegistry.getIfAvailable());
+    }
+
+    /**
+     * Keep-alive connections to accounts service instances, limited per
+     * instance - the load balancer has already replaced the service name with
+     * the instance's host and port, so each instance is a separate route.
+     */
+    @Bean(destroyMethod = "close")
+    PoolingHttpClientConnectionManager accountsConnectionManager(AccountsClientProperties properties) {
+        AccountsClientProperties.Pool pool = properties.getPool();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(pool.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(pool.getMaxConnectionsPerInstance());
+        connectionManager.setValidateAfterInactivity((int) pool.getValidateAfterInactivity().toMillis());
+        return connectionManager;
+    }
+
+    /**
+     * HTTP client using {@link #accountsConnectionManager}. Idle connections are
+     * closed in the background, and kept at most as long as the instance's
+     * <code>Keep-Alive</code> header allows or, if it has none,
+     * <code>accounts-client.pool.keep-alive</code>.
+     */
+    @Bean(destroyMethod = "close")
+    CloseableHttpClient accountsHttpClient(PoolingHttpClientConnectionManager accountsConnectionManager,
+            AccountsClientProperties properties) {
+        AccountsClientProperties.Pool pool = properties.getPool();
+        long keepAlive = pool.getKeepAlive().toMillis();
+
+        return HttpClients.custom().setConnectionManager(accountsConnectionManager)
+                .setKeepAliveStrategy((response, context) -> {
+                    long offered = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return offered > 0 ? Math.min(offered, keepAlive) : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(pool.getEvictIdleAfter().toMillis(), TimeUnit.MILLISECONDS)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout((int) pool.getAcquireTimeout().toMillis()).build())
+                .disableCookieManagement().build();
+    }
+
+    /**
+     * Publishes the connections leased, available and waited for as the
+     * <code>httpcomponents.httpclient.pool.*</code> metrics, tagged
+     * <code>httpclient=accounts</code>.
+     */
+    @Bean
+    MeterBinder accountsConnectionPoolMetrics(PoolingHttpClientConnectionManager accountsConnectionManager) {
+        return new PoolingHttpClientConnectionManagerMetricsBinder(accountsConnectionManager, "accounts");
+    }
+
+    /**
+     * Stops calling the accounts service while it is failing, unless
+     * <code>accounts-client.circuit-breaker.enabled=false</code>.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.circuit-breaker.enabled", havingValue = "true", matchIfMissing = true)
+    public CircuitBreaker accountsCircuitBreaker(AccountsClientProperties properties) {
+        return new CircuitBreaker(properties.getCircuitBreaker());
+    }
+
+    /**
+     * Limits concurrent calls to the accounts service, unless
+     * <code>accounts-client.bulkhead.enabled=false</code>.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.bulkhead.enabled", havingValue = "true", matchIfMissing = true)
+    public Bulkhead accountsBulkhead(AccountsClientProperties properties) {
+        return new Bulkhead(properties.getBulkhead().getMaxConcurrentCalls(), properties.getBulkhead().getMaxWait());
+    }
+
+    /**
+     * Reports the accounts service as <code>DEGRADED</code> in
+     * <code>/actuator/health</code> while the circuit breaker is open.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.circuit-breaker.enabled", havingValue = "true", matchIfMissing = true)
+    public CircuitBreakerHealthIndicator accountsServiceHealthIndicator(CircuitBreaker accountsCircuitBreaker,
+            ObjectProvider<Bulkhead> accountsBulkhead) {
+        return new CircuitBreakerHealthIndicator(accountsCircuitBreaker, accountsBulkhead.getIfAvailable());
     }
 
     /**
@@ -73,10 +218,79 @@ public class WebServer {
      * @return
      */
     @Bean
+    @ConditionalOnProperty(name = "accounts-client.reactive", havingValue = "false", matchIfMissing = true)
     public WebAccountsController accountsController() {
         return new WebAccountsController(accountsService());
     }
 
+    /**
+     * A WebClient builder with the load balancer built in, for the non-blocking
+     * {@link ReactiveWebAccountsService}. Only created when that is used.
+     * 
+     * @return
+     */
+    @LoadBalanced
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.reactive", havingValue = "true")
+    WebClient.Builder webClientBuilder() {
+        return WebClient.builder();
+    }
+
+    /**
+     * Non-blocking alternative to {@link #accountsService()}.
+     * 
+     * @return A new service instance.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.reactive", havingValue = "true")
+    public ReactiveWebAccountsService reactiveAccountsService() {
+        return new ReactiveWebAccountsService(ACCOUNTS_SERVICE_URL);
+    }
+
+    /**
+     * Create the non-blocking controller instead of {@link #accountsController()}
+     * when <code>accounts-client.reactive=true</code>.
+     * 
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(name = "accounts-client.reactive", havingValue = "true")
+    public ReactiveWebAccountsController reactiveAccountsController() {
+        return new ReactiveWebAccountsController(reactiveAccountsService());
+    }
+
+    /**
+     * Times every request handled by the {@link WebAccountsController}, tagged by
+     * endpoint and outcome, as the <code>web.controller</code> metric. Static, so
+     * it can be created before the beans it post-processes.
+     */
+    @Bean
+    public static TimedBeanPostProcessor webControllerTimer(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new TimedBeanPostProcessor(WebAccountsController.class, "web.controller",
+                "Time taken by web service endpoints", "endpoint", meterRegistry);
+    }
+
+    /**
+     * Samples the requests logged by the {@link WebAccountsController}, as set by
+     * the <code>request-log.sample-rate.*</code> properties.
+     */
+    @Bean
+    public RequestLog requestLog(Environment environment) {
+        return new RequestLog(environment);
+    }
+
+    /**
+     * Caches the rows of <code>accounts.html</code>, if
+     * <code>fragment-cache.enabled=true</code> (as in the <code>prod</code>
+     * profile).
+     */
+    @Bean
+    @ConditionalOnProperty(name = "fragment-cache.enabled", havingValue = "true")
+    public AccountRowCache accountRowCache(ITemplateEngine templateEngine, Environment environment) {
+        return new AccountRowCache(templateEngine,
+                environment.getProperty("fragment-cache.max-size", Integer.class, 10000));
+    }
+
     @Bean
     public HomeController homeController() {
         return new HomeController();
@@ -20,3 +20,5 @@ insert into T_ACCOUNT (NUMBER, NAME) values ('123456017', 'Rachel Vogt');
 insert into T_ACCOUNT (NUMBER, NAME) values ('123456018', 'Julia DeLong');
 insert into T_ACCOUNT (NUMBER, NAME) values ('123456019', 'Mark T. Rizzoli');
 insert into T_ACCOUNT (NUMBER, NAME) values ('123456020', 'Maria J. Angelo');
+
+insert into T_ACCOUNT_ID_BLOCK (NEXT_ID) select coalesce(max(ID), -1) + 1 from T_ACCOUNT;
@@ -1,6 +1,13 @@
 drop table T_ACCOUNT if exists;
 
 create table T_ACCOUNT (ID bigint identity primary key, NUMBER varchar(9),
-                        NAME varchar(50) not null, BALANCE decimal(8,2), unique(NUMBER));
+                        NAME varchar(50) not null, BALANCE decimal(8,2),
+                        VERSION bigint default 0 not null, unique(NUMBER));
                         
 ALTER TABLE T_ACCOUNT ALTER COLUMN BALANCE SET DEFAULT 0.0;
+
+-- Next account id not yet reserved by any accounts-service instance, see
+-- JdbcAccountIdBlockSource. Initialized in data.sql once accounts are loaded
+drop table T_ACCOUNT_ID_BLOCK if exists;
+
+create table T_ACCOUNT_ID_BLOCK (NEXT_ID bigint not null);
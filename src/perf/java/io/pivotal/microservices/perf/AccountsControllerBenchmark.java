@@ -0,0 +1,108 @@
+package io.pivotal.microservices.perf;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.pivotal.microservices.accounts.Account;
+import io.pivotal.microservices.accounts.AccountsController;
+import io.pivotal.microservices.accounts.InMemoryAccountRepository;
+import io.pivotal.microservices.accounts.OwnerSearchIndex;
+
+/**
+ * JMH benchmarks of the accounts service's lookups, called directly on the
+ * controller so only the lookup itself (and its logging) is measured. Accounts
+ * are generated by the {@link io.pivotal.microservices.accounts.AccountGenerator}
+ * and searched with and without the owner index.
+ * <p>
+ * Run every JMH benchmark using the <code>perf</code> Maven profile, writing
+ * the results as JSON so they can be compared between releases:
+ *
+ * <pre>
+ * mvn -Pperf test-compile exec:exec -Dperf.main=org.openjdk.jmh.Main \
+ *     -Dperf.args="-rf json -rff target/jmh-result.json"
+ * </pre>
+ *
+ * Add a regular expression to <code>perf.args</code> to run only matching
+ * benchmarks, <code>-p accounts=10000</code> to pick the dataset size or
+ * <code>-h</code> for all JMH's options.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class AccountsControllerBenchmark {
+
+    public static final int SAMPLES = 1024;
+
+    @Param({ "10000", "1000000" })
+    public int accounts;
+
+    @Param({ "true", "false" })
+    public boolean ownerIndex;
+
+    private AccountsController controller;
+
+    private String[] numbers;
+
+    private String[] owners;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        PerfSupport.quietLogging();
+
+        InMemoryAccountRepository repository = PerfSupport.accounts(accounts);
+        OwnerSearchIndex index = null;
+
+        if (ownerIndex) {
+            index = new OwnerSearchIndex(1000);
+            index.rebuild(repository.findAll());
+        }
+
+        controller = new AccountsController(repository, index, null);
+        numbers = PerfSupport.sampleNumbers(repository, SAMPLES);
+        owners = new String[numbers.length];
+
+        for (int i = 0; i < numbers.length; i++)
+            owners[i] = repository.findByNumber(numbers[i]).getOwner();
+    }
+
+    /**
+     * Look up existing accounts, a different one each time.
+     */
+    @Benchmark
+    public Account byNumber() {
+        return controller.byNumber(numbers[next++ & (SAMPLES - 1)]);
+    }
+
+    /**
+     * Search for an owner's full name, which matches a handful of accounts.
+     */
+    @Benchmark
+    public List<Account> byOwner() {
+        return controller.byOwner(owners[next++ & (SAMPLES - 1)]);
+    }
+
+    /**
+     * Fetch the first page of a search matching a large share of the accounts.
+     */
+    @Benchmark
+    public List<Account> byOwnerPage() {
+        return controller.byOwner("smith", AccountsController.DEFAULT_PAGE_SIZE, null);
+    }
+}
@@ -0,0 +1,105 @@
+package io.pivotal.microservices.perf;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.pivotal.microservices.accounts.Account;
+import io.pivotal.microservices.accounts.AccountsController;
+import io.pivotal.microservices.accounts.InMemoryAccountRepository;
+
+/**
+ * JMH benchmarks of the JSON conversions on every call between the services:
+ * the accounts service writes its {@link Account} and the web service reads
+ * it as its own {@link io.pivotal.microservices.services.web.Account}. Both a
+ * single account and a page of search results are measured, using an
+ * <code>ObjectMapper</code> configured as Spring MVC and the
+ * <code>RestTemplate</code> configure theirs.
+ * <p>
+ * See {@link AccountsControllerBenchmark} for how to run JMH benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JacksonBenchmark {
+
+    private ObjectMapper objectMapper;
+
+    private Account account;
+
+    private List<Account> page;
+
+    private byte[] accountJson;
+
+    private byte[] pageJson;
+
+    private io.pivotal.microservices.services.web.Account webAccount;
+
+    private io.pivotal.microservices.services.web.Account[] webPage;
+
+    @Setup
+    public void setUp() throws IOException {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+        InMemoryAccountRepository repository = PerfSupport.accounts(AccountsController.DEFAULT_PAGE_SIZE);
+        page = repository.findAll();
+        account = page.get(0);
+
+        accountJson = objectMapper.writeValueAsBytes(account);
+        pageJson = objectMapper.writeValueAsBytes(page);
+        webAccount = objectMapper.readValue(accountJson, io.pivotal.microservices.services.web.Account.class);
+        webPage = objectMapper.readValue(pageJson, io.pivotal.microservices.services.web.Account[].class);
+    }
+
+    @Benchmark
+    public byte[] writeAccount() throws IOException {
+        return objectMapper.writeValueAsBytes(account);
+    }
+
+    @Benchmark
+    public byte[] writePage() throws IOException {
+        return objectMapper.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public Account readAccount() throws IOException {
+        return objectMapper.readValue(accountJson, Account.class);
+    }
+
+    @Benchmark
+    public byte[] writeWebAccount() throws IOException {
+        return objectMapper.writeValueAsBytes(webAccount);
+    }
+
+    @Benchmark
+    public byte[] writeWebPage() throws IOException {
+        return objectMapper.writeValueAsBytes(webPage);
+    }
+
+    @Benchmark
+    public io.pivotal.microservices.services.web.Account readWebAccount() throws IOException {
+        return objectMapper.readValue(accountJson, io.pivotal.microservices.services.web.Account.class);
+    }
+
+    @Benchmark
+    public io.pivotal.microservices.services.web.Account[] readWebPage() throws IOException {
+        return objectMapper.readValue(pageJson, io.pivotal.microservices.services.web.Account[].class);
+    }
+}
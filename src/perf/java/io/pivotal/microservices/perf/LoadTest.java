@@ -0,0 +1,458 @@
+package io.pivotal.microservices.perf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.pivotal.microservices.accounts.AccountGenerator;
+import io.pivotal.microservices.accounts.AccountsConfiguration;
+import io.pivotal.microservices.services.VirtualThreads;
+import io.pivotal.microservices.services.accounts.AccountsServer;
+import io.pivotal.microservices.services.registration.RegistrationServer;
+import io.pivotal.microservices.services.web.WebServer;
+
+/**
+ * End-to-end load test of all three tiers, run in a single JVM on localhost:
+ * the registration server, one or more accounts servers and the web server,
+ * each on a free port. Requests go to the web server, which finds the
+ * accounts servers through the registration server.
+ * <p>
+ * Traffic follows an open model: requests are sent at a fixed rate whether or
+ * not earlier ones have completed, as real users would, and each latency is
+ * measured from when its request was due to be sent. So when the system falls
+ * behind, the queueing delay is included rather than hidden. A mix of account
+ * number lookups and owner searches is sent, for accounts generated on every
+ * accounts server by the {@link AccountGenerator}. A response is an error
+ * unless it is a 200 showing the expected owner.
+ * <p>
+ * After a warm up, throughput and p50/p99/p99.9 latency are reported for each
+ * endpoint. Run using the <code>perf</code> Maven profile:
+ *
+ * <pre>
+ * mvn -Pperf test-compile exec:exec -Dperf.main=io.pivotal.microservices.perf.LoadTest \
+ *     -Dperf.args="--rate=200 --duration=60"
+ * </pre>
+ *
+ * Options, all optional:
+ * <ul>
+ * <li><code>--rate=</code> requests per second, default 100
+ * <li><code>--duration=</code> seconds measured, default 30
+ * <li><code>--warmup=</code> seconds sent before measuring, default 10
+ * <li><code>--accounts-servers=</code> number of accounts servers, default 2
+ * <li><code>--accounts=</code> accounts generated on each, default 100000
+ * <li><code>--owner-share=</code> fraction of requests that are owner
+ * searches, default 0.2
+ * <li><code>--max-in-flight=</code> requests outstanding before new ones are
+ * dropped (and reported), default 1000
+ * <li><code>--in-memory</code> accounts servers use the in-memory repository
+ * <li><code>--cache</code> web server caches accounts, which it does not by
+ * default so that every request reaches an accounts server
+ * <li><code>--virtual-threads</code> all servers handle requests using virtual
+ * threads
+ * <li><code>--load-balancer=</code> how the web server picks an accounts
+ * server, <code>round-robin</code> (default) or <code>latency-aware</code>
+ * <li><code>--hedging</code> web server hedges slow lookups
+ * <li><code>--prod</code> web server runs with the <code>prod</code> profile,
+ * caching templates and rendered account rows
+ * </ul>
+ */
+public class LoadTest {
+
+    /** Demo account in <code>data.sql</code>, used to check the system is up. */
+    public static final String READY_NUMBER = "123456789";
+    public static final String READY_OWNER = "Keri Lee";
+
+    public static final int SAMPLES = 10000;
+
+    public static final long STARTUP_TIMEOUT_SECONDS = 180;
+
+    protected int rate = 100;
+    protected int durationSeconds = 30;
+    protected int warmupSeconds = 10;
+    protected int accountsServers = 2;
+    protected int accounts = 100000;
+    protected double ownerShare = 0.2;
+    protected int maxInFlight = 1000;
+    protected boolean inMemory;
+    protected boolean cache;
+    protected boolean virtualThreads;
+    protected String loadBalancer = "round-robin";
+    protected boolean hedging;
+    protected boolean prod;
+
+    /** Sample of the generated accounts, and the owner of each. */
+    protected String[] numbers;
+    protected String[] owners;
+
+    protected String webUrl;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest();
+
+        for (String arg : args)
+            loadTest.option(arg);
+
+        loadTest.run();
+
+        // Eureka leaves a non-daemon thread running after shutdown
+        System.exit(0);
+    }
+
+    protected void option(String arg) {
+        String name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+        String value = arg.substring(name.length() + (arg.contains("=") ? 1 : 0));
+
+        switch (name) {
+        case "--rate":
+            rate = Integer.parseInt(value);
+            break;
+        case "--duration":
+            durationSeconds = Integer.parseInt(value);
+            break;
+        case "--warmup":
+            warmupSeconds = Integer.parseInt(value);
+            break;
+        case "--accounts-servers":
+            accountsServers = Integer.parseInt(value);
+            break;
+        case "--accounts":
+            accounts = Integer.parseInt(value);
+            break;
+        case "--owner-share":
+            ownerShare = Double.parseDouble(value);
+            break;
+        case "--max-in-flight":
+            maxInFlight = Integer.parseInt(value);
+            break;
+        case "--in-memory":
+            inMemory = true;
+            break;
+        case "--cache":
+            cache = true;
+            break;
+        case "--virtual-threads":
+            virtualThreads = true;
+            break;
+        case "--load-balancer":
+            loadBalancer = value;
+            break;
+        case "--hedging":
+            hedging = true;
+            break;
+        case "--prod":
+            prod = true;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    /**
+     * Start the servers, send the warm up and measured traffic, report and
+     * stop the servers.
+     */
+    protected void run() throws Exception {
+        sampleAccounts();
+
+        // Every request gets a connection, kept open between requests
+        System.setProperty("http.maxConnections", String.valueOf(maxInFlight));
+        System.setProperty(RegistrationServer.REGISTRATION_SERVER_HOSTNAME, "localhost");
+
+        List<ConfigurableApplicationContext> servers = new ArrayList<>();
+
+        try {
+            long start = System.currentTimeMillis();
+            ConfigurableApplicationContext registration = start(RegistrationServer.class, "registration-server",
+                    "--eureka.server.wait-time-in-ms-when-sync-empty=0",
+                    "--eureka.server.response-cache-update-interval-ms=1000");
+            servers.add(registration);
+
+            String registrationUrl = "http://localhost:" + port(registration) + "/eureka/";
+
+            for (int i = 0; i < accountsServers; i++) {
+                servers.add(start(AccountsServer.class, "accounts-server",
+                        "--eureka.client.serviceUrl.defaultZone=" + registrationUrl,
+                        "--eureka.instance.instance-id=accounts-service:" + i,
+                        "--eureka.instance.lease-renewal-interval-in-seconds=1",
+                        "--eureka.client.initial-instance-info-replication-interval-seconds=1",
+                        "--accounts.generator.count=" + accounts,
+                        inMemory ? "--spring.profiles.active=" + AccountsConfiguration.IN_MEMORY_PROFILE : ""));
+            }
+
+            ConfigurableApplicationContext web = start(WebServer.class, "web-server",
+                    "--eureka.client.serviceUrl.defaultZone=" + registrationUrl,
+                    "--eureka.client.registry-fetch-interval-seconds=1",
+                    "--spring.cloud.loadbalancer.cache.ttl=1s",
+                    "--accounts-client.cache.enabled=" + cache,
+                    "--accounts-client.load-balancer.strategy=" + loadBalancer,
+                    "--accounts-client.hedging.enabled=" + hedging,
+                    prod ? "--spring.profiles.active=prod" : "");
+            servers.add(web);
+            webUrl = "http://localhost:" + port(web);
+
+            awaitRegistration(registrationUrl);
+            System.out.println("Servers ready in " + (System.currentTimeMillis() - start) + "ms: registration, "
+                    + accountsServers + " accounts (" + accounts + " generated accounts each), web at " + webUrl);
+
+            System.out.println("Warming up for " + warmupSeconds + "s");
+            send(warmupSeconds);
+
+            System.out.println("Sending " + rate + " requests/s for " + durationSeconds + "s, "
+                    + Math.round(ownerShare * 100) + "% owner searches");
+            report(send(durationSeconds));
+        } finally {
+            for (int i = servers.size() - 1; i >= 0; i--)
+                servers.get(i).close();
+        }
+    }
+
+    /**
+     * Take an evenly spread sample of the accounts each accounts server
+     * generates, leaving out owners whose names would be escaped in HTML.
+     */
+    protected void sampleAccounts() {
+        List<String> sampledNumbers = new ArrayList<>();
+        List<String> sampledOwners = new ArrayList<>();
+        int step = Math.max(1, accounts / SAMPLES);
+        int[] index = { 0 };
+
+        // Same seed as the accounts servers, so the same accounts
+        new AccountGenerator(1).generate(0, accounts,
+                (id, number, owner, foldedOwner, balance) -> {
+                    if (index[0]++ % step == 0 && owner.indexOf('\'') < 0) {
+                        sampledNumbers.add(String.valueOf(number));
+                        sampledOwners.add(owner);
+                    }
+                });
+
+        if (sampledNumbers.isEmpty()) {
+            sampledNumbers.add(READY_NUMBER);
+            sampledOwners.add(READY_OWNER);
+        }
+
+        numbers = sampledNumbers.toArray(new String[0]);
+        owners = sampledOwners.toArray(new String[0]);
+    }
+
+    protected ConfigurableApplicationContext start(Class<?> server, String configName, String... args) {
+        List<String> allArgs = new ArrayList<>(Arrays.asList("--spring.config.name=" + configName,
+                "--server.port=0", "--spring.main.banner-mode=off", "--logging.level.root=WARN",
+                "--logging.level.io.pivotal=WARN", "--" + VirtualThreads.ENABLED_PROPERTY + "=" + virtualThreads));
+
+        for (String arg : args) {
+            if (!arg.isEmpty())
+                allArgs.add(arg);
+        }
+
+        return new SpringApplicationBuilder(server).run(allArgs.toArray(new String[0]));
+    }
+
+    /**
+     * Wait until every accounts server is registered and the web server can
+     * reach them.
+     */
+    protected void awaitRegistration(String registrationUrl) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STARTUP_TIMEOUT_SECONDS);
+
+        while (count(get(registrationUrl + "apps/ACCOUNTS-SERVICE"), "<status>UP</status>") < accountsServers) {
+            if (System.nanoTime() > deadline)
+                throw new IllegalStateException("Accounts servers did not register");
+
+            Thread.sleep(500);
+        }
+
+        while (!contains(get(webUrl + "/accounts/" + READY_NUMBER), READY_OWNER)) {
+            if (System.nanoTime() > deadline)
+                throw new IllegalStateException("Web server cannot reach the accounts servers");
+
+            Thread.sleep(500);
+        }
+
+        // Let the web server's load balancer see every instance
+        Thread.sleep(3000);
+    }
+
+    /**
+     * Send requests at the fixed rate for the specified time, then wait for
+     * those outstanding to complete.
+     *
+     * @return Results for each endpoint.
+     */
+    protected Endpoint[] send(int seconds) throws InterruptedException {
+        Endpoint byNumber = new Endpoint("byNumber");
+        Endpoint byOwner = new Endpoint("byOwner");
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ExecutorService clients = VirtualThreads.isAvailable() ? VirtualThreads.newExecutor("load-client-")
+                : Executors.newCachedThreadPool(r -> {
+                    Thread thread = new Thread(r, "load-client");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+
+            int sample = random.nextInt(numbers.length);
+            boolean searchByOwner = random.nextDouble() < ownerShare;
+            Endpoint endpoint = searchByOwner ? byOwner : byNumber;
+            String url = webUrl + (searchByOwner ? "/accounts/owner/" + owners[sample].replace(" ", "%20")
+                    : "/accounts/" + numbers[sample]);
+            String expected = owners[sample];
+            long intended = due;
+
+            if (!inFlight.tryAcquire()) {
+                endpoint.dropped.increment();
+                continue;
+            }
+
+            clients.execute(() -> {
+                try {
+                    endpoint.record(intended, contains(get(url), expected));
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        inFlight.acquire(maxInFlight);
+        clients.shutdown();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        byNumber.seconds = elapsed;
+        byOwner.seconds = elapsed;
+        return new Endpoint[] { byNumber, byOwner };
+    }
+
+    protected void report(Endpoint[] endpoints) {
+        Endpoint total = new Endpoint("total");
+
+        System.out.println();
+        System.out.println(String.format("%-10s %9s %7s %8s %10s %9s %9s %9s %9s", "endpoint", "requests", "errors",
+                "dropped", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        for (Endpoint endpoint : endpoints) {
+            System.out.println(endpoint);
+            total.histogram.add(endpoint.histogram);
+            total.errors.add(endpoint.errors.sum());
+            total.dropped.add(endpoint.dropped.sum());
+            total.seconds = endpoint.seconds;
+        }
+
+        System.out.println(total);
+    }
+
+    /**
+     * Fetch a page.
+     *
+     * @return The body, or null unless the response was a 200.
+     */
+    protected static String get(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(30000);
+            connection.setRequestProperty("Accept", "text/html,application/xml");
+
+            if (connection.getResponseCode() != 200) {
+                InputStream error = connection.getErrorStream();
+
+                if (error != null)
+                    error.close();
+
+                return null;
+            }
+
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+
+                while ((n = in.read(buffer)) != -1)
+                    body.write(buffer, 0, n);
+
+                return new String(body.toByteArray(), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean contains(String body, String text) {
+        return body != null && body.contains(text);
+    }
+
+    private static int count(String body, String text) {
+        int count = 0;
+
+        for (int i = body == null ? -1 : body.indexOf(text); i >= 0; i = body.indexOf(text, i + 1))
+            count++;
+
+        return count;
+    }
+
+    private static int port(ConfigurableApplicationContext context) {
+        return ((WebServerApplicationContext) context).getWebServer().getPort();
+    }
+
+    /**
+     * Results for one kind of request.
+     */
+    protected static class Endpoint {
+        final String name;
+        final Histogram histogram = new ConcurrentHistogram(TimeUnit.MINUTES.toNanos(1), 3);
+        final LongAdder errors = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        double seconds;
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        void record(long intended, boolean success) {
+            if (success)
+                histogram.recordValue(Math.min(System.nanoTime() - intended, histogram.getHighestTrackableValue()));
+            else
+                errors.increment();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %9d %7d %8d %10.1f %9.2f %9.2f %9.2f %9.2f", name,
+                    histogram.getTotalCount() + errors.sum(), errors.sum(), dropped.sum(),
+                    histogram.getTotalCount() / seconds, millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMaxValue()));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.pivotal.microservices.perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.pivotal.microservices.accounts.AccountGenerator;
+import io.pivotal.microservices.accounts.InMemoryAccountRepository;
+
+/**
+ * Data and setup shared by the JMH benchmarks.
+ */
+final class PerfSupport {
+
+    /** Held so the level set below is not lost when the logger is collected. */
+    private static final Logger APPLICATION_LOGGER = Logger.getLogger("io.pivotal.microservices");
+
+    private PerfSupport() {
+    }
+
+    /**
+     * Stop the services logging every call to the console, which would swamp
+     * the benchmark output. Log messages are still built, so that cost is
+     * still measured.
+     */
+    static void quietLogging() {
+        APPLICATION_LOGGER.setLevel(Level.WARNING);
+    }
+
+    /**
+     * A repository of generated accounts, always the same for the same count.
+     */
+    static InMemoryAccountRepository accounts(int count) {
+        InMemoryAccountRepository repository = new InMemoryAccountRepository(count);
+        new AccountGenerator(1).generate(0, count, repository);
+        return repository;
+    }
+
+    /**
+     * Account numbers spread evenly through the repository.
+     */
+    static String[] sampleNumbers(InMemoryAccountRepository repository, int samples) {
+        int step = Math.max(1, repository.countAccounts() / samples);
+        List<String> numbers = new ArrayList<>(samples);
+        int[] record = { 0 };
+
+        repository.forEach((id, number, owner, foldedOwner, balance) -> {
+            if (record[0]++ % step == 0 && numbers.size() < samples)
+                numbers.add(String.format("%09d", number));
+        });
+
+        return numbers.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,73 @@
+package io.pivotal.microservices.perf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.validation.BeanPropertyBindingResult;
+
+import io.pivotal.microservices.services.web.SearchCriteria;
+
+/**
+ * JMH benchmarks of validating the web service's search form, including
+ * creating the <code>BindingResult</code> as Spring MVC does for each
+ * request. Invalid criteria are measured too, since rejecting a value costs
+ * more than accepting one.
+ * <p>
+ * See {@link AccountsControllerBenchmark} for how to run JMH benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchCriteriaBenchmark {
+
+    private SearchCriteria accountNumber;
+
+    private SearchCriteria searchText;
+
+    private SearchCriteria badAccountNumber;
+
+    @Setup
+    public void setUp() {
+        accountNumber = criteria("123456789", null);
+        searchText = criteria(null, "smith");
+        badAccountNumber = criteria("12345678x", null);
+    }
+
+    @Benchmark
+    public boolean validateAccountNumber() {
+        return validate(accountNumber);
+    }
+
+    @Benchmark
+    public boolean validateSearchText() {
+        return validate(searchText);
+    }
+
+    @Benchmark
+    public boolean validateBadAccountNumber() {
+        return validate(badAccountNumber);
+    }
+
+    private static boolean validate(SearchCriteria criteria) {
+        return criteria.validate(new BeanPropertyBindingResult(criteria, "searchCriteria"));
+    }
+
+    private static SearchCriteria criteria(String accountNumber, String searchText) {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.setAccountNumber(accountNumber);
+        criteria.setSearchText(searchText);
+        return criteria;
+    }
+}
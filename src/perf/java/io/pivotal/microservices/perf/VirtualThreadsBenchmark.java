@@ -0,0 +1,193 @@
+package io.pivotal.microservices.perf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Import;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import io.pivotal.microservices.services.VirtualThreads;
+import io.pivotal.microservices.services.VirtualThreadsConfiguration;
+
+/**
+ * Compare throughput and latency of a blocking endpoint when requests are
+ * handled by Tomcat's platform thread pool and by virtual threads. The
+ * endpoint simply sleeps, standing in for a JDBC query or a call to another
+ * microservice.
+ * <p>
+ * Run using the <code>perf</code> Maven profile - virtual threads need Maven
+ * to be running on Java 21 or later, otherwise only platform threads are
+ * measured:
+ *
+ * <pre>
+ * mvn -Pperf test-compile exec:exec -Dperf.main=io.pivotal.microservices.perf.VirtualThreadsBenchmark \
+ *     -Dperf.args="[clients] [requests] [latency-ms]"
+ * </pre>
+ */
+public class VirtualThreadsBenchmark {
+
+    public static final int DEFAULT_CLIENTS = 1000;
+    public static final int DEFAULT_REQUESTS = 20000;
+    public static final int DEFAULT_LATENCY_MS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_REQUESTS;
+        int latencyMs = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_LATENCY_MS;
+
+        // Let every client keep its connection open between requests
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+
+        System.out.println("Java " + System.getProperty("java.version") + ": " + clients + " clients, " + requests
+                + " requests, " + latencyMs + "ms blocking per request");
+
+        List<String> results = new ArrayList<>();
+        results.add(run(false, clients, requests, latencyMs));
+
+        if (VirtualThreads.isAvailable())
+            results.add(run(true, clients, requests, latencyMs));
+        else
+            System.out.println("Virtual threads require Java 21 or later, skipped");
+
+        System.out.println();
+        System.out.println(String.format("%-10s %12s %10s %10s %10s", "threads", "requests/s", "p50 ms", "p99 ms",
+                "max ms"));
+
+        for (String result : results)
+            System.out.println(result);
+    }
+
+    /**
+     * Start the server with or without virtual threads, warm it up and then
+     * measure the requests.
+     */
+    protected static String run(boolean virtual, int clients, int requests, int latencyMs) throws Exception {
+        ConfigurableApplicationContext context = new SpringApplication(BlockingServer.class).run(
+                "--server.port=0", "--" + VirtualThreads.ENABLED_PROPERTY + "=" + virtual,
+                "--server.tomcat.max-connections=" + Math.max(8192, clients * 2),
+                "--eureka.client.enabled=false", "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN");
+
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            URL url = new URL("http://localhost:" + port + "/io?latency=" + latencyMs);
+
+            drive(url, clients, Math.min(requests, clients * 2)); // Warm up
+
+            Histogram histogram = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+            long start = System.nanoTime();
+            drive(url, clients, requests, histogram);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            return String.format("%-10s %12.0f %10.1f %10.1f %10.1f", virtual ? "virtual" : "platform",
+                    requests / seconds, millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(99)), millis(histogram.getMaxValue()));
+        } finally {
+            context.close();
+        }
+    }
+
+    protected static void drive(URL url, int clients, int requests) throws InterruptedException {
+        drive(url, clients, requests, new Histogram(TimeUnit.MINUTES.toNanos(1), 3));
+    }
+
+    /**
+     * Send the requests from a fixed number of client threads, each sending its
+     * next request as soon as the previous response arrives.
+     */
+    protected static void drive(URL url, int clients, int requests, Histogram histogram)
+            throws InterruptedException {
+        AtomicInteger remaining = new AtomicInteger(requests);
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            Thread client = new Thread(() -> {
+                Histogram own = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+
+                try {
+                    while (remaining.getAndDecrement() > 0) {
+                        long start = System.nanoTime();
+
+                        if (get(url))
+                            own.recordValue(System.nanoTime() - start);
+                        else
+                            failures.incrementAndGet();
+                    }
+                } finally {
+                    synchronized (histogram) {
+                        histogram.add(own);
+                    }
+
+                    done.countDown();
+                }
+            }, "client-" + i);
+
+            client.setDaemon(true);
+            client.start();
+        }
+
+        done.await();
+
+        if (failures.get() > 0)
+            System.out.println(failures.get() + " requests failed");
+    }
+
+    private static boolean get(URL url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[256];
+
+                while (in.read(buffer) != -1)
+                    ; // Drain so the connection can be reused
+            }
+
+            return connection.getResponseCode() == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Minimal web server with a single blocking endpoint. No database and no
+     * service registration, so only request handling is measured.
+     */
+    @SpringBootConfiguration
+    @EnableAutoConfiguration(exclude = { DataSourceAutoConfiguration.class, HibernateJpaAutoConfiguration.class })
+    @Import({ VirtualThreadsConfiguration.class, BlockingController.class })
+    public static class BlockingServer {
+    }
+
+    @RestController
+    public static class BlockingController {
+
+        @GetMapping("/io")
+        public String io(@RequestParam("latency") long latencyMs) throws InterruptedException {
+            Thread.sleep(latencyMs);
+            return "OK";
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package io.pivotal.microservices.perf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.pivotal.microservices.accounts.AccountsController;
+import io.pivotal.microservices.accounts.InMemoryAccountRepository;
+import io.pivotal.microservices.services.web.Account;
+import io.pivotal.microservices.services.web.WebAccountsService;
+
+/**
+ * JMH benchmarks of the web service's calls to the accounts service. The
+ * accounts service is replaced by a stub HTTP server returning canned JSON,
+ * so these measure the client side: building the request, the
+ * <code>RestTemplate</code>, the HTTP round trip over loopback and reading the
+ * response. The near-cache is not enabled, so every call is made.
+ * <p>
+ * See {@link AccountsControllerBenchmark} for how to run JMH benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WebAccountsServiceBenchmark {
+
+    private HttpServer server;
+
+    private ExecutorService serverThreads;
+
+    private WebAccountsService service;
+
+    private String accountNumber;
+
+    @Setup
+    public void setUp() throws IOException {
+        PerfSupport.quietLogging();
+
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        InMemoryAccountRepository repository = PerfSupport.accounts(AccountsController.DEFAULT_PAGE_SIZE);
+        accountNumber = repository.findAll().get(0).getNumber();
+
+        byte[] account = objectMapper.writeValueAsBytes(repository.findByNumber(accountNumber));
+        byte[] page = objectMapper.writeValueAsBytes(repository.findAll());
+
+        // Otherwise headers and body are sent separately and delayed ACKs add
+        // 40ms to every call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        serverThreads = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/accounts/" + accountNumber, exchange -> respond(exchange, account));
+        server.createContext("/accounts/owner/", exchange -> respond(exchange, page));
+        server.setExecutor(serverThreads);
+        server.start();
+
+        service = new WebAccountsService("http://localhost:" + server.getAddress().getPort()) {
+            {
+                restTemplate = new RestTemplate();
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public Account findByNumber() {
+        return service.findByNumber(accountNumber);
+    }
+
+    @Benchmark
+    public List<Account> byOwnerContains() {
+        return service.byOwnerContains("smith");
+    }
+
+    private static void respond(HttpExchange exchange, byte[] json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, json.length);
+
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(json);
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package io.pivotal.microservices.accounts;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import io.pivotal.microservices.exceptions.AccountNotFoundException;
+import io.pivotal.microservices.exceptions.InsufficientFundsException;
+import io.pivotal.microservices.exceptions.InvalidAmountException;
 
 // The following are equivalent, we only need to use one.
 
@@ -81,6 +92,42 @@ public abstract class AbstractAccountControllerTests {
 		Logger.getGlobal().info("End validAccount test");
 	}
 
+	@Test
+	public void validAccountOwnerPages() {
+		List<Account> accounts = accountController.byOwner("keri", 1, null);
+
+		Assertions.assertEquals(1, accounts.size());
+		Assertions.assertEquals(ACCOUNT_1, accounts.get(0).getNumber());
+
+		accounts = accountController.byOwner("keri", 1, accounts.get(0).getId());
+		Assertions.assertTrue(accounts.isEmpty());
+
+		// Too short for the owner index, if there is one
+		accounts = accountController.byOwner("ke", 1, null);
+		Assertions.assertEquals(1, accounts.size());
+		Assertions.assertEquals(ACCOUNT_1, accounts.get(0).getNumber());
+	}
+
+	@Test
+	public void validAccountOwnerStream() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		accountController.streamByOwner("keri").getBody().writeTo(out);
+
+		String[] lines = out.toString("UTF-8").split("\n");
+		Assertions.assertEquals(1, lines.length);
+		Assertions.assertTrue(lines[0].contains(ACCOUNT_1_NAME));
+	}
+
+	@Test
+	public void validAndInvalidAccountNumbers() {
+		AccountBatch batch = accountController.byNumbers(Arrays.asList(
+				"10101010", ACCOUNT_1, ACCOUNT_1));
+
+		Assertions.assertEquals(1, batch.getAccounts().size());
+		Assertions.assertEquals(ACCOUNT_1, batch.getAccounts().get(0).getNumber());
+		Assertions.assertEquals(Arrays.asList("10101010"), batch.getMissing());
+	}
+
 	@Test
 	public void invalidAccountNumber() {
 		try {
@@ -100,4 +147,73 @@ public abstract class AbstractAccountControllerTests {
 			// Worked!
 		}
 	}
+
+	@Test
+	public void depositAndWithdraw() {
+		BigDecimal before = accountController.byNumber(ACCOUNT_1).getBalance();
+		BigDecimal amount = new BigDecimal("10.50");
+
+		Account account = accountController.deposit(ACCOUNT_1, amount);
+		Assertions.assertEquals(before.add(amount), account.getBalance());
+
+		account = accountController.withdraw(ACCOUNT_1, amount);
+		Assertions.assertEquals(before, account.getBalance());
+	}
+
+	@Test
+	public void notModifiedUntilBalanceChanges() {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		Account account = accountController.byNumber(ACCOUNT_1, get(null, response));
+		String etag = response.getHeader(HttpHeaders.ETAG);
+
+		Assertions.assertNotNull(account);
+		Assertions.assertNotNull(etag);
+
+		response = new MockHttpServletResponse();
+		Assertions.assertNull(accountController.byNumber(ACCOUNT_1, get(etag, response)));
+		Assertions.assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+
+		response = new MockHttpServletResponse();
+		Assertions.assertNotNull(accountController.byOwner("Keri", null, null, get(null, response)));
+		String ownerEtag = response.getHeader(HttpHeaders.ETAG);
+		Assertions.assertNull(accountController.byOwner("Keri", null, null, get(ownerEtag, new MockHttpServletResponse())));
+
+		// Same balance afterwards, but a new version
+		accountController.deposit(ACCOUNT_1, BigDecimal.ONE);
+		accountController.withdraw(ACCOUNT_1, BigDecimal.ONE);
+
+		response = new MockHttpServletResponse();
+		Assertions.assertNotNull(accountController.byNumber(ACCOUNT_1, get(etag, response)));
+		Assertions.assertEquals(HttpStatus.OK.value(), response.getStatus());
+		Assertions.assertNotEquals(etag, response.getHeader(HttpHeaders.ETAG));
+		Assertions.assertNotNull(accountController.byOwner("Keri", null, null, get(ownerEtag, new MockHttpServletResponse())));
+	}
+
+	protected ServletWebRequest get(String ifNoneMatch, MockHttpServletResponse response) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/accounts");
+
+		if (ifNoneMatch != null)
+			request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+
+		return new ServletWebRequest(request, response);
+	}
+
+	@Test
+	public void withdrawMoreThanBalance() {
+		Assertions.assertThrows(InsufficientFundsException.class,
+				() -> accountController.withdraw(ACCOUNT_1,
+						new BigDecimal("999999.99")));
+	}
+
+	@Test
+	public void invalidAmounts() {
+		Assertions.assertThrows(InvalidAmountException.class,
+				() -> accountController.deposit(ACCOUNT_1, new BigDecimal("-1")));
+		Assertions.assertThrows(InvalidAmountException.class,
+				() -> accountController.deposit(ACCOUNT_1, new BigDecimal("0.001")));
+		Assertions.assertThrows(InvalidAmountException.class,
+				() -> accountController.transfer(ACCOUNT_1, ACCOUNT_1, BigDecimal.ONE));
+		Assertions.assertThrows(AccountNotFoundException.class,
+				() -> accountController.deposit("10101010", BigDecimal.ONE));
+	}
 }
@@ -0,0 +1,50 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AccountGeneratorTests {
+
+	@Test
+	public void numbersAreUniqueAndDistinctFromDemoAccounts() {
+		Set<Integer> numbers = new HashSet<Integer>();
+
+		new AccountGenerator(1).generate(0, 100000, (id, number, owner, foldedOwner, balance) -> {
+			Assertions.assertTrue(numbers.add(number), "Duplicate " + number);
+			Assertions.assertTrue(number >= 200000000 && number < 300000000);
+			Assertions.assertTrue(balance >= 0 && balance <= BalanceEngine.MAX_BALANCE);
+			Assertions.assertEquals(owner.toUpperCase(), foldedOwner);
+		});
+	}
+
+	@Test
+	public void sameSeedGeneratesSameAccounts() {
+		Assertions.assertEquals(generate(7), generate(7));
+		Assertions.assertNotEquals(generate(7), generate(8));
+	}
+
+	@Test
+	public void loadsDirectlyIntoRepository() {
+		InMemoryAccountRepository repository = new InMemoryAccountRepository(1000);
+		new AccountGenerator(1).generate(500, 1000, repository);
+
+		Assertions.assertEquals(1000, repository.countAccounts());
+
+		Account account = repository.findAll().get(999);
+		Assertions.assertEquals(1499, account.getId());
+		Assertions.assertEquals(account.getNumber(), repository.findByNumber(account.getNumber()).getNumber());
+		Assertions.assertFalse(repository.findByOwnerContainingIgnoreCase(account.getOwner()).isEmpty());
+	}
+
+	protected static List<String> generate(long seed) {
+		List<String> accounts = new ArrayList<String>();
+		new AccountGenerator(seed).generate(0, 100,
+				(id, number, owner, foldedOwner, balance) -> accounts.add(number + " " + owner + " " + balance));
+		return accounts;
+	}
+}
@@ -0,0 +1,72 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AccountSnapshotTests {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void restoresEveryAccount() throws IOException {
+		InMemoryAccountRepository repository = new InMemoryAccountRepository();
+		repository.add(0, "123456789", "Keri Lee", new BigDecimal("12.34"));
+		new AccountGenerator(1).generate(1, 10000, repository);
+
+		Path file = directory.resolve("accounts.snapshot");
+		AccountSnapshot.Header header = AccountSnapshot.write(file, repository::forEach);
+
+		Assertions.assertEquals(10001, header.getCount());
+		Assertions.assertEquals(10000, header.getMaxId());
+
+		InMemoryAccountRepository restored = new InMemoryAccountRepository();
+		restored.load(file);
+
+		Assertions.assertEquals(repository.findAll().toString(), restored.findAll().toString());
+		Assertions.assertEquals(new BigDecimal("12.34"), restored.findByNumber("123456789").getBalance());
+		Assertions.assertEquals(repository.findByOwnerContainingIgnoreCase("kim").size(),
+				restored.findByOwnerContainingIgnoreCase("kim").size());
+		Assertions.assertEquals(repository.findByIdIn(Arrays.asList(0L, 5000L, 10000L)).toString(),
+				restored.findByIdIn(Arrays.asList(0L, 5000L, 10000L)).toString());
+	}
+
+	@Test
+	public void rejectsTruncatedFile() throws IOException {
+		InMemoryAccountRepository repository = new InMemoryAccountRepository();
+		new AccountGenerator(1).generate(0, 100, repository);
+
+		Path file = directory.resolve("accounts.snapshot");
+		AccountSnapshot.write(file, repository::forEach);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(1000);
+		}
+
+		Assertions.assertThrows(IOException.class,
+				() -> AccountSnapshot.read(file, new InMemoryAccountRepository()));
+	}
+
+	@Test
+	public void failedWriteLeavesNoTemporaryFile() throws IOException {
+		Path file = directory.resolve("accounts.snapshot");
+
+		Assertions.assertThrows(IllegalStateException.class, () -> AccountSnapshot.write(file, sink -> {
+			sink.add(1, 123456001, "Dollie R. Schnidt", "DOLLIE R. SCHNIDT", 100);
+			throw new IllegalStateException("Repository closed");
+		}));
+
+		try (Stream<Path> files = Files.list(directory)) {
+			Assertions.assertEquals(0, files.count());
+		}
+	}
+}
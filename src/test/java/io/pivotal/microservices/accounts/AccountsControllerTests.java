@@ -1,9 +1,24 @@
 package io.pivotal.microservices.accounts;
 
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.logging.Logger;
 
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import io.pivotal.microservices.logging.RequestLog;
 
 
 public class AccountsControllerTests extends AbstractAccountControllerTests {
@@ -21,6 +36,16 @@ public class AccountsControllerTests extends AbstractAccountControllerTests {
 				return null;
 		}
 
+		@Override
+		public List<Account> findByNumberIn(Collection<String> accountNumbers) {
+			List<Account> accounts = new ArrayList<Account>();
+
+			if (accountNumbers.contains(ACCOUNT_1))
+				accounts.add(theAccount);
+
+			return accounts;
+		}
+
 		@Override
 		public List<Account> findByOwnerContainingIgnoreCase(String partialName) {
 			List<Account> accounts = new ArrayList<Account>();
@@ -31,6 +56,31 @@ public class AccountsControllerTests extends AbstractAccountControllerTests {
 			return accounts;
 		}
 
+		@Override
+		public List<Account> findByOwnerContainingIgnoreCaseAndIdGreaterThan(String partialName, long afterId,
+				Pageable pageable) {
+			List<Account> accounts = findByOwnerContainingIgnoreCase(partialName);
+			accounts.removeIf(account -> account.getId() <= afterId);
+			return accounts;
+		}
+
+		@Override
+		public List<Account> findByIdIn(Collection<Long> ids) {
+			List<Account> accounts = new ArrayList<Account>();
+
+			if (ids.contains(theAccount.getId()))
+				accounts.add(theAccount);
+
+			return accounts;
+		}
+
+		@Override
+		public List<Account> findAll() {
+			List<Account> accounts = new ArrayList<Account>();
+			accounts.add(theAccount);
+			return accounts;
+		}
+
 		@Override
 		public int countAccounts() {
 			return 1;
@@ -39,8 +89,77 @@ public class AccountsControllerTests extends AbstractAccountControllerTests {
 
 	protected TestAccountRepository testRepo = new TestAccountRepository();
 
+	protected BalanceEngine balanceEngine;
+
 	@BeforeEach
 	public void setup() {
-		accountController = new AccountsController(testRepo);
+		// Balance changes are only held by the engine, but are versioned
+		balanceEngine = new BalanceEngine(testRepo, deltas -> {
+			if (deltas.containsKey(ACCOUNT_1))
+				theAccount.version++;
+		});
+		accountController = new AccountsController(testRepo, null, balanceEngine);
+	}
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		balanceEngine.close();
+	}
+
+	@Test
+	public void balancesUnavailableWithoutEngine() throws Exception {
+		MockMvc mockMvc = MockMvcBuilders.standaloneSetup(new AccountsController(testRepo)).build();
+
+		mockMvc.perform(post("/accounts/" + ACCOUNT_1 + "/deposit").param("amount", "1.00"))
+				.andExpect(status().isServiceUnavailable());
+		mockMvc.perform(post("/accounts/" + ACCOUNT_1 + "/withdraw").param("amount", "1.00"))
+				.andExpect(status().isServiceUnavailable());
+		mockMvc.perform(post("/accounts/transfer").param("from", ACCOUNT_1).param("to", "987654321")
+				.param("amount", "1.00")).andExpect(status().isServiceUnavailable());
+	}
+
+	@Test
+	public void balanceChangesAreSampledPerEndpoint() throws Exception {
+		List<String> sampled = new ArrayList<String>();
+		AccountsController controller = new AccountsController(testRepo);
+		controller.requestLog = new RequestLog(null) {
+			@Override
+			public boolean sample(Logger logger, String endpoint) {
+				sampled.add(endpoint);
+				return false;
+			}
+		};
+
+		MockMvc mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+		mockMvc.perform(post("/accounts/" + ACCOUNT_1 + "/deposit").param("amount", "1.00"));
+		mockMvc.perform(post("/accounts/" + ACCOUNT_1 + "/withdraw").param("amount", "1.00"));
+		mockMvc.perform(post("/accounts/transfer").param("from", ACCOUNT_1).param("to", "987654321")
+				.param("amount", "1.00"));
+
+		Assertions.assertEquals(Arrays.asList("deposit", "withdraw", "transfer"), sampled);
+	}
+
+	@Test
+	public void indexedOwnerSearchIsInIdOrder() {
+		List<Account> owners = new ArrayList<Account>();
+
+		for (int i = 1; i <= 5; i++)
+			owners.add(new Account(String.format("%09d", i), "Owner " + i));
+
+		OwnerSearchIndex ownerIndex = new OwnerSearchIndex(100);
+		ownerIndex.rebuild(owners);
+
+		// An IN query returns its rows in no particular order
+		AccountsController controller = new AccountsController(new TestAccountRepository() {
+			@Override
+			public List<Account> findByIdIn(Collection<Long> ids) {
+				List<Account> found = new ArrayList<Account>(owners);
+				found.removeIf(account -> !ids.contains(account.getId()));
+				Collections.reverse(found);
+				return found;
+			}
+		}, ownerIndex);
+
+		Assertions.assertEquals(owners, controller.findByOwner("owner"));
 	}
 }
@@ -0,0 +1,296 @@
+package io.pivotal.microservices.accounts;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.pivotal.microservices.exceptions.InsufficientFundsException;
+import io.pivotal.microservices.exceptions.InvalidAmountException;
+
+public class BalanceEngineTests {
+
+	protected static final int ACCOUNTS = 20;
+
+	protected static final BigDecimal OPENING_BALANCE = new BigDecimal("100.00");
+
+	protected InMemoryAccountRepository repository;
+
+	protected BalanceEngine balanceEngine;
+
+	@BeforeEach
+	public void setup() {
+		repository = new InMemoryAccountRepository();
+
+		for (int i = 0; i < ACCOUNTS; i++)
+			repository.add(i, number(i), "Owner " + i, OPENING_BALANCE);
+
+		balanceEngine = new BalanceEngine(repository, repository, 8);
+	}
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		balanceEngine.close();
+	}
+
+	@Test
+	public void concurrentTransfersKeepTotal() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+
+		for (int t = 0; t < 16; t++) {
+			Random random = new Random(t);
+
+			executor.execute(() -> {
+				for (int i = 0; i < 500; i++) {
+					int from = random.nextInt(ACCOUNTS);
+					int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+
+					BigDecimal amount = BigDecimal.valueOf(1 + random.nextInt(5000), 2);
+
+					try {
+						balanceEngine.transfer(number(from), number(to), amount);
+					} catch (InsufficientFundsException e) {
+						// Expected occasionally
+					}
+				}
+			});
+		}
+
+		executor.shutdown();
+		Assertions.assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS), "Deadlocked?");
+
+		BigDecimal total = BigDecimal.ZERO;
+
+		for (Account account : repository.findAll()) {
+			Assertions.assertTrue(account.getBalance().signum() >= 0);
+			total = total.add(account.getBalance());
+		}
+
+		Assertions.assertEquals(OPENING_BALANCE.multiply(new BigDecimal(ACCOUNTS)), total);
+	}
+
+	@Test
+	public void transferIsAllOrNothing() {
+		Assertions.assertThrows(InsufficientFundsException.class,
+				() -> balanceEngine.transfer(number(0), number(1), new BigDecimal("100.01")));
+
+		List<Account> accounts = balanceEngine.transfer(number(0), number(1), new BigDecimal("100.00"));
+
+		Assertions.assertEquals(new BigDecimal("0.00"), accounts.get(0).getBalance());
+		Assertions.assertEquals(new BigDecimal("200.00"), accounts.get(1).getBalance());
+		Assertions.assertEquals(new BigDecimal("200.00"), repository.findByNumber(number(1)).getBalance());
+	}
+
+	@Test
+	public void accountsReturnedAreAtTheVersionWritten() {
+		for (int i = 0; i < 3; i++) {
+			Account deposited = balanceEngine.deposit(number(0), BigDecimal.ONE);
+			Account stored = repository.findByNumber(number(0));
+
+			Assertions.assertEquals(i + 1, deposited.getVersion());
+			Assertions.assertEquals(AccountsController.entityTag(stored), AccountsController.entityTag(deposited));
+		}
+
+		List<Account> transferred = balanceEngine.transfer(number(0), number(1), BigDecimal.ONE);
+
+		Assertions.assertEquals(repository.findByNumber(number(0)).getVersion(), transferred.get(0).getVersion());
+		Assertions.assertEquals(repository.findByNumber(number(1)).getVersion(), transferred.get(1).getVersion());
+		Assertions.assertEquals(4, transferred.get(0).getVersion());
+		Assertions.assertEquals(1, transferred.get(1).getVersion());
+	}
+
+	@Test
+	public void balanceCannotExceedColumnSize() {
+		balanceEngine.deposit(number(0), new BigDecimal("999899.99"));
+
+		Assertions.assertThrows(InvalidAmountException.class,
+				() -> balanceEngine.deposit(number(0), new BigDecimal("0.01")));
+	}
+
+	@Test
+	public void failedWriteIsReported() throws InterruptedException {
+		balanceEngine.close();
+		balanceEngine = new BalanceEngine(repository, deltas -> {
+			throw new IllegalStateException("Database down");
+		});
+
+		Assertions.assertThrows(IllegalStateException.class,
+				() -> balanceEngine.deposit(number(0), BigDecimal.ONE));
+		Assertions.assertEquals(OPENING_BALANCE, repository.findByNumber(number(0)).getBalance());
+	}
+
+	@Test
+	public void failedWriteIsNotAppliedToChangesQueuedBehindIt() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch queued = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger writes = new AtomicInteger();
+
+		balanceEngine.close();
+		balanceEngine = new BalanceEngine(repository, deltas -> {
+			int write = writes.incrementAndGet();
+
+			if (write == 1) {
+				writing.countDown();
+				await(queued);
+				throw new IllegalStateException("Database down");
+			} else if (write == 2) {
+				await(release);
+			}
+
+			repository.write(deltas);
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try {
+			// The first withdrawal is being written when the second is queued
+			Future<?> first = executor.submit(() -> balanceEngine.withdraw(number(0), new BigDecimal("60.00")));
+			await(writing);
+
+			Thread[] thread = new Thread[1];
+			Future<?> second = executor.submit(() -> {
+				thread[0] = Thread.currentThread();
+				return balanceEngine.withdraw(number(0), new BigDecimal("30.00"));
+			});
+
+			while (thread[0] == null || thread[0].getState() != Thread.State.TIMED_WAITING)
+				Thread.sleep(1);
+
+			queued.countDown();
+
+			ExecutionException e = Assertions.assertThrows(ExecutionException.class, first::get);
+			Assertions.assertTrue(e.getCause() instanceof IllegalStateException);
+
+			// While the second is still being written, only it is left
+			Assertions.assertThrows(InsufficientFundsException.class,
+					() -> balanceEngine.withdraw(number(0), new BigDecimal("70.01")));
+
+			release.countDown();
+			second.get();
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+
+		Assertions.assertEquals(new BigDecimal("70.00"), repository.findByNumber(number(0)).getBalance());
+		Assertions.assertEquals(new BigDecimal("0.00"),
+				balanceEngine.withdraw(number(0), new BigDecimal("70.00")).getBalance());
+		Assertions.assertEquals(new BigDecimal("0.00"), repository.findByNumber(number(0)).getBalance());
+	}
+
+	@Test
+	public void idleBalancesAreDropped() throws InterruptedException {
+		balanceEngine.close();
+		balanceEngine = new BalanceEngine(repository, repository, 8, 5);
+
+		for (int i = 0; i < ACCOUNTS; i++)
+			balanceEngine.deposit(number(i), BigDecimal.ONE);
+
+		Assertions.assertTrue(balanceEngine.balancesHeld() <= 5, "Held " + balanceEngine.balancesHeld());
+
+		for (int i = 0; i < ACCOUNTS; i++)
+			Assertions.assertEquals(new BigDecimal("102.00"),
+					balanceEngine.deposit(number(i), BigDecimal.ONE).getBalance());
+	}
+
+	@Test
+	public void changeInProgressWhenClosedIsWritten() throws Exception {
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		balanceEngine.close();
+		InMemoryAccountRepository loadingRepository = new InMemoryAccountRepository() {
+
+			@Override
+			public Account findByNumber(String accountNumber) {
+				loading.countDown();
+				BalanceEngineTests.await(release);
+				return super.findByNumber(accountNumber);
+			}
+		};
+		loadingRepository.add(0, number(0), "Owner 0", OPENING_BALANCE);
+		balanceEngine = new BalanceEngine(loadingRepository, loadingRepository, 8);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try {
+			// The deposit is past the running check, loading the balance, when closed
+			Future<Account> deposit = executor.submit(() -> balanceEngine.deposit(number(0), BigDecimal.ONE));
+			await(loading);
+
+			Thread[] thread = new Thread[1];
+			Future<?> close = executor.submit(() -> {
+				thread[0] = Thread.currentThread();
+				balanceEngine.close();
+				return null;
+			});
+
+			while (thread[0] == null || thread[0].getState() != Thread.State.WAITING)
+				Thread.sleep(1);
+
+			release.countDown();
+
+			Assertions.assertEquals(new BigDecimal("101.00"), deposit.get(5, TimeUnit.SECONDS).getBalance());
+			close.get(5, TimeUnit.SECONDS);
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+
+		Assertions.assertEquals(new BigDecimal("101.00"), loadingRepository.findByNumber(number(0)).getBalance());
+		Assertions.assertThrows(IllegalStateException.class,
+				() -> balanceEngine.deposit(number(0), BigDecimal.ONE));
+	}
+
+	@Test
+	public void withdrawalRefusedByWriterReloadsBalance() throws InterruptedException {
+		balanceEngine.close();
+		balanceEngine = new BalanceEngine(repository, deltas -> {
+			// As the database does, whatever balance this engine holds
+			for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+				BigDecimal stored = repository.findByNumber(delta.getKey()).getBalance();
+
+				if (stored.movePointRight(2).longValueExact() + delta.getValue() < 0)
+					throw new InsufficientFundsException(delta.getKey());
+			}
+
+			repository.write(deltas);
+		});
+
+		balanceEngine.deposit(number(0), BigDecimal.ONE);
+
+		// Another instance, sharing the database, empties the account
+		repository.write(Collections.singletonMap(number(0), -10100L));
+
+		Assertions.assertThrows(InsufficientFundsException.class,
+				() -> balanceEngine.withdraw(number(0), new BigDecimal("50.00")));
+		Assertions.assertEquals(new BigDecimal("1.00"), balanceEngine.deposit(number(0), BigDecimal.ONE).getBalance());
+		Assertions.assertEquals(new BigDecimal("1.00"), repository.findByNumber(number(0)).getBalance());
+	}
+
+	protected static void await(CountDownLatch latch) {
+		try {
+			Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	protected static String number(int i) {
+		return String.format("%09d", i);
+	}
+}
@@ -0,0 +1,53 @@
+package io.pivotal.microservices.accounts;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+
+import io.pivotal.microservices.codec.CompactAccountsHttpMessageConverter;
+
+/**
+ * Accounts are sent in binary only to clients that ask for it.
+ */
+@ExtendWith(SpringExtension.class)
+@EnableAutoConfiguration
+@AutoConfigureMockMvc
+@ActiveProfiles(AccountsConfiguration.IN_MEMORY_PROFILE)
+@SpringBootTest(classes = AccountsConfiguration.class, properties = { "eureka.client.enabled=false",
+		"spring.data.jpa.repositories.enabled=false" })
+public class ContentNegotiationTests {
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Test
+	public void jsonByDefault() throws Exception {
+		mockMvc.perform(get("/accounts/123456789").accept(MediaType.ALL)).andExpect(status().isOk())
+				.andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+		mockMvc.perform(get("/accounts/owner/Keri")).andExpect(status().isOk())
+				.andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+	}
+
+	@Test
+	public void binaryWhenAskedFor() throws Exception {
+		MediaType[] accept = { CompactAccountsHttpMessageConverter.MEDIA_TYPE, MediaType.APPLICATION_JSON };
+
+		mockMvc.perform(get("/accounts/123456789").accept(accept)).andExpect(status().isOk())
+				.andExpect(content().contentType(CompactAccountsHttpMessageConverter.MEDIA_TYPE));
+		mockMvc.perform(get("/accounts/owner/Keri").accept(accept)).andExpect(status().isOk())
+				.andExpect(content().contentType(CompactAccountsHttpMessageConverter.MEDIA_TYPE));
+		mockMvc.perform(get("/accounts/batch?numbers=123456789,000").accept(accept)).andExpect(status().isOk())
+				.andExpect(content().contentType(CompactAccountsHttpMessageConverter.MEDIA_TYPE));
+	}
+}
@@ -0,0 +1,88 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+
+public class HiLoAccountIdGeneratorTests {
+
+	@Test
+	public void reservesOneBlockAtATime() {
+		AtomicLong nextId = new AtomicLong(500);
+		AtomicInteger blocks = new AtomicInteger();
+		HiLoAccountIdGenerator idGenerator = new HiLoAccountIdGenerator(
+				size -> {
+					blocks.incrementAndGet();
+					return nextId.getAndAdd(size);
+				}, 10);
+
+		for (long expected = 500; expected < 525; expected++)
+			Assertions.assertEquals(expected, idGenerator.nextId());
+
+		Assertions.assertEquals(3, blocks.get());
+	}
+
+	@Test
+	public void idsAreUniqueAcrossThreads() throws InterruptedException {
+		HiLoAccountIdGenerator idGenerator = new HiLoAccountIdGenerator(
+				new AtomicLong()::getAndAdd, 7);
+		Set<Long> ids = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+
+		for (int i = 0; i < 8; i++) {
+			executor.execute(() -> {
+				for (int j = 0; j < 10000; j++)
+					ids.add(idGenerator.nextId());
+			});
+		}
+
+		executor.shutdown();
+		Assertions.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		Assertions.assertEquals(80000, ids.size());
+	}
+
+	@Test
+	public void instancesSharingDatabaseDoNotCollide() {
+		EmbeddedDatabase dataSource = new EmbeddedDatabaseBuilder().generateUniqueName(true)
+				.addScript("classpath:testdb/schema.sql")
+				.addScript("classpath:testdb/data.sql").build();
+
+		try {
+			long maxId = new JdbcTemplate(dataSource).queryForObject(
+					"SELECT max(id) FROM T_ACCOUNT", Long.class);
+
+			// Two "instances" of the accounts service
+			HiLoAccountIdGenerator first = generator(dataSource);
+			HiLoAccountIdGenerator second = generator(dataSource);
+			Set<Long> ids = ConcurrentHashMap.newKeySet();
+
+			for (int i = 0; i < 100; i++) {
+				long id1 = first.nextId();
+				long id2 = second.nextId();
+
+				Assertions.assertTrue(id1 > maxId && id2 > maxId);
+				Assertions.assertTrue(ids.add(id1));
+				Assertions.assertTrue(ids.add(id2));
+			}
+		} finally {
+			dataSource.shutdown();
+		}
+	}
+
+	private HiLoAccountIdGenerator generator(DataSource dataSource) {
+		return new HiLoAccountIdGenerator(
+				new JdbcAccountIdBlockSource(dataSource), 16);
+	}
+}
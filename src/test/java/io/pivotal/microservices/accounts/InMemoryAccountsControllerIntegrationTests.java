@@ -0,0 +1,34 @@
+package io.pivotal.microservices.accounts;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+/**
+ * Run the same tests as {@link AccountsControllerIntegrationTests} with the
+ * in-memory repository profile active.
+ * <p>
+ * Auto-configuration would also create a JPA repository, since this test lives
+ * in the same package as {@link AccountRepository}, so it is disabled.
+ */
+@ExtendWith(SpringExtension.class)
+@EnableAutoConfiguration
+@ActiveProfiles(AccountsConfiguration.IN_MEMORY_PROFILE)
+@SpringBootTest(classes = AccountsConfiguration.class, properties = { "eureka.client.enabled=false",
+		"spring.data.jpa.repositories.enabled=false" })
+public class InMemoryAccountsControllerIntegrationTests extends AbstractAccountControllerTests {
+
+	@Autowired
+	AccountRepository accountRepository;
+
+	@Test
+	public void usesInMemoryRepository() {
+		Assertions.assertTrue(accountRepository instanceof InMemoryAccountRepository);
+		Assertions.assertEquals(21, accountRepository.countAccounts());
+	}
+}
@@ -0,0 +1,103 @@
+package io.pivotal.microservices.accounts;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+
+public class InMemoryAccountsControllerTests extends AbstractAccountControllerTests {
+
+	protected InMemoryAccountRepository inMemoryRepo;
+
+	protected BalanceEngine balanceEngine;
+
+	@BeforeEach
+	public void setup() {
+		// Start small to force the tables to grow
+		inMemoryRepo = new InMemoryAccountRepository(4);
+		inMemoryRepo.add(0, ACCOUNT_1, ACCOUNT_1_NAME, new BigDecimal("12.34"));
+
+		for (int i = 1; i <= 100; i++)
+			inMemoryRepo.add(i, String.format("%09d", i), "Owner " + i, BigDecimal.ZERO);
+
+		balanceEngine = new BalanceEngine(inMemoryRepo, inMemoryRepo);
+		accountController = new AccountsController(inMemoryRepo, null, balanceEngine);
+	}
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		balanceEngine.close();
+	}
+
+	@Test
+	public void lookupsNeedNineDigits() {
+		Assertions.assertNotNull(inMemoryRepo.findByNumber("000000042"));
+		Assertions.assertNull(inMemoryRepo.findByNumber("42"));
+		Assertions.assertNull(inMemoryRepo.findByNumber("12345678x"));
+	}
+
+	@Test
+	public void accountsAreCopiedExactly() {
+		Account account = inMemoryRepo.findByNumber(ACCOUNT_1);
+		Assertions.assertEquals(0, account.getId());
+		Assertions.assertEquals(new BigDecimal("12.34"), account.getBalance());
+		Assertions.assertEquals(101, inMemoryRepo.countAccounts());
+		Assertions.assertEquals(101, inMemoryRepo.findAll().size());
+	}
+
+	@Test
+	public void replaceExistingAccount() {
+		inMemoryRepo.add(500, "000000042", "New Owner", BigDecimal.ONE);
+
+		Assertions.assertEquals(101, inMemoryRepo.countAccounts());
+		Assertions.assertEquals("New Owner", inMemoryRepo.findByNumber("000000042").getOwner());
+		Assertions.assertTrue(inMemoryRepo.findByIdIn(Arrays.asList(42L)).isEmpty());
+		Assertions.assertEquals(1, inMemoryRepo.findByIdIn(Arrays.asList(500L)).size());
+	}
+
+	@Test
+	public void pagesByOwnerAreInIdOrder() {
+		// Out of id order, and an existing account given a higher id
+		inMemoryRepo.add(-5, "000000200", "Owner -5", BigDecimal.ZERO);
+		inMemoryRepo.add(500, "000000042", "Owner 500", BigDecimal.ZERO);
+
+		List<Long> ids = new ArrayList<Long>();
+		long afterId = Long.MIN_VALUE;
+		List<Account> page;
+
+		do {
+			page = inMemoryRepo.findByOwnerContainingIgnoreCaseAndIdGreaterThan("owner", afterId,
+					PageRequest.of(0, 7));
+
+			for (Account account : page) {
+				ids.add(account.getId());
+				afterId = account.getId();
+			}
+		} while (page.size() == 7);
+
+		List<Long> expected = new ArrayList<Long>();
+		expected.add(-5L);
+
+		for (long id = 1; id <= 100; id++) {
+			if (id != 42)
+				expected.add(id);
+		}
+
+		expected.add(500L);
+		Assertions.assertEquals(expected, ids);
+	}
+
+	@Test
+	public void transferUpdatesRepository() {
+		accountController.transfer(ACCOUNT_1, "000000042", new BigDecimal("2.34"));
+
+		Assertions.assertEquals(new BigDecimal("10.00"), inMemoryRepo.findByNumber(ACCOUNT_1).getBalance());
+		Assertions.assertEquals(new BigDecimal("2.34"), inMemoryRepo.findByNumber("000000042").getBalance());
+	}
+}
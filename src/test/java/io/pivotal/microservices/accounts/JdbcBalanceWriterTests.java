@@ -0,0 +1,68 @@
+package io.pivotal.microservices.accounts;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+
+import io.pivotal.microservices.exceptions.InsufficientFundsException;
+
+public class JdbcBalanceWriterTests {
+
+	@Test
+	public void batchWithUnknownAccountIsNotWritten() {
+		EmbeddedDatabase dataSource = new EmbeddedDatabaseBuilder().generateUniqueName(true)
+				.addScript("classpath:testdb/schema.sql")
+				.addScript("classpath:testdb/data.sql").build();
+
+		try {
+			JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+			jdbcTemplate.update("UPDATE T_ACCOUNT SET balance = 10 WHERE number = '123456001'");
+
+			Map<String, Long> deltas = new LinkedHashMap<String, Long>();
+			deltas.put("123456001", 500L);
+			deltas.put("999999999", 500L);
+
+			Assertions.assertThrows(IllegalStateException.class,
+					() -> new JdbcBalanceWriter(dataSource).write(deltas));
+			Assertions.assertEquals(0, new BigDecimal("10").compareTo(jdbcTemplate.queryForObject(
+					"SELECT balance FROM T_ACCOUNT WHERE number = '123456001'", BigDecimal.class)));
+		} finally {
+			dataSource.shutdown();
+		}
+	}
+
+	@Test
+	public void overdraftIsNotWritten() {
+		EmbeddedDatabase dataSource = new EmbeddedDatabaseBuilder().generateUniqueName(true)
+				.addScript("classpath:testdb/schema.sql")
+				.addScript("classpath:testdb/data.sql").build();
+
+		try {
+			JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+			jdbcTemplate.update("UPDATE T_ACCOUNT SET balance = 10 WHERE number IN ('123456001', '123456002')");
+
+			Map<String, Long> deltas = new LinkedHashMap<String, Long>();
+			deltas.put("123456001", 500L);
+			deltas.put("123456002", -1001L);
+
+			InsufficientFundsException e = Assertions.assertThrows(InsufficientFundsException.class,
+					() -> new JdbcBalanceWriter(dataSource).write(deltas));
+			Assertions.assertEquals("123456002", e.getAccountNumber());
+			Assertions.assertEquals(0, new BigDecimal("10").compareTo(jdbcTemplate.queryForObject(
+					"SELECT balance FROM T_ACCOUNT WHERE number = '123456001'", BigDecimal.class)));
+
+			deltas.put("123456002", -1000L);
+			new JdbcBalanceWriter(dataSource).write(deltas);
+			Assertions.assertEquals(0, BigDecimal.ZERO.compareTo(jdbcTemplate.queryForObject(
+					"SELECT balance FROM T_ACCOUNT WHERE number = '123456002'", BigDecimal.class)));
+		} finally {
+			dataSource.shutdown();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package io.pivotal.microservices.accounts;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JournalingBalanceWriterTests {
+
+	protected static final String ACCOUNT_1 = "123456789";
+	protected static final String ACCOUNT_2 = "123456001";
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void balancesSurviveRestart() throws IOException {
+		InMemoryAccountRepository repository = newRepository();
+		JournalingBalanceWriter journal = open(repository, 4096);
+
+		journal.write(deltas(ACCOUNT_1, 150, ACCOUNT_2, -150));
+		journal.write(deltas(ACCOUNT_1, 25));
+		// No close, as if the process was killed
+
+		repository = newRepository();
+		open(repository, 4096).close();
+
+		Assertions.assertEquals(new BigDecimal("11.75"), repository.findByNumber(ACCOUNT_1).getBalance());
+		Assertions.assertEquals(new BigDecimal("8.50"), repository.findByNumber(ACCOUNT_2).getBalance());
+	}
+
+	@Test
+	public void compactsWhenFull() throws IOException {
+		InMemoryAccountRepository repository = newRepository();
+		JournalingBalanceWriter journal = open(repository, 256);
+
+		// Each record is 28 bytes, so the journal fills up several times
+		for (int i = 0; i < 50; i++)
+			journal.write(deltas(ACCOUNT_1, 1));
+
+		repository = newRepository();
+		open(repository, 256);
+
+		Assertions.assertEquals(new BigDecimal("10.50"), repository.findByNumber(ACCOUNT_1).getBalance());
+	}
+
+	@Test
+	public void compactionDoesNotReadTheRepository() throws IOException {
+		AtomicInteger reads = new AtomicInteger();
+		InMemoryAccountRepository repository = new InMemoryAccountRepository() {
+			@Override
+			public List<Account> findAll() {
+				reads.incrementAndGet();
+				return super.findAll();
+			}
+		};
+		repository.add(0, ACCOUNT_1, "Keri Lee", BigDecimal.TEN);
+		JournalingBalanceWriter journal = open(repository, 4096);
+		reads.set(0);
+
+		// Compact with records in both halves of the journal
+		journal.write(deltas(ACCOUNT_1, 100));
+		journal.compact();
+		journal.write(deltas(ACCOUNT_1, 200));
+		journal.compact();
+		journal.write(deltas(ACCOUNT_1, 300));
+		Assertions.assertEquals(0, reads.get());
+
+		repository = newRepository();
+		open(repository, 4096);
+
+		Assertions.assertEquals(new BigDecimal("16.00"), repository.findByNumber(ACCOUNT_1).getBalance());
+	}
+
+	@Test
+	public void tornRecordIsIgnored() throws IOException {
+		InMemoryAccountRepository repository = newRepository();
+		JournalingBalanceWriter journal = open(repository, 4096);
+
+		journal.write(deltas(ACCOUNT_1, 100));
+		journal.write(deltas(ACCOUNT_1, 200));
+
+		// Corrupt the delta in the second record
+		try (RandomAccessFile file = new RandomAccessFile(
+				directory.resolve(JournalingBalanceWriter.JOURNAL_FILE).toFile(), "rw")) {
+			file.seek(28 + 16);
+			file.writeLong(999);
+		}
+
+		repository = newRepository();
+		open(repository, 4096);
+
+		Assertions.assertEquals(new BigDecimal("11.00"), repository.findByNumber(ACCOUNT_1).getBalance());
+	}
+
+	@Test
+	public void failedTargetWriteIsReversed() throws IOException {
+		InMemoryAccountRepository repository = newRepository();
+		JournalingBalanceWriter journal = new JournalingBalanceWriter(directory, 4096, repository, deltas -> {
+			throw new IllegalStateException("Database down");
+		});
+
+		Assertions.assertThrows(IllegalStateException.class, () -> journal.write(deltas(ACCOUNT_1, 100)));
+
+		repository = newRepository();
+		open(repository, 4096);
+
+		Assertions.assertEquals(new BigDecimal("10.00"), repository.findByNumber(ACCOUNT_1).getBalance());
+	}
+
+	@Test
+	public void failedReversalIsErasedAndStopsWrites() throws IOException {
+		InMemoryAccountRepository repository = newRepository();
+		Path temporarySnapshot = directory.resolve(JournalingBalanceWriter.SNAPSHOT_FILE + ".tmp");
+
+		// Each half holds one record, so the reversal needs a compaction. That
+		// fails, as the snapshot cannot be written where a directory now is.
+		JournalingBalanceWriter journal = new JournalingBalanceWriter(directory, 96, repository, deltas -> {
+			try {
+				Files.createDirectory(temporarySnapshot);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			throw new IllegalStateException("Database down");
+		});
+
+		IllegalStateException e = Assertions.assertThrows(IllegalStateException.class,
+				() -> journal.write(deltas(ACCOUNT_1, 100)));
+		Assertions.assertEquals("Database down", e.getMessage());
+		Assertions.assertEquals(1, e.getSuppressed().length);
+		Assertions.assertThrows(IllegalStateException.class, () -> journal.write(deltas(ACCOUNT_1, 1)));
+		journal.close();
+
+		Files.delete(temporarySnapshot);
+		repository = newRepository();
+		open(repository, 96);
+
+		Assertions.assertEquals(new BigDecimal("10.00"), repository.findByNumber(ACCOUNT_1).getBalance());
+	}
+
+	protected JournalingBalanceWriter open(InMemoryAccountRepository repository, int journalSize)
+			throws IOException {
+		return new JournalingBalanceWriter(directory, journalSize, repository, repository);
+	}
+
+	protected static InMemoryAccountRepository newRepository() {
+		InMemoryAccountRepository repository = new InMemoryAccountRepository();
+		repository.add(0, ACCOUNT_1, "Keri Lee", BigDecimal.TEN);
+		repository.add(1, ACCOUNT_2, "Dollie R. Schnidt", BigDecimal.TEN);
+		return repository;
+	}
+
+	protected static Map<String, Long> deltas(String accountNumber, long cents) {
+		return Collections.singletonMap(accountNumber, cents);
+	}
+
+	protected static Map<String, Long> deltas(String accountNumber1, long cents1, String accountNumber2,
+			long cents2) {
+		Map<String, Long> deltas = new LinkedHashMap<String, Long>();
+		deltas.put(accountNumber1, cents1);
+		deltas.put(accountNumber2, cents2);
+		return deltas;
+	}
+}
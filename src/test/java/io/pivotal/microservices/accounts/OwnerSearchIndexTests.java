@@ -0,0 +1,152 @@
+package io.pivotal.microservices.accounts;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class OwnerSearchIndexTests {
+
+	protected Account keri = new Account("123456789", "Keri Lee");
+	protected Account dollie = new Account("123456001", "Dollie R. Schnidt");
+	protected Account cornelia = new Account("123456002", "Cornelia J. LeClerc");
+
+	protected OwnerSearchIndex ownerIndex;
+
+	@BeforeEach
+	public void setup() {
+		ownerIndex = new OwnerSearchIndex(2);
+		ownerIndex.rebuild(Arrays.asList(keri, dollie, cornelia));
+	}
+
+	@Test
+	public void matchesIgnoringCase() {
+		Assertions.assertEquals(Arrays.asList(keri.getId()),
+				ownerIndex.search("keri"));
+		Assertions.assertEquals(Arrays.asList(dollie.getId()),
+				ownerIndex.search("lIE"));
+	}
+
+	@Test
+	public void matchesSubstringNotJustTrigrams() {
+		// Both trigrams of "clec" occur in "LeClerc", but not the whole string
+		Assertions.assertEquals(Arrays.asList(cornelia.getId()),
+				ownerIndex.search("lecl"));
+		Assertions.assertTrue(ownerIndex.search("clec").isEmpty());
+	}
+
+	@Test
+	public void rebuiltFromSink() {
+		ownerIndex.rebuild(sink -> {
+			sink.add(7, 0, "Keri Lee", "KERI LEE", 0);
+			sink.add(8, 0, "Fred Smith", null, 0);
+		});
+
+		Assertions.assertEquals(Arrays.asList(7L), ownerIndex.search("keri"));
+		Assertions.assertEquals(Arrays.asList(8L), ownerIndex.search("smith"));
+		Assertions.assertTrue(ownerIndex.search("lecl").isEmpty());
+	}
+
+	@Test
+	public void noMatch() {
+		Assertions.assertTrue(ownerIndex.search("Fred Smith").isEmpty());
+	}
+
+	@Test
+	public void shortOrBroadSearchesAreNotAnswered() {
+		Assertions.assertNull(ownerIndex.search("le"));
+		Assertions.assertNull(ownerIndex.search(". "));
+	}
+
+	@Test
+	public void pagesAreInIdOrder() {
+		ownerIndex = new OwnerSearchIndex(100);
+
+		// Index in reverse order, to check results are sorted
+		for (int i = 20; i > 0; i--)
+			ownerIndex.put(new Account(String.format("%09d", i), "Owner " + i));
+
+		List<Long> first = ownerIndex.search("owner", -1, 3);
+		Assertions.assertEquals(3, first.size());
+		Assertions.assertTrue(first.get(0) < first.get(1) && first.get(1) < first.get(2));
+
+		List<Long> next = ownerIndex.search("owner", first.get(2), 100);
+		Assertions.assertEquals(17, next.size());
+		Assertions.assertTrue(next.get(0) > first.get(2));
+		Assertions.assertNull(ownerIndex.search("ow", -1, 3));
+	}
+
+	@Test
+	public void updatesAreVisible() {
+		Account fred = new Account("123456003", "Fred Smith");
+		ownerIndex.put(fred);
+		Assertions.assertEquals(Arrays.asList(fred.getId()),
+				ownerIndex.search("fred"));
+
+		fred.setOwner("Frederick Smith");
+		ownerIndex.put(fred);
+		List<Long> ids = ownerIndex.search("frederick");
+		Assertions.assertEquals(Arrays.asList(fred.getId()), ids);
+
+		ownerIndex.remove(fred.getId());
+		Assertions.assertTrue(ownerIndex.search("fred").isEmpty());
+		Assertions.assertEquals(3, ownerIndex.size());
+	}
+
+	@Test
+	public void broadSearchesAreLeftToTheRepository() {
+		for (int i = 1; i <= 5; i++)
+			ownerIndex.put(new Account(String.format("%09d", i), "Owner " + i));
+
+		Account third = new Account("000000003", "Owner 3x");
+		ownerIndex.put(third);
+
+		Assertions.assertNull(ownerIndex.search("owner"));
+		Assertions.assertEquals(Arrays.asList(third.getId()),
+				ownerIndex.search("owner 3x"));
+	}
+
+	@Test
+	public void updatesDoNotGrowTheIndex() {
+		Account fred = new Account("123456003", "Fred Smith");
+		ownerIndex.put(fred);
+		int postings = ownerIndex.postingsHeld();
+
+		for (int i = 0; i < 1000; i++) {
+			fred.setOwner(i % 2 == 0 ? "Frederick Smith" : "Fred Smith");
+			ownerIndex.put(fred);
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			Account account = new Account(String.format("%09d", i), "Temporary " + i);
+			ownerIndex.put(account);
+			ownerIndex.remove(account.getId());
+		}
+
+		Assertions.assertEquals(4, ownerIndex.size());
+		Assertions.assertTrue(ownerIndex.slotsUsed() <= 8, "Slots " + ownerIndex.slotsUsed());
+		Assertions.assertTrue(ownerIndex.postingsHeld() <= postings * 3, "Postings " + ownerIndex.postingsHeld());
+		Assertions.assertEquals(Arrays.asList(fred.getId()), ownerIndex.search("smith"));
+		Assertions.assertEquals(Arrays.asList(keri.getId()), ownerIndex.search("keri"));
+	}
+
+	@Test
+	public void renamingBackDoesNotDuplicateMatches() {
+		Account fred = new Account("123456003", "Fred Smith");
+		ownerIndex.put(fred);
+		int postings = ownerIndex.postingsHeld();
+
+		fred.setOwner("Frederick Smith");
+		ownerIndex.put(fred);
+		fred.setOwner("Fred Smith");
+		ownerIndex.put(fred);
+
+		Assertions.assertEquals(Arrays.asList(fred.getId()), ownerIndex.search("ed s"));
+		Assertions.assertEquals(Arrays.asList(fred.getId()), ownerIndex.search("ed s", 0, 10));
+
+		// Only the postings for the trigrams of "Frederick Smith" alone are added
+		Assertions.assertEquals(postings + 7, ownerIndex.postingsHeld());
+	}
+}
@@ -0,0 +1,56 @@
+package io.pivotal.microservices.logging;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+public class RequestLogTests {
+
+	private final Logger logger = Logger.getLogger(RequestLogTests.class.getName());
+
+	@Test
+	public void logsEveryRequestByDefault() {
+		RequestLog requestLog = new RequestLog(new MockEnvironment());
+
+		Assertions.assertEquals(1.0, requestLog.rate("byNumber"));
+		Assertions.assertTrue(requestLog.sample(logger, "byNumber"));
+		Assertions.assertTrue(new RequestLog(null).sample(logger, "byNumber"));
+	}
+
+	@Test
+	public void samplesEachEndpointAtItsOwnRate() {
+		MockEnvironment environment = new MockEnvironment()
+				.withProperty("request-log.sample-rate.default", "0.5")
+				.withProperty("request-log.sample-rate.byOwner", "0");
+		RequestLog requestLog = new RequestLog(environment);
+
+		Assertions.assertEquals(0.5, requestLog.rate("byNumber"));
+		Assertions.assertEquals(0.0, requestLog.rate("byOwner"));
+
+		int sampled = 0;
+
+		for (int i = 0; i < 10000; i++) {
+			Assertions.assertFalse(requestLog.sample(logger, "byOwner"));
+
+			if (requestLog.sample(logger, "byNumber"))
+				sampled++;
+		}
+
+		Assertions.assertTrue(sampled > 4000 && sampled < 6000, "Sampled " + sampled);
+	}
+
+	@Test
+	public void skipsRequestsWhenInfoIsDisabled() {
+		Level level = logger.getLevel();
+		logger.setLevel(Level.WARNING);
+
+		try {
+			Assertions.assertFalse(new RequestLog(null).sample(logger, "byNumber"));
+		} finally {
+			logger.setLevel(level);
+		}
+	}
+}
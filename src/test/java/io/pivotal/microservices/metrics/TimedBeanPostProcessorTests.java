@@ -0,0 +1,120 @@
+package io.pivotal.microservices.metrics;
+
+import java.math.BigDecimal;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.pivotal.microservices.accounts.AccountRepository;
+import io.pivotal.microservices.accounts.AccountsController;
+import io.pivotal.microservices.accounts.InMemoryAccountRepository;
+import io.pivotal.microservices.exceptions.AccountNotFoundException;
+
+public class TimedBeanPostProcessorTests {
+
+	@Test
+	public void timesEachCallByOperationAndOutcome() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+		beanFactory.registerSingleton("meterRegistry", registry);
+
+		InMemoryAccountRepository repository = new InMemoryAccountRepository();
+		repository.add(1, "123456789", "Keri Lee", new BigDecimal("12.34"));
+
+		Object timedRepository = new TimedBeanPostProcessor(AccountRepository.class, "accounts.repository", null,
+				"query", beanFactory.getBeanProvider(MeterRegistry.class))
+						.postProcessAfterInitialization(repository, "accountRepository");
+
+		// Still usable as its own class, not just as the interface
+		Assertions.assertTrue(timedRepository instanceof InMemoryAccountRepository);
+
+		Object timedController = new TimedBeanPostProcessor(AccountsController.class, "accounts.controller", null,
+				"endpoint", beanFactory.getBeanProvider(MeterRegistry.class))
+						.postProcessAfterInitialization(new AccountsController((AccountRepository) timedRepository),
+								"accountsController");
+		AccountsController controller = (AccountsController) timedController;
+
+		controller.byNumber("123456789");
+		controller.byNumber("123456789");
+		Assertions.assertThrows(AccountNotFoundException.class, () -> controller.byNumber("999999999"));
+
+		Assertions.assertEquals(2, timer(registry, "accounts.controller", "endpoint", "byNumber", "found").count());
+		Assertions.assertEquals(1, timer(registry, "accounts.controller", "endpoint", "byNumber", "not_found").count());
+		Assertions.assertEquals(2, timer(registry, "accounts.repository", "query", "findByNumber", "found").count());
+		Assertions.assertEquals(1,
+				timer(registry, "accounts.repository", "query", "findByNumber", "not_found").count());
+	}
+
+	@Test
+	public void notModifiedIsNotNotFound() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+		beanFactory.registerSingleton("meterRegistry", registry);
+
+		InMemoryAccountRepository repository = new InMemoryAccountRepository();
+		repository.add(1, "123456789", "Keri Lee", new BigDecimal("12.34"));
+
+		AccountsController controller = (AccountsController) new TimedBeanPostProcessor(AccountsController.class,
+				"accounts.controller", null, "endpoint", beanFactory.getBeanProvider(MeterRegistry.class))
+						.postProcessAfterInitialization(new AccountsController(repository), "accountsController");
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		try {
+			Assertions.assertNotNull(controller.byNumber("123456789", request(null, response)));
+
+			// Ask again, only if changed
+			String tag = response.getHeader(HttpHeaders.ETAG);
+			response = new MockHttpServletResponse();
+			Assertions.assertNull(controller.byNumber("123456789", request(tag, response)));
+		} finally {
+			RequestContextHolder.resetRequestAttributes();
+		}
+
+		Assertions.assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+		Assertions.assertEquals(1, timer(registry, "accounts.controller", "endpoint", "byNumber", "found").count());
+		Assertions.assertEquals(1,
+				timer(registry, "accounts.controller", "endpoint", "byNumber", "not_modified").count());
+		Assertions.assertNull(registry.find("accounts.controller").tag(LatencyTimers.OUTCOME_TAG, "not_found")
+				.timer());
+	}
+
+	/**
+	 * A GET, conditional if there is a tag, made current as Spring MVC would.
+	 */
+	private static ServletWebRequest request(String ifNoneMatch, MockHttpServletResponse response) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/accounts/123456789");
+
+		if (ifNoneMatch != null)
+			request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+
+		ServletWebRequest webRequest = new ServletWebRequest(request, response);
+		RequestContextHolder.setRequestAttributes(webRequest);
+		return webRequest;
+	}
+
+	@Test
+	public void recordsNothingWithoutRegistry() {
+		LatencyTimers timers = new LatencyTimers(null, "test", null, "call");
+
+		Assertions.assertEquals("x", timers.record("call", () -> "x"));
+		Assertions.assertThrows(IllegalStateException.class, () -> timers.record("call", () -> {
+			throw new IllegalStateException();
+		}));
+	}
+
+	private static Timer timer(SimpleMeterRegistry registry, String name, String operationTag, String operation,
+			String outcome) {
+		return registry.get(name).tag(operationTag, operation).tag(LatencyTimers.OUTCOME_TAG, outcome).timer();
+	}
+}
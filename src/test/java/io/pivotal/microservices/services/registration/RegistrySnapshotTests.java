@@ -0,0 +1,181 @@
+package io.pivotal.microservices.services.registration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cloud.netflix.eureka.server.CloudJacksonJson;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.StreamUtils;
+
+import com.netflix.appinfo.DataCenterInfo;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.appinfo.LeaseInfo;
+import com.netflix.appinfo.MyDataCenterInfo;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import com.netflix.eureka.registry.PeerAwareInstanceRegistry;
+
+/**
+ * A registration server restarted with a snapshot answers with the instances
+ * registered before, straight away.
+ */
+public class RegistrySnapshotTests {
+
+    public static final String APP = "ACCOUNTS-SERVICE";
+
+    @TempDir
+    Path directory;
+
+    protected int port;
+
+    protected static InstanceInfo instance(String id, long renewedAt) {
+        return InstanceInfo.Builder.newBuilder().setInstanceId(id).setAppName(APP).setHostName("localhost")
+                .setIPAddr("127.0.0.1").setPort(2222).setStatus(InstanceInfo.InstanceStatus.UP)
+                .setDataCenterInfo(new MyDataCenterInfo(DataCenterInfo.Name.MyOwn))
+                .setLeaseInfo(LeaseInfo.Builder.newBuilder().setRenewalTimestamp(renewedAt).setDurationInSecs(90)
+                        .setRenewalIntervalInSecs(1).build())
+                .build();
+    }
+
+    @Test
+    public void restartsWithRegisteredInstancesUnderTraffic() throws Exception {
+        InstanceInfo instance = instance("accounts-service:1", System.currentTimeMillis());
+        ConfigurableApplicationContext server = start();
+        server.getBean(PeerAwareInstanceRegistry.class).register(instance, false);
+
+        // A client renewing its lease and another fetching the instances,
+        // as fast as they can, until stopped
+        String appUrl = "http://localhost:" + port + "/eureka/apps/" + APP;
+        String renewUrl = appUrl + "/" + instance.getInstanceId() + "?status=UP&lastDirtyTimestamp="
+                + instance.getLastDirtyTimestamp();
+        AtomicBoolean restarted = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger found = new AtomicInteger();
+        AtomicInteger missing = new AtomicInteger();
+        AtomicInteger renewed = new AtomicInteger();
+        AtomicInteger unknown = new AtomicInteger();
+
+        Thread traffic = new Thread(() -> {
+            while (!stop.get()) {
+                boolean afterRestart = restarted.get();
+                int renewal = request("PUT", renewUrl);
+                int fetch = request("GET", appUrl);
+
+                if (afterRestart && renewal == 200)
+                    renewed.incrementAndGet();
+                else if (afterRestart && renewal == 404)
+                    unknown.incrementAndGet();
+
+                if (afterRestart && fetch == 200)
+                    found.incrementAndGet();
+                else if (afterRestart && fetch == 404)
+                    missing.incrementAndGet();
+            }
+        });
+        traffic.start();
+
+        try {
+            Thread.sleep(500);
+            server.close();
+            restarted.set(true);
+            server = start();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (found.get() < 50 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+        } finally {
+            stop.set(true);
+            traffic.join();
+            server.close();
+        }
+
+        Assertions.assertTrue(found.get() >= 50, "Fetched " + found.get() + " times");
+        Assertions.assertEquals(0, missing.get(), "Instance missing after restart");
+        Assertions.assertTrue(renewed.get() > 0, "Renewed " + renewed.get() + " times");
+        Assertions.assertEquals(0, unknown.get(), "Lease unknown after restart");
+    }
+
+    @Test
+    public void expiredLeasesAreNotRestored() throws Exception {
+        long now = System.currentTimeMillis();
+        Application application = new Application(APP);
+        application.addInstance(instance("accounts-service:1", now));
+        application.addInstance(instance("accounts-service:2", now - TimeUnit.SECONDS.toMillis(91)));
+
+        Applications applications = new Applications();
+        applications.addApplication(application);
+
+        try (OutputStream out = Files.newOutputStream(directory.resolve("registry.json"))) {
+            new CloudJacksonJson().encode(applications, out);
+        }
+
+        try (ConfigurableApplicationContext server = start()) {
+            PeerAwareInstanceRegistry registry = server.getBean(PeerAwareInstanceRegistry.class);
+
+            Assertions.assertNotNull(registry.getInstanceByAppAndId(APP, "accounts-service:1"));
+            Assertions.assertNull(registry.getInstanceByAppAndId(APP, "accounts-service:2"));
+        }
+    }
+
+    /**
+     * Start a registration server, on the same port each time, using a
+     * snapshot in {@link #directory}.
+     */
+    protected ConfigurableApplicationContext start() throws IOException {
+        if (port == 0) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+        }
+
+        return new SpringApplicationBuilder(RegistrationServer.class).run("--spring.config.name=registration-server",
+                "--server.port=" + port, "--spring.main.banner-mode=off",
+                "--registry.snapshot.file=" + directory.resolve("registry.json"),
+                "--registry.snapshot.interval-seconds=3600");
+    }
+
+    /**
+     * @return The response status, or -1 if the server is not running.
+     */
+    protected static int request(String method, String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Accept", "application/json");
+
+            if (method.equals("PUT")) {
+                connection.setDoOutput(true);
+                connection.getOutputStream().close();
+            }
+
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+
+            if (body != null) {
+                String text = StreamUtils.copyToString(body, StandardCharsets.UTF_8);
+                body.close();
+
+                if (status == 200 && method.equals("GET") && !text.contains("accounts-service:1"))
+                    return 404;
+            }
+
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import io.pivotal.microservices.exceptions.AccountsUnavailableException;
+
+public class CircuitBreakerTests {
+
+    protected AtomicLong now = new AtomicLong();
+    protected AccountsClientProperties.CircuitBreaker settings = new AccountsClientProperties.CircuitBreaker();
+
+    @Test
+    public void opensAfterFailuresAndFailsFast() {
+        CircuitBreaker breaker = newBreaker();
+        AtomicInteger calls = new AtomicInteger();
+
+        for (int i = 0; i < settings.getMinimumCalls(); i++)
+            Assertions.assertThrows(ResourceAccessException.class, () -> breaker.call(() -> fail(calls)));
+
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assertions.assertThrows(AccountsUnavailableException.class, () -> breaker.call(() -> fail(calls)));
+        Assertions.assertEquals(settings.getMinimumCalls(), calls.get());
+    }
+
+    @Test
+    public void staysClosedBelowThreshold() {
+        CircuitBreaker breaker = newBreaker();
+        AtomicInteger calls = new AtomicInteger();
+
+        for (int i = 0; i < 40; i++) {
+            if (i % 3 == 0)
+                Assertions.assertThrows(ResourceAccessException.class, () -> breaker.call(() -> fail(calls)));
+            else
+                breaker.call(calls::incrementAndGet);
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void notFoundIsNotAFailure() {
+        CircuitBreaker breaker = newBreaker();
+
+        for (int i = 0; i < 2 * settings.getWindowSize(); i++)
+            Assertions.assertThrows(HttpClientErrorException.class, () -> breaker.call(() -> {
+                throw new HttpClientErrorException(HttpStatus.NOT_FOUND);
+            }));
+
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void closesAfterSuccessfulTrialCalls() {
+        CircuitBreaker breaker = open();
+
+        now.addAndGet(settings.getOpenDuration().toNanos());
+
+        for (int i = 0; i < settings.getHalfOpenCalls(); i++) {
+            Assertions.assertEquals("ok", breaker.call(() -> "ok"));
+        }
+
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensIfTrialCallFails() {
+        CircuitBreaker breaker = open();
+
+        now.addAndGet(settings.getOpenDuration().toNanos());
+        breaker.call(() -> "ok");
+        Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        Assertions.assertThrows(ResourceAccessException.class, () -> breaker.call(() -> fail(new AtomicInteger())));
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assertions.assertThrows(AccountsUnavailableException.class, () -> breaker.call(() -> "ok"));
+    }
+
+    @Test
+    public void fullBulkheadRejectsCall() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(1, Duration.ZERO);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            executor.submit(() -> bulkhead.call(() -> {
+                started.countDown();
+                await(release);
+                return null;
+            }));
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            Assertions.assertThrows(AccountsUnavailableException.class, () -> bulkhead.call(() -> "ok"));
+            Assertions.assertEquals(1, bulkhead.getActiveCalls());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assertions.assertEquals("ok", bulkhead.call(() -> "ok"));
+    }
+
+    protected CircuitBreaker newBreaker() {
+        return new CircuitBreaker(settings, now::get);
+    }
+
+    protected CircuitBreaker open() {
+        CircuitBreaker breaker = newBreaker();
+
+        for (int i = 0; i < settings.getMinimumCalls(); i++)
+            Assertions.assertThrows(ResourceAccessException.class, () -> breaker.call(() -> fail(new AtomicInteger())));
+
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    protected Object fail(AtomicInteger calls) {
+        calls.incrementAndGet();
+        throw new ResourceAccessException("Connection refused");
+    }
+
+    protected void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
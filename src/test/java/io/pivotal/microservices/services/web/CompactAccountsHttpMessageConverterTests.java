@@ -0,0 +1,97 @@
+package io.pivotal.microservices.services.web;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import io.pivotal.microservices.accounts.AccountsServiceMapping;
+import io.pivotal.microservices.codec.CompactAccountsHttpMessageConverter;
+
+/**
+ * Accounts written by the accounts service are read back by the web service,
+ * and the other way round.
+ */
+public class CompactAccountsHttpMessageConverterTests {
+
+    protected CompactAccountsHttpMessageConverter<io.pivotal.microservices.accounts.Account, io.pivotal.microservices.accounts.AccountBatch> accountsService = new CompactAccountsHttpMessageConverter<>(
+            new AccountsServiceMapping(), null);
+
+    protected CompactAccountsHttpMessageConverter<Account, AccountBatch> webService = new CompactAccountsHttpMessageConverter<>(
+            new WebAccountsMapping(), null);
+
+    @Test
+    public void readsAccountsWritten() throws Exception {
+        io.pivotal.microservices.accounts.Account written = new io.pivotal.microservices.accounts.Account("123456789",
+                "Keri Lee");
+        written.deposit(new BigDecimal("12345678901234567890.5"));
+
+        Account account = (Account) roundTrip(accountsService, webService, written,
+                io.pivotal.microservices.accounts.Account.class, Account.class);
+
+        Assertions.assertEquals(written.getId(), account.getId());
+        Assertions.assertEquals("123456789", account.getNumber());
+        Assertions.assertEquals("Keri Lee", account.getOwner());
+        Assertions.assertEquals(new BigDecimal("12345678901234567890.50"), account.getBalance());
+
+        List<io.pivotal.microservices.accounts.Account> list = Arrays.asList(written,
+                new io.pivotal.microservices.accounts.Account("987654321", "Zoë"));
+        Account[] accounts = (Account[]) roundTrip(accountsService, webService, list,
+                new ParameterizedTypeReference<List<io.pivotal.microservices.accounts.Account>>() {
+                }.getType(), Account[].class);
+
+        Assertions.assertEquals(2, accounts.length);
+        Assertions.assertEquals("Zoë", accounts[1].getOwner());
+        Assertions.assertEquals(BigDecimal.ZERO.setScale(2), accounts[1].getBalance());
+    }
+
+    @Test
+    public void readsBatchesWrittenByEitherService() throws Exception {
+        AccountBatch batch = new WebAccountsMapping().newBatch(
+                Arrays.asList(new WebAccountsMapping().newAccount(7, "123456789", "Keri Lee", new BigDecimal("1.50"))),
+                Arrays.asList("111111111"));
+
+        io.pivotal.microservices.accounts.AccountBatch read = (io.pivotal.microservices.accounts.AccountBatch) roundTrip(
+                webService, accountsService, batch, AccountBatch.class,
+                io.pivotal.microservices.accounts.AccountBatch.class);
+
+        Assertions.assertEquals(7, read.getAccounts().get(0).getId());
+        Assertions.assertEquals(new BigDecimal("1.50"), read.getAccounts().get(0).getBalance());
+        Assertions.assertEquals(Arrays.asList("111111111"), read.getMissing());
+
+        AccountBatch back = (AccountBatch) roundTrip(accountsService, webService, read,
+                io.pivotal.microservices.accounts.AccountBatch.class, AccountBatch.class);
+
+        Assertions.assertEquals(batch.toString(), back.toString());
+        Assertions.assertEquals("Keri Lee", back.getAccounts().get(0).getOwner());
+    }
+
+    @Test
+    public void onlyUsedWhenAskedFor() {
+        Assertions.assertTrue(webService.canRead(Account.class, CompactAccountsHttpMessageConverter.MEDIA_TYPE));
+        Assertions.assertFalse(webService.canRead(Account.class, MediaType.APPLICATION_JSON));
+        Assertions.assertFalse(webService.canRead(io.pivotal.microservices.accounts.Account.class,
+                CompactAccountsHttpMessageConverter.MEDIA_TYPE));
+        Assertions.assertFalse(accountsService.canWrite(String.class, CompactAccountsHttpMessageConverter.MEDIA_TYPE));
+        Assertions.assertFalse(accountsService.canWrite(Account.class, CompactAccountsHttpMessageConverter.MEDIA_TYPE));
+    }
+
+    protected Object roundTrip(CompactAccountsHttpMessageConverter<?, ?> writer,
+            CompactAccountsHttpMessageConverter<?, ?> reader, Object written, java.lang.reflect.Type writtenType,
+            Class<?> readType) throws Exception {
+        Assertions.assertTrue(writer.canWrite(writtenType, written.getClass(), null));
+        Assertions.assertTrue(reader.canRead(readType, null, null));
+
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+        writer.write(written, writtenType, CompactAccountsHttpMessageConverter.MEDIA_TYPE, output);
+
+        Assertions.assertEquals(CompactAccountsHttpMessageConverter.MEDIA_TYPE, output.getHeaders().getContentType());
+        return reader.read(readType, null, new MockHttpInputMessage(output.getBodyAsBytes()));
+    }
+}
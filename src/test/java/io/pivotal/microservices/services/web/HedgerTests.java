@@ -0,0 +1,221 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Flux;
+
+public class HedgerTests {
+
+    protected ExecutorService executor = Executors.newCachedThreadPool();
+    protected ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    protected SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    protected AccountsClientProperties.Hedging settings = new AccountsClientProperties.Hedging();
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void slowCallIsAnsweredByHedge() {
+        settings.setDelay(Duration.ofMillis(20));
+        Hedger hedger = newHedger();
+        AtomicInteger attempts = new AtomicInteger();
+
+        long start = System.nanoTime();
+        String result = hedger.call(() -> {
+            // The first attempt is stuck
+            if (attempts.incrementAndGet() == 1)
+                sleep(2000);
+            return "attempt " + attempts.get();
+        });
+
+        Assertions.assertEquals("attempt 2", result);
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+        Assertions.assertEquals(1, count("hedge_won"));
+        Assertions.assertEquals(0, count("primary_won"));
+    }
+
+    @Test
+    public void losingAttemptIsCancelled() throws InterruptedException {
+        settings.setDelay(Duration.ofMillis(20));
+        Hedger hedger = newHedger();
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch aborted = new CountDownLatch(1);
+
+        String result = hedger.call(() -> {
+            int attempt = attempts.incrementAndGet();
+
+            // The hedge is stuck, its request must be aborted
+            if (attempt == 2) {
+                HedgeAttempt.current().onCancel(aborted::countDown);
+                sleep(2000);
+            } else {
+                sleep(100);
+            }
+
+            return "attempt " + attempt;
+        });
+
+        Assertions.assertEquals("attempt 1", result);
+        Assertions.assertTrue(aborted.await(1, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, count("primary_won"));
+        Assertions.assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void fastCallIsNotHedged() {
+        settings.setDelay(Duration.ofMillis(500));
+        Hedger hedger = newHedger();
+        AtomicInteger attempts = new AtomicInteger();
+        Thread caller = Thread.currentThread();
+
+        Assertions.assertEquals(1, (int) hedger.call(() -> {
+            Assertions.assertSame(caller, Thread.currentThread(), "Call made on the caller's thread");
+            return attempts.incrementAndGet();
+        }));
+        Assertions.assertEquals(1, attempts.get());
+        Assertions.assertEquals(1, count("not_needed"));
+    }
+
+    @Test
+    public void failsOnceEveryAttemptHasFailed() {
+        settings.setDelay(Duration.ofMillis(5));
+        Hedger hedger = newHedger();
+        AtomicInteger attempts = new AtomicInteger();
+
+        IllegalStateException e = Assertions.assertThrows(IllegalStateException.class, () -> hedger.call(() -> {
+            int attempt = attempts.incrementAndGet();
+            sleep(attempt == 1 ? 50 : 100);
+            throw new IllegalStateException("attempt " + attempt);
+        }));
+
+        Assertions.assertEquals("attempt 2", e.getMessage());
+        Assertions.assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void budgetLimitsHedges() {
+        settings.setDelay(Duration.ofMillis(1));
+        settings.setBudget(0);
+        Hedger hedger = newHedger();
+        AtomicInteger attempts = new AtomicInteger();
+        int calls = (int) Hedger.MAX_BUDGET + 5;
+
+        for (int i = 0; i < calls; i++) {
+            hedger.call(() -> {
+                attempts.incrementAndGet();
+                sleep(20);
+                return null;
+            });
+        }
+
+        Assertions.assertEquals(Hedger.MAX_BUDGET, count("hedge_won") + count("primary_won"));
+        Assertions.assertEquals(5, count("over_budget"));
+        Assertions.assertEquals(calls + Hedger.MAX_BUDGET, attempts.get());
+    }
+
+    @Test
+    public void adaptiveDelayFollowsResponseTimes() {
+        Hedger hedger = newHedger();
+        Assertions.assertTrue(hedger.delayNanos() < 0, "No delay until response times are known");
+
+        for (int i = 0; i < Hedger.MIN_SAMPLES; i++)
+            hedger.call(() -> "fast");
+
+        Assertions.assertEquals(settings.getMinDelay().toNanos(), hedger.delayNanos());
+    }
+
+    @Test
+    public void adaptiveDelayIsPercentileOfSamples() {
+        Hedger hedger = newHedger();
+
+        // 1ms to 64ms: the 95th percentile is the 61st of them
+        for (int i = 1; i <= Hedger.MIN_SAMPLES; i++)
+            hedger.record(TimeUnit.MILLISECONDS.toNanos(i));
+
+        Assertions.assertEquals(TimeUnit.MILLISECONDS.toNanos(61), hedger.delayNanos());
+    }
+
+    @Test
+    public void fullBulkheadStopsHedges() {
+        settings.setDelay(Duration.ofMillis(1));
+        Bulkhead bulkhead = new Bulkhead(1, Duration.ZERO);
+        Hedger hedger = new Hedger("test", executor, timer, settings, bulkhead);
+        hedger.bindTo(registry);
+        AtomicInteger attempts = new AtomicInteger();
+
+        // The call itself holds the only permit
+        bulkhead.call(() -> hedger.call(() -> {
+            attempts.incrementAndGet();
+            sleep(50);
+            return null;
+        }));
+
+        Assertions.assertEquals(1, attempts.get());
+        Assertions.assertEquals(1, count("over_budget"));
+        Assertions.assertEquals(0, bulkhead.getActiveCalls());
+    }
+
+    @Test
+    public void hedgeAvoidsFirstInstance() {
+        ServiceInstance first = new DefaultServiceInstance("1", "ACCOUNTS-SERVICE", "one", 80, false);
+        ServiceInstance second = new DefaultServiceInstance("2", "ACCOUNTS-SERVICE", "two", 80, false);
+        List<ServiceInstance> instances = Arrays.asList(first, second);
+
+        HedgingServiceInstanceListSupplier supplier = new HedgingServiceInstanceListSupplier(
+                new ServiceInstanceListSupplier() {
+
+                    @Override
+                    public String getServiceId() {
+                        return "ACCOUNTS-SERVICE";
+                    }
+
+                    @Override
+                    public Flux<List<ServiceInstance>> get() {
+                        return Flux.just(instances);
+                    }
+                });
+
+        Assertions.assertEquals(instances, supplier.get().blockFirst());
+        Assertions.assertEquals(Arrays.asList(second),
+                new HedgeAttempt(first).run(() -> supplier.get().blockFirst()));
+        Assertions.assertEquals(Arrays.asList(first),
+                new HedgeAttempt(second).run(() -> supplier.get().blockFirst()));
+    }
+
+    protected Hedger newHedger() {
+        Hedger hedger = new Hedger("test", executor, timer, settings);
+        hedger.bindTo(registry);
+        return hedger;
+    }
+
+    protected long count(String result) {
+        return Math.round(registry.get("accounts.client.hedging").tag("result", result).functionCounter().count());
+    }
+
+    protected static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
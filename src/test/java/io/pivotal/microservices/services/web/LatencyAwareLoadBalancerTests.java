@@ -0,0 +1,244 @@
+package io.pivotal.microservices.services.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.loadbalancer.CompletionContext;
+import org.springframework.cloud.client.loadbalancer.DefaultRequest;
+import org.springframework.cloud.client.loadbalancer.DefaultRequestContext;
+import org.springframework.cloud.client.loadbalancer.DefaultResponse;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.Response;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpServer;
+
+import reactor.core.publisher.Flux;
+
+public class LatencyAwareLoadBalancerTests {
+
+    protected static final String SERVICE_ID = "ACCOUNTS-SERVICE";
+
+    protected static final long SLOW_MILLIS = 20;
+
+    /** So the test servers answer without waiting to fill a packet. */
+    protected static final String NODELAY = "sun.net.httpserver.nodelay";
+
+    protected HttpServer fast;
+    protected HttpServer slow;
+    protected AtomicInteger fastRequests = new AtomicInteger();
+    protected AtomicInteger slowRequests = new AtomicInteger();
+
+    /** Value of the nodelay property before a test set it, restored after. */
+    protected String nodelay;
+
+    @AfterEach
+    public void stopServers() {
+        if (fast != null)
+            fast.stop(0);
+        if (slow != null)
+            slow.stop(0);
+    }
+
+    @AfterEach
+    public void restoreNodelay() {
+        if (nodelay == null)
+            System.clearProperty(NODELAY);
+        else
+            System.setProperty(NODELAY, nodelay);
+    }
+
+    @Test
+    public void movesTrafficAwayFromSlowInstance() throws Exception {
+        nodelay = System.setProperty(NODELAY, "true");
+        fast = startServer(fastRequests, 0);
+        slow = startServer(slowRequests, SLOW_MILLIS);
+
+        LatencyAwareLoadBalancer loadBalancer = newLoadBalancer(instance(fast), instance(slow));
+        RestTemplate restTemplate = new RestTemplate();
+
+        // The first requests are slow, and would be remembered as the peak
+        for (int i = 0; i < 10; i++) {
+            restTemplate.getForObject(instance(fast).getUri(), String.class);
+            restTemplate.getForObject(instance(slow).getUri(), String.class);
+        }
+
+        fastRequests.set(0);
+        slowRequests.set(0);
+        int requests = 300;
+
+        for (int i = 0; i < requests; i++) {
+            // What the @LoadBalanced RestTemplate does for each request
+            Request<Object> request = new DefaultRequest<Object>(new DefaultRequestContext());
+            Response<ServiceInstance> response = loadBalancer.choose(request).block();
+            loadBalancer.onStartRequest(request, response);
+            restTemplate.getForObject(response.getServer().getUri(), String.class);
+            loadBalancer.onComplete(new CompletionContext<Object, ServiceInstance, Object>(
+                    CompletionContext.Status.SUCCESS, request, response));
+        }
+
+        // Round-robin would send half the requests to the slow instance
+        Assertions.assertEquals(requests, fastRequests.get() + slowRequests.get());
+        Assertions.assertTrue(slowRequests.get() < requests / 10, "Slow instance got " + slowRequests.get());
+        Assertions.assertTrue(loadBalancer.cost(instance(slow)) > loadBalancer.cost(instance(fast)));
+    }
+
+    @Test
+    public void prefersInstanceWithFewerRequestsInFlight() {
+        ServiceInstance busy = new DefaultServiceInstance("busy", SERVICE_ID, "busy", 80, false);
+        ServiceInstance idle = new DefaultServiceInstance("idle", SERVICE_ID, "idle", 80, false);
+        LatencyAwareLoadBalancer loadBalancer = newLoadBalancer(busy, idle);
+
+        for (int i = 0; i < 3; i++)
+            loadBalancer.onStartRequest(new DefaultRequest<Object>(new DefaultRequestContext()),
+                    new DefaultResponse(busy));
+
+        for (int i = 0; i < 20; i++)
+            Assertions.assertEquals("idle", loadBalancer.choose((Request<?>) null).block().getServer().getHost());
+    }
+
+    @Test
+    public void forgetsInstancesThatHaveGone() {
+        ServiceInstance staying = new DefaultServiceInstance("staying", SERVICE_ID, "staying", 80, false);
+        ServiceInstance leaving = new DefaultServiceInstance("leaving", SERVICE_ID, "leaving", 80, false);
+        LatencyAwareLoadBalancer loadBalancer = newLoadBalancer(staying, leaving);
+
+        loadBalancer.choose(Arrays.asList(staying, leaving));
+        Assertions.assertEquals(2, loadBalancer.instancesKnown());
+        Request<Object> request = new DefaultRequest<Object>(new DefaultRequestContext());
+        loadBalancer.onStartRequest(request, new DefaultResponse(leaving));
+
+        loadBalancer.choose(Arrays.asList(staying));
+        Assertions.assertEquals(1, loadBalancer.instancesKnown());
+
+        // A request still in flight to an instance that has gone is not counted
+        loadBalancer.onComplete(new CompletionContext<Object, ServiceInstance, Object>(
+                CompletionContext.Status.SUCCESS, request, new DefaultResponse(leaving)));
+        Assertions.assertEquals(1, loadBalancer.instancesKnown());
+    }
+
+    @Test
+    public void requestCompletesInTheStatsItStartedIn() {
+        ServiceInstance staying = new DefaultServiceInstance("staying", SERVICE_ID, "staying", 80, false);
+        ServiceInstance returning = new DefaultServiceInstance("returning", SERVICE_ID, "returning", 80, false);
+        LatencyAwareLoadBalancer loadBalancer = newLoadBalancer(staying, returning);
+
+        Request<Object> request = new DefaultRequest<Object>(new DefaultRequestContext());
+        Response<ServiceInstance> response = loadBalancer.choose(Arrays.asList(returning));
+        loadBalancer.onStartRequest(request, response);
+
+        // Gone, then back - measured afresh, with nothing in flight
+        loadBalancer.choose(Arrays.asList(staying, returning));
+        loadBalancer.choose(Arrays.asList(staying));
+        Assertions.assertEquals(1, loadBalancer.instancesKnown());
+        loadBalancer.choose(Arrays.asList(staying, returning));
+        Assertions.assertEquals(1.0, loadBalancer.cost(returning));
+
+        loadBalancer.onComplete(new CompletionContext<Object, ServiceInstance, Object>(
+                CompletionContext.Status.SUCCESS, request, response));
+        Assertions.assertEquals(1.0, loadBalancer.cost(returning));
+    }
+
+    @Test
+    public void hedgesDoNotForgetTheInstanceTheyAvoid() {
+        ServiceInstance first = new DefaultServiceInstance("first", SERVICE_ID, "first", 80, false);
+        ServiceInstance second = new DefaultServiceInstance("second", SERVICE_ID, "second", 80, false);
+        LatencyAwareLoadBalancer loadBalancer = newLoadBalancer(
+                new HedgingServiceInstanceListSupplier(instances(first, second)));
+
+        Request<Object> request = new DefaultRequest<Object>(new DefaultRequestContext());
+        Response<ServiceInstance> response = loadBalancer.choose(request).block();
+        loadBalancer.onStartRequest(request, response);
+        Assertions.assertEquals(2, loadBalancer.instancesKnown());
+
+        // The hedge is only offered the other instance
+        ServiceInstance avoid = response.getServer();
+        Request<Object> hedge = new DefaultRequest<Object>(new DefaultRequestContext());
+        Response<ServiceInstance> hedgeResponse = new HedgeAttempt(avoid)
+                .run(() -> loadBalancer.choose(hedge).block());
+        loadBalancer.onStartRequest(hedge, hedgeResponse);
+
+        Assertions.assertNotEquals(avoid.getHost(), hedgeResponse.getServer().getHost());
+        Assertions.assertEquals(2, loadBalancer.instancesKnown());
+
+        // Not yet measured, with one request in flight each
+        Assertions.assertEquals(2.0, loadBalancer.cost(first));
+        Assertions.assertEquals(2.0, loadBalancer.cost(second));
+
+        loadBalancer.onComplete(new CompletionContext<Object, ServiceInstance, Object>(
+                CompletionContext.Status.SUCCESS, request, response));
+        loadBalancer.onComplete(new CompletionContext<Object, ServiceInstance, Object>(
+                CompletionContext.Status.SUCCESS, hedge, hedgeResponse));
+
+        // Measured, with nothing in flight
+        Assertions.assertTrue(loadBalancer.cost(first) >= 1.0);
+        Assertions.assertTrue(loadBalancer.cost(second) >= 1.0);
+    }
+
+    protected LatencyAwareLoadBalancer newLoadBalancer(ServiceInstance... instances) {
+        return newLoadBalancer(instances(instances));
+    }
+
+    protected LatencyAwareLoadBalancer newLoadBalancer(ServiceInstanceListSupplier supplier) {
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton("instances", supplier);
+
+        return new LatencyAwareLoadBalancer(beanFactory.getBeanProvider(ServiceInstanceListSupplier.class),
+                SERVICE_ID, TimeUnit.SECONDS.toNanos(1));
+    }
+
+    protected ServiceInstanceListSupplier instances(ServiceInstance... instances) {
+        List<ServiceInstance> list = Arrays.asList(instances);
+
+        return new ServiceInstanceListSupplier() {
+
+            @Override
+            public String getServiceId() {
+                return SERVICE_ID;
+            }
+
+            @Override
+            public Flux<List<ServiceInstance>> get() {
+                return Flux.just(list);
+            }
+        };
+    }
+
+    protected ServiceInstance instance(HttpServer server) {
+        return new DefaultServiceInstance(null, SERVICE_ID, "localhost", server.getAddress().getPort(), false);
+    }
+
+    protected HttpServer startServer(AtomicInteger requests, long delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            byte[] body = "{}".getBytes();
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
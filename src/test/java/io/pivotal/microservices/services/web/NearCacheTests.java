@@ -0,0 +1,133 @@
+package io.pivotal.microservices.services.web;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class NearCacheTests {
+
+    protected AtomicInteger loads = new AtomicInteger();
+
+    protected String load(String key) {
+        return key + loads.incrementAndGet();
+    }
+
+    @Test
+    public void freshEntriesAreHits() {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 10, Duration.ofMinutes(1),
+                Duration.ZERO, Runnable::run);
+
+        Assertions.assertEquals("a1", cache.get("a", this::load));
+        Assertions.assertEquals("a1", cache.get("a", this::load));
+        Assertions.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void staleEntriesAreReturnedAndRefreshed() {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 10, Duration.ZERO,
+                Duration.ofMinutes(1), Runnable::run);
+
+        Assertions.assertEquals("a1", cache.get("a", this::load));
+        // Stale value returned, refresh runs (synchronously here) afterwards
+        Assertions.assertEquals("a1", cache.get("a", this::load));
+        Assertions.assertEquals("a2", cache.get("a", this::load));
+    }
+
+    @Test
+    public void expiredEntriesAreReloaded() {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 10, Duration.ZERO, Duration.ZERO,
+                Runnable::run);
+
+        Assertions.assertEquals("a1", cache.get("a", this::load));
+        Assertions.assertEquals("a2", cache.get("a", this::load));
+    }
+
+    @Test
+    public void failedRefreshKeepsStaleEntry() {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 10, Duration.ZERO,
+                Duration.ofMinutes(1), Runnable::run);
+
+        cache.get("a", this::load);
+        Assertions.assertEquals("a1", cache.get("a", key -> {
+            throw new IllegalStateException("Service down");
+        }));
+        Assertions.assertEquals("a1", cache.getIfPresent("a").getValue());
+    }
+
+    @Test
+    public void unchangedEntriesAreRevalidated() {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 10, Duration.ZERO, Duration.ZERO,
+                Runnable::run);
+        MeterRegistry registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+
+        NearCache.Loader<String, String> loader = (key, previous) -> {
+            loads.incrementAndGet();
+            return previous != null && "v1".equals(previous.getTag()) ? previous
+                    : new NearCache.Entry<String>(key + loads.get(), "v1");
+        };
+
+        Assertions.assertEquals("a1", cache.get("a", loader));
+        Assertions.assertEquals("a1", cache.get("a", loader));
+        Assertions.assertEquals("a1", cache.get("a", loader));
+        Assertions.assertEquals(3, loads.get());
+        Assertions.assertEquals(2, registry.get("accounts.cache.revalidated").functionCounter().count());
+    }
+
+    @Test
+    public void sharedRevalidationIsFresh() throws InterruptedException {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 10, Duration.ofMillis(50),
+                Duration.ZERO, Runnable::run);
+        NearCache.Entry<String> existing = new NearCache.Entry<String>("a1", "v1");
+        Thread.sleep(100);
+
+        // Joined another caller's revalidation, so given an entry it did not pass in
+        Assertions.assertEquals("a1", cache.get("a", (key, previous) -> existing));
+        Assertions.assertEquals("a1", cache.get("a", this::load));
+        Assertions.assertEquals(0, loads.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 2, Duration.ofMinutes(1),
+                Duration.ZERO, Runnable::run);
+        MeterRegistry registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+
+        cache.get("a", this::load);
+        cache.get("b", this::load);
+        cache.get("a", this::load);
+        cache.get("c", this::load);
+
+        Assertions.assertNotNull(cache.getIfPresent("a"));
+        Assertions.assertNull(cache.getIfPresent("b"));
+        Assertions.assertEquals(1, registry.get("accounts.cache.evictions").functionCounter().count());
+        Assertions.assertEquals(1,
+                registry.get("accounts.cache.requests").tag("result", "hit").functionCounter().count());
+        Assertions.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsASixteenthMoreThanNeeded() {
+        NearCache<String, String> cache = new NearCache<String, String>("test", 32, Duration.ofMinutes(1),
+                Duration.ZERO, Runnable::run);
+
+        for (int i = 0; i < 32; i++)
+            cache.get("k" + i, this::load);
+
+        cache.get("k0", this::load);
+        cache.get("new", this::load);
+
+        Assertions.assertEquals(30, cache.size());
+        Assertions.assertNotNull(cache.getIfPresent("k0"));
+        Assertions.assertNotNull(cache.getIfPresent("new"));
+        Assertions.assertNull(cache.getIfPresent("k1"));
+        Assertions.assertNull(cache.getIfPresent("k3"));
+        Assertions.assertNotNull(cache.getIfPresent("k4"));
+    }
+}
@@ -0,0 +1,102 @@
+package io.pivotal.microservices.services.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The web server's RestTemplate uses the pooled keep-alive HTTP client, as
+ * configured.
+ */
+public class PooledRestTemplateTests {
+
+    protected WebServer webServer = new WebServer();
+    protected AccountsClientProperties properties = new AccountsClientProperties();
+    protected PoolingHttpClientConnectionManager connectionManager;
+    protected CloseableHttpClient httpClient;
+
+    @AfterEach
+    public void close() throws IOException {
+        if (httpClient != null)
+            httpClient.close();
+
+        if (connectionManager != null)
+            connectionManager.close();
+    }
+
+    @Test
+    public void requestFactoryIsPooled() {
+        properties.getPool().setMaxConnections(40);
+        properties.getPool().setMaxConnectionsPerInstance(7);
+        properties.setConnectTimeout(Duration.ofMillis(250));
+        properties.setReadTimeout(Duration.ofMillis(750));
+
+        RestTemplate restTemplate = restTemplate();
+        ClientHttpRequestFactory requestFactory = restTemplate.getRequestFactory();
+
+        Assertions.assertTrue(requestFactory instanceof HttpComponentsClientHttpRequestFactory,
+                requestFactory.getClass().getName());
+        Assertions.assertSame(httpClient, ((HttpComponentsClientHttpRequestFactory) requestFactory).getHttpClient());
+        Assertions.assertEquals(40, connectionManager.getMaxTotal());
+        Assertions.assertEquals(7, connectionManager.getDefaultMaxPerRoute());
+
+        RequestConfig requestConfig = (RequestConfig) ReflectionTestUtils.getField(requestFactory, "requestConfig");
+        Assertions.assertEquals(250, requestConfig.getConnectTimeout());
+        Assertions.assertEquals(750, requestConfig.getSocketTimeout());
+    }
+
+    @Test
+    public void connectionsAreReused() throws IOException {
+        // Read once, by the first server in the JVM - see LatencyAwareLoadBalancerTests
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            clients.add(exchange.getRemoteAddress());
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        try {
+            RestTemplate restTemplate = restTemplate();
+            String url = "http://localhost:" + server.getAddress().getPort() + "/";
+
+            for (int i = 0; i < 5; i++)
+                Assertions.assertEquals("ok", restTemplate.getForObject(url, String.class));
+
+            Assertions.assertEquals(1, clients.size(), "Connections opened");
+            Assertions.assertEquals(1, connectionManager.getTotalStats().getAvailable());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    protected RestTemplate restTemplate() {
+        connectionManager = webServer.accountsConnectionManager(properties);
+        httpClient = webServer.accountsHttpClient(connectionManager, properties);
+        return webServer.restTemplate(new RestTemplateBuilder(), properties, httpClient);
+    }
+}
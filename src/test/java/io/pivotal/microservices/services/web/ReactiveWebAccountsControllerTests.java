@@ -0,0 +1,94 @@
+package io.pivotal.microservices.services.web;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.view;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import reactor.core.publisher.Mono;
+
+public class ReactiveWebAccountsControllerTests {
+
+    protected static final String ACCOUNT_1 = "123456789";
+
+    protected Account account;
+
+    protected MockMvc mockMvc;
+
+    @BeforeEach
+    public void setup() {
+        account = new WebAccountsMapping().newAccount(1, ACCOUNT_1, "Keri Lee", new BigDecimal("10.50"));
+
+        ReactiveWebAccountsService service = new ReactiveWebAccountsService("http://unused") {
+            @Override
+            public Mono<Account> findByNumber(String accountNumber) {
+                return ACCOUNT_1.equals(accountNumber) ? Mono.just(account) : Mono.empty();
+            }
+
+            @Override
+            public Mono<List<Account>> byOwnerContains(String name) {
+                return "Keri".equals(name) ? Mono.just(Arrays.asList(account)) : Mono.empty();
+            }
+        };
+
+        mockMvc = MockMvcBuilders.standaloneSetup(new ReactiveWebAccountsController(service)).build();
+    }
+
+    @Test
+    public void validAccountNumber() throws Exception {
+        MvcResult result = mockMvc.perform(get("/accounts/" + ACCOUNT_1)).andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result)).andExpect(view().name("account"))
+                .andExpect(model().attribute("account", account));
+    }
+
+    @Test
+    public void invalidAccountNumber() throws Exception {
+        MvcResult result = mockMvc.perform(get("/accounts/10101010")).andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result)).andExpect(view().name("account"))
+                .andExpect(model().attribute("number", "10101010"))
+                .andExpect(model().attributeDoesNotExist("account"));
+    }
+
+    @Test
+    public void validAccountOwner() throws Exception {
+        MvcResult result = mockMvc.perform(get("/accounts/owner/Keri")).andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result)).andExpect(view().name("accounts"))
+                .andExpect(model().attribute("accounts", Arrays.asList(account)))
+                .andExpect(model().attribute("search", "Keri"));
+    }
+
+    @Test
+    public void unknownAccountOwner() throws Exception {
+        MvcResult result = mockMvc.perform(get("/accounts/owner/Fred")).andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result)).andExpect(view().name("accounts"))
+                .andExpect(model().attributeDoesNotExist("accounts"));
+    }
+
+    @Test
+    public void searchByNumber() throws Exception {
+        MvcResult result = mockMvc.perform(get("/accounts/dosearch").param("accountNumber", ACCOUNT_1))
+                .andExpect(request().asyncStarted()).andReturn();
+
+        mockMvc.perform(asyncDispatch(result)).andExpect(view().name("account"))
+                .andExpect(model().attribute("account", account));
+    }
+}
@@ -0,0 +1,82 @@
+package io.pivotal.microservices.services.web;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Responses from the accounts microservice, as seen by the non-blocking
+ * client. No server is needed: each request is answered by a stub exchange
+ * function.
+ */
+public class ReactiveWebAccountsServiceTests {
+
+    protected static final String ACCOUNT_JSON = "{\"id\":1,\"number\":\"123456789\",\"owner\":\"Keri Lee\",\"balance\":10.5}";
+
+    protected AtomicReference<URI> lastUrl = new AtomicReference<URI>();
+
+    protected WebClient.Builder builder;
+
+    protected ReactiveWebAccountsService service(HttpStatus status, String body) {
+        builder = WebClient.builder().exchangeFunction(request -> {
+            lastUrl.set(request.url());
+            return Mono.just(ClientResponse.create(status)
+                    .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE).body(body).build());
+        });
+
+        ReactiveWebAccountsService service = new ReactiveWebAccountsService("ACCOUNTS-SERVICE");
+        service.webClientBuilder = builder;
+        service.createWebClient();
+        return service;
+    }
+
+    @Test
+    public void findsAccounts() {
+        ReactiveWebAccountsService service = service(HttpStatus.OK, "[" + ACCOUNT_JSON + "]");
+
+        List<Account> accounts = service.byOwnerContains("Keri").block();
+        Assertions.assertEquals("http://ACCOUNTS-SERVICE/accounts/owner/Keri", lastUrl.get().toString());
+        Assertions.assertEquals(1, accounts.size());
+        Assertions.assertEquals("Keri Lee", accounts.get(0).getOwner());
+
+        service = service(HttpStatus.OK, ACCOUNT_JSON);
+        Assertions.assertEquals("123456789", service.findByNumber("123456789").block().getNumber());
+    }
+
+    @Test
+    public void errorsMeanNothingFound() {
+        Assertions.assertNull(service(HttpStatus.NOT_FOUND, "{}").byOwnerContains("Keri").block());
+        Assertions.assertNull(service(HttpStatus.OK, "[]").byOwnerContains("Keri").block());
+        Assertions.assertNull(service(HttpStatus.NOT_FOUND, "{}").findByNumber("123456789").block());
+        Assertions.assertNull(service(HttpStatus.INTERNAL_SERVER_ERROR, "{}").findByNumber("123456789").block());
+    }
+
+    @Test
+    public void otherSearchErrorsAreNotNothingFound() {
+        for (HttpStatus status : new HttpStatus[] { HttpStatus.BAD_REQUEST, HttpStatus.NOT_ACCEPTABLE,
+                HttpStatus.SERVICE_UNAVAILABLE }) {
+            WebClientResponseException e = Assertions.assertThrows(WebClientResponseException.class,
+                    () -> service(status, "{}").byOwnerContains("Keri").block());
+            Assertions.assertEquals(status, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void sharedBuilderIsUnchanged() {
+        service(HttpStatus.OK, "[]");
+
+        builder.build().get().uri("/other").retrieve().toBodilessEntity().block();
+        Assertions.assertEquals("/other", lastUrl.get().toString());
+    }
+}
@@ -0,0 +1,90 @@
+package io.pivotal.microservices.services.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTests {
+
+    protected static final int CALLERS = 8;
+
+    protected ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    protected SingleFlight<String, String> flights = new SingleFlight<String, String>("test");
+    protected AtomicInteger calls = new AtomicInteger();
+    protected CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start all callers, wait until every one but the caller actually making the
+     * call is waiting for it, then let the call finish.
+     */
+    protected List<Future<String>> callConcurrently(RuntimeException failure) throws Exception {
+        List<Future<String>> results = new ArrayList<Future<String>>();
+
+        for (int i = 0; i < CALLERS; i++)
+            results.add(executor.submit(() -> flights.execute("a", key -> {
+                calls.incrementAndGet();
+                await(release);
+
+                if (failure != null)
+                    throw failure;
+
+                return key + calls.get();
+            })));
+
+        while (flights.coalesced.sum() < CALLERS - 1)
+            Thread.sleep(5);
+
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void concurrentCallsShareResult() throws Exception {
+        for (Future<String> result : callConcurrently(null))
+            Assertions.assertEquals("a1", result.get(5, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(1, calls.get());
+
+        // Once complete, the next call is made afresh
+        Assertions.assertEquals("a2", flights.execute("a", key -> key + calls.incrementAndGet()));
+    }
+
+    @Test
+    public void concurrentCallsShareFailure() throws Exception {
+        IllegalStateException failure = new IllegalStateException("Service down");
+
+        for (Future<String> result : callConcurrently(failure)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                Assertions.fail("Expected an IllegalStateException");
+            } catch (ExecutionException e) {
+                Assertions.assertSame(failure, e.getCause());
+            }
+        }
+
+        Assertions.assertEquals(1, calls.get());
+    }
+
+    protected static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.pivotal.microservices.services.web;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.pivotal.microservices.exceptions.AccountsUnavailableException;
+
+public class WebAccountsServiceTests {
+
+    protected WebAccountsService service = new WebAccountsService("http://unused");
+
+    @BeforeEach
+    public void setup() {
+        // The only permit is taken, so no call is made
+        service.bulkhead = new Bulkhead(1, Duration.ZERO);
+        Assertions.assertTrue(service.bulkhead.tryAcquire());
+    }
+
+    @Test
+    public void bulkheadRejectionIsNotAMissingAccount() {
+        Assertions.assertThrows(AccountsUnavailableException.class, () -> service.findByNumber("123456789"));
+
+        service.byNumberCache = new NearCache<String, Account>("byNumber", 10, Duration.ofMinutes(1),
+                Duration.ZERO, Runnable::run);
+        Assertions.assertThrows(AccountsUnavailableException.class, () -> service.findByNumber("123456789"));
+    }
+
+    @Test
+    public void bulkheadRejectionIsAnsweredFromTheCache() {
+        Account account = new WebAccountsMapping().newAccount(1, "123456789", "Keri Lee", new BigDecimal("1234.5"));
+
+        // Expired, so a call would be made were a permit free
+        service.byNumberCache = new NearCache<String, Account>("byNumber", 10, Duration.ZERO, Duration.ZERO,
+                Runnable::run);
+        service.byNumberCache.put("123456789", account);
+
+        Assertions.assertSame(account, service.findByNumber("123456789"));
+        Assertions.assertEquals(1, service.fallbacks.sum());
+    }
+}
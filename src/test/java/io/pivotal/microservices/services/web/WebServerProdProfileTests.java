@@ -0,0 +1,119 @@
+package io.pivotal.microservices.services.web;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.thymeleaf.ThymeleafProperties;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.Compression;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.util.unit.DataSize;
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.context.WebContext;
+
+import io.pivotal.microservices.services.registration.RegistrationServer;
+
+/**
+ * The web server's <code>prod</code> profile caches templates and account rows,
+ * and compresses pages.
+ */
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("prod")
+@SpringBootTest(classes = WebServer.class, properties = { "spring.config.name=web-server",
+        "eureka.client.enabled=false", RegistrationServer.REGISTRATION_SERVER_HOSTNAME + "=localhost" })
+public class WebServerProdProfileTests {
+
+    protected static final String TAG = "\"1\"";
+
+    @Autowired
+    protected ThymeleafProperties thymeleafProperties;
+
+    @Autowired
+    protected ServerProperties serverProperties;
+
+    @Autowired
+    protected ITemplateEngine templateEngine;
+
+    @Autowired
+    protected AccountRowCache rowCache;
+
+    protected MockHttpServletRequest request = new MockHttpServletRequest();
+    protected MockHttpServletResponse response = new MockHttpServletResponse();
+
+    protected Account account;
+    protected List<Account> accounts;
+
+    @BeforeEach
+    public void setup() {
+        WebAccountsMapping mapping = new WebAccountsMapping();
+        account = mapping.newAccount(2, "987654321", "Tom & <Jerry>", new BigDecimal("-0.01"));
+        accounts = Arrays.asList(mapping.newAccount(1, "123456789", "Keri Lee", new BigDecimal("1234.5")), account);
+    }
+
+    @Test
+    public void templatesAreCached() {
+        Assertions.assertTrue(thymeleafProperties.isCache());
+    }
+
+    @Test
+    public void pagesAreCompressed() {
+        Compression compression = serverProperties.getCompression();
+
+        Assertions.assertTrue(compression.getEnabled());
+        Assertions.assertTrue(Arrays.asList(compression.getMimeTypes()).contains("text/html"));
+        Assertions.assertEquals(DataSize.ofKilobytes(2), compression.getMinResponseSize());
+    }
+
+    @Test
+    public void rowsAreCachedUntilTheSearchResultsChange() {
+        String row = rowCache.rows(accounts, TAG, request, response).get(1);
+
+        Assertions.assertTrue(row.contains("href=\"/accounts/987654321\""));
+        Assertions.assertTrue(row.contains("<td>Tom &amp; &lt;Jerry&gt;</td>"));
+        Assertions.assertSame(row, rowCache.rows(accounts, TAG, request, response).get(1));
+
+        // A new balance is a new version, so the results have a new tag
+        account.setBalance(new BigDecimal("10"));
+        String changed = rowCache.rows(accounts, "\"2\"", request, response).get(1);
+
+        Assertions.assertNotSame(row, changed);
+        Assertions.assertTrue(changed.contains("<td>10.00</td>"));
+
+        // Results without a tag are rendered, but not cached
+        int size = rowCache.size();
+        Assertions.assertEquals(changed, rowCache.rows(accounts, null, request, response).get(1));
+        Assertions.assertEquals(size, rowCache.size());
+    }
+
+    @Test
+    public void cachedRowsAreTheSameAsTheTemplatesRows() {
+        WebContext context = new WebContext(request, response, request.getServletContext());
+        context.setVariable("search", "e");
+        context.setVariable("accounts", accounts);
+        String rendered = templateEngine.process("accounts", context);
+
+        context.setVariable("rows", rowCache.rows(accounts, TAG, request, response));
+        String cached = templateEngine.process("accounts", context);
+
+        Assertions.assertTrue(rendered.contains("Tom &amp; &lt;Jerry&gt;"));
+        Assertions.assertEquals(tableBody(rendered), tableBody(cached));
+    }
+
+    /**
+     * @return The table body, less whitespace between elements.
+     */
+    protected static String tableBody(String page) {
+        String body = page.substring(page.indexOf("<tbody>"), page.indexOf("</tbody>"));
+        return body.replaceAll(">\\s+<", "><").replaceAll(">\\s+", ">").replaceAll("\\s+<", "<");
+    }
+}